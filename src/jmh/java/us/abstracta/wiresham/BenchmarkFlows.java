@@ -0,0 +1,156 @@
+package us.abstracta.wiresham;
+
+import com.google.common.io.BaseEncoding;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates flows and capture files used by benchmarks.
+ * <p>
+ * Generated flows are a sequence of client requests, each one followed by a server response, with
+ * random (but reproducible) payloads.
+ */
+final class BenchmarkFlows {
+
+  static final String SERVER_IP = "10.0.0.1";
+  static final String CLIENT_IP = "10.0.0.2";
+  static final int SERVER_PORT = 2324;
+  static final int CLIENT_PORT = 50000;
+
+  private BenchmarkFlows() {
+  }
+
+  static Flow buildFlow(int exchangeCount, int payloadSize) {
+    Random random = new Random(exchangeCount);
+    List<PacketStep> steps = new ArrayList<>();
+    for (int i = 0; i < exchangeCount; i++) {
+      steps.add(new ReceivePacketStep(randomHexDump(random, payloadSize)));
+      steps.add(new SendPacketStep(randomHexDump(random, payloadSize), 0));
+    }
+    return new Flow(steps);
+  }
+
+  static String randomHexDump(Random random, int size) {
+    byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return BaseEncoding.base16().encode(bytes);
+  }
+
+  static File writeYml(Flow flow) throws IOException {
+    File file = createTempFile(".yml");
+    flow.saveYml(file);
+    return file;
+  }
+
+  static File writeBinary(Flow flow) throws IOException {
+    File file = createTempFile(Flow.BINARY_FILE_EXTENSION);
+    flow.saveBinary(file);
+    return file;
+  }
+
+  static File writeWiresharkJson(Flow flow) throws IOException {
+    File file = createTempFile(".json");
+    try (Writer writer = new FileWriter(file)) {
+      writer.write("[\n");
+      List<PacketStep> steps = flow.getSteps();
+      for (int i = 0; i < steps.size(); i++) {
+        boolean fromServer = steps.get(i) instanceof SendPacketStep;
+        writer.write(String.format("  {\"_source\": {\"layers\": {"
+                + "\"frame\": {\"frame.time_delta_displayed\": \"0.000000000\"}, "
+                + "\"ip\": {\"ip.src\": \"%s\", \"ip.dst\": \"%s\"}, "
+                + "\"tcp\": {\"tcp.srcport\": \"%d\", \"tcp.dstport\": \"%d\", "
+                + "\"tcp.payload\": \"%s\"}}}}%s\n",
+            fromServer ? SERVER_IP : CLIENT_IP, fromServer ? CLIENT_IP : SERVER_IP,
+            fromServer ? SERVER_PORT : CLIENT_PORT, fromServer ? CLIENT_PORT : SERVER_PORT,
+            toWiresharkPayload(steps.get(i).getData()), i < steps.size() - 1 ? "," : ""));
+      }
+      writer.write("]\n");
+    }
+    return file;
+  }
+
+  private static String toWiresharkPayload(String hexDump) {
+    StringBuilder ret = new StringBuilder();
+    for (int i = 0; i < hexDump.length(); i += 2) {
+      if (i > 0) {
+        ret.append(':');
+      }
+      ret.append(hexDump, i, i + 2);
+    }
+    return ret.toString().toLowerCase();
+  }
+
+  /*
+   * Writes a classic pcap file with Ethernet, IPv4 and TCP headers. Checksums are not computed
+   * since they are not verified when loading flows.
+   */
+  static File writePcap(Flow flow) throws IOException {
+    File file = createTempFile(".pcap");
+    try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file))) {
+      ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(0xa1b2c3d4).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0)
+          .putInt(65535).putInt(1);
+      output.write(header.array());
+      long[] sequences = new long[2];
+      int timeMicros = 0;
+      for (PacketStep step : flow.getSteps()) {
+        boolean fromServer = step instanceof SendPacketStep;
+        byte[] payload = BaseEncoding.base16().decode(step.getData());
+        byte[] frame = buildFrame(fromServer, payload, sequences);
+        ByteBuffer record = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        timeMicros += 100;
+        record.putInt(timeMicros / 1000000).putInt(timeMicros % 1000000).putInt(frame.length)
+            .putInt(frame.length);
+        output.write(record.array());
+        output.write(frame);
+      }
+    }
+    return file;
+  }
+
+  private static byte[] buildFrame(boolean fromServer, byte[] payload, long[] sequences) {
+    ByteBuffer frame = ByteBuffer.allocate(14 + 20 + 20 + payload.length);
+    frame.put(new byte[]{0, 0, 0, 0, 0, (byte) (fromServer ? 1 : 2)})
+        .put(new byte[]{0, 0, 0, 0, 0, (byte) (fromServer ? 2 : 1)})
+        .putShort((short) 0x0800);
+    frame.put((byte) 0x45).put((byte) 0).putShort((short) (20 + 20 + payload.length))
+        .putShort((short) 0).putShort((short) 0x4000).put((byte) 64).put((byte) 6)
+        .putShort((short) 0)
+        .put(ipBytes(fromServer ? SERVER_IP : CLIENT_IP))
+        .put(ipBytes(fromServer ? CLIENT_IP : SERVER_IP));
+    int direction = fromServer ? 1 : 0;
+    frame.putShort((short) (fromServer ? SERVER_PORT : CLIENT_PORT))
+        .putShort((short) (fromServer ? CLIENT_PORT : SERVER_PORT))
+        .putInt((int) sequences[direction]).putInt((int) sequences[1 - direction])
+        .put((byte) 0x50).put((byte) 0x18).putShort((short) 65535).putShort((short) 0)
+        .putShort((short) 0);
+    frame.put(payload);
+    sequences[direction] += payload.length;
+    return frame.array();
+  }
+
+  private static byte[] ipBytes(String ip) {
+    String[] parts = ip.split("\\.");
+    byte[] ret = new byte[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      ret[i] = (byte) Integer.parseInt(parts[i]);
+    }
+    return ret;
+  }
+
+  private static File createTempFile(String suffix) throws IOException {
+    File file = File.createTempFile("wiresham-benchmark", suffix);
+    file.deleteOnExit();
+    return file;
+  }
+
+}
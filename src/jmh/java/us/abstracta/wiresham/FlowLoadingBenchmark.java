@@ -0,0 +1,69 @@
+package us.abstracta.wiresham;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time to load flows from each supported file format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 3, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class FlowLoadingBenchmark {
+
+  @Param({"100", "10000"})
+  private int exchangeCount;
+
+  @Param({"64", "1024"})
+  private int payloadSize;
+
+  private File ymlFile;
+  private File jsonFile;
+  private File pcapFile;
+  private File binaryFile;
+
+  @Setup
+  public void setup() throws IOException {
+    Flow flow = BenchmarkFlows.buildFlow(exchangeCount, payloadSize);
+    ymlFile = BenchmarkFlows.writeYml(flow);
+    jsonFile = BenchmarkFlows.writeWiresharkJson(flow);
+    pcapFile = BenchmarkFlows.writePcap(flow);
+    binaryFile = BenchmarkFlows.writeBinary(flow);
+  }
+
+  @Benchmark
+  public Flow loadYml() throws IOException {
+    return Flow.fromYml(ymlFile);
+  }
+
+  @Benchmark
+  public Flow loadWiresharkJson() throws IOException {
+    return Flow.fromWiresharkJsonDump(jsonFile, BenchmarkFlows.SERVER_IP);
+  }
+
+  @Benchmark
+  public Flow loadBinary() throws IOException {
+    return Flow.fromBinary(binaryFile);
+  }
+
+  @Benchmark
+  public Flow loadPcap() throws IOException {
+    return Flow.fromPcap(pcapFile, BenchmarkFlows.SERVER_IP, null);
+  }
+
+}
@@ -0,0 +1,110 @@
+package us.abstracta.wiresham;
+
+import ch.qos.logback.classic.Level;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures complete replays of a flow, from connection to last server packet, with a
+ * {@link ConnectionFlowDriver} client against a {@link VirtualTcpService} over loopback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 3, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class FlowReplayBenchmark {
+
+  private static final int PAYLOAD_SIZE = 64;
+  private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+  @Param({"1", "100"})
+  private int exchangeCount;
+
+  @Param({"0", "2"})
+  private int eventLoopCount;
+
+  private VirtualTcpService service;
+  private CompiledFlow clientFlow;
+  private int port;
+
+  @Setup
+  public void setup() throws IOException {
+    ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME))
+        .setLevel(Level.WARN);
+    Flow flow = BenchmarkFlows.buildFlow(exchangeCount, PAYLOAD_SIZE);
+    port = getAvailablePort();
+    service = new VirtualTcpService();
+    service.setPortArgument(port);
+    service.setMaxConnections(4);
+    service.setEventLoopCount(eventLoopCount);
+    service.setFlow(flow);
+    service.start();
+    clientFlow = CompiledFlow.compile(flow.reversed(), port);
+  }
+
+  private static int getAvailablePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    service.stop(STOP_TIMEOUT_MILLIS);
+  }
+
+  @Benchmark
+  public void replay() {
+    new ConnectionFlowDriver(new SocketConnectionProvider(), clientFlow).run();
+  }
+
+  private static class SocketConnectionProvider implements FlowConnectionProvider {
+
+    private final Map<Integer, FlowConnection> connections = new HashMap<>();
+
+    @Override
+    public FlowConnection get(int port) throws IOException {
+      FlowConnection connection = connections.get(port);
+      if (connection == null) {
+        connection = new FlowConnection(new Socket("localhost", port),
+            VirtualTcpService.DEFAULT_READ_BUFFER_SIZE);
+        connections.put(port, connection);
+      }
+      return connection;
+    }
+
+    @Override
+    public void init(List<Integer> ports, FlowConnection flowConnection) {
+    }
+
+    @Override
+    public void closeConnections() throws IOException {
+      for (FlowConnection connection : connections.values()) {
+        connection.close();
+      }
+    }
+
+  }
+
+}
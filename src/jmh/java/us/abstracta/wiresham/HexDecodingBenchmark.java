@@ -0,0 +1,50 @@
+package us.abstracta.wiresham;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures decoding of packets hex dumps, as done for every step when loading flows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class HexDecodingBenchmark {
+
+  @Param({"64", "1024", "65536"})
+  private int payloadSize;
+
+  private String lowerCaseHexDump;
+  private String upperCaseHexDump;
+
+  @Setup
+  public void setup() {
+    upperCaseHexDump = BenchmarkFlows.randomHexDump(new Random(payloadSize), payloadSize);
+    lowerCaseHexDump = upperCaseHexDump.toLowerCase();
+  }
+
+  @Benchmark
+  public Packet decodeUpperCase() {
+    return Packet.fromHexDump(upperCaseHexDump);
+  }
+
+  @Benchmark
+  public Packet decodeLowerCase() {
+    return Packet.fromHexDump(lowerCaseHexDump);
+  }
+
+}
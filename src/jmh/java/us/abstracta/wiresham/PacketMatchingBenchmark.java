@@ -0,0 +1,104 @@
+package us.abstracta.wiresham;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the search of expected client packets in received data.
+ * <p>
+ * Besides random data, it includes adversarial inputs for naive matching: received data made of
+ * long partial matches of the expected packet (like "AAA...AB" expected in "AAA...AAA...B"), and
+ * expected packets received one byte at a time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class PacketMatchingBenchmark {
+
+  private static final int RECEIVED_SIZE = 65536;
+
+  @Param({"16", "1024"})
+  private int expectedSize;
+
+  private ReceivePacketStep randomStep;
+  private ByteBuffer randomReceived;
+  private ReceivePacketStep repetitiveStep;
+  private ByteBuffer repetitiveReceived;
+  private ByteBuffer[] byteByByteReceived;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(expectedSize);
+    randomStep = new ReceivePacketStep(BenchmarkFlows.randomHexDump(random, expectedSize));
+    randomReceived = buildReceived(
+        Packet.fromHexDump(BenchmarkFlows.randomHexDump(random, RECEIVED_SIZE - expectedSize)),
+        randomStep);
+
+    byte[] expected = new byte[expectedSize];
+    Arrays.fill(expected, (byte) 'A');
+    expected[expectedSize - 1] = 'B';
+    repetitiveStep = new ReceivePacketStep(Packet.fromBytes(expected, 0, expected.length)
+        .toString());
+    byte[] prefix = new byte[RECEIVED_SIZE - expectedSize];
+    Arrays.fill(prefix, (byte) 'A');
+    repetitiveReceived = buildReceived(Packet.fromBytes(prefix, 0, prefix.length),
+        repetitiveStep);
+
+    byteByByteReceived = new ByteBuffer[expectedSize];
+    for (int i = 0; i < expectedSize; i++) {
+      byteByByteReceived[i] = ByteBuffer.wrap(expected, i, 1);
+    }
+  }
+
+  private static ByteBuffer buildReceived(Packet prefix, ReceivePacketStep step) {
+    byte[] prefixBytes = prefix.getBytes();
+    byte[] expected = Packet.fromHexDump(step.getData()).getBytes();
+    ByteBuffer ret = ByteBuffer.allocate(prefixBytes.length + expected.length);
+    ret.put(prefixBytes).put(expected).flip();
+    return ret;
+  }
+
+  @Benchmark
+  public int matchRandomData() {
+    return consume(randomStep, randomReceived.duplicate());
+  }
+
+  private static int consume(ReceivePacketStep step, ByteBuffer buffer) {
+    int matchedCount = 0;
+    while (!step.isReceived(matchedCount)) {
+      matchedCount = step.consume(buffer, matchedCount);
+    }
+    return matchedCount;
+  }
+
+  @Benchmark
+  public int matchRepetitiveData() {
+    return consume(repetitiveStep, repetitiveReceived.duplicate());
+  }
+
+  @Benchmark
+  public int matchByteByByte() {
+    int matchedCount = 0;
+    for (ByteBuffer buffer : byteByByteReceived) {
+      matchedCount = repetitiveStep.consume(buffer.duplicate(), matchedCount);
+    }
+    return matchedCount;
+  }
+
+}
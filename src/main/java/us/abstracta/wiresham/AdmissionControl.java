@@ -0,0 +1,184 @@
+package us.abstracta.wiresham;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides if new connections of a {@link VirtualTcpService} are attended, queued or rejected
+ * according to an {@link OverloadPolicy}, when all the threads attending connections are busy.
+ * <p>
+ * Flows are resumed in the same thread pool after delays, so resumed flows must never wait in
+ * the pool queue, since the threads may be blocked by flows waiting for packets of clients which
+ * in turn wait for the resumed flows responses. So, admitted connections are counted until they
+ * end (through {@link #release()}), including the ones suspended in a delay, and connections are
+ * only admitted while there are fewer than the pool threads. This way, a thread released by a
+ * delay is kept for the flow to resume, and connections waiting for a thread are kept in a queue
+ * of their own, to be started when admitted connections end.
+ */
+final class AdmissionControl {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AdmissionControl.class);
+
+  private final ExecutorService pool;
+  private final int threadCount;
+  private final OverloadPolicy policy;
+  private final int maxQueuedConnections;
+  private final long queueTimeoutMillis;
+  private final ConnectionReaper reaper;
+  private final ServiceMetrics metrics;
+  private final AtomicInteger admittedConnections = new AtomicInteger();
+  private final AtomicInteger queuedConnections = new AtomicInteger();
+  private final Queue<QueuedConnection> queue = new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param pool pool attending connections.
+   * @param threadCount threads of the pool, or zero if the pool has no limit (as when using
+   * virtual threads), in which case connections are never queued nor rejected.
+   */
+  AdmissionControl(ExecutorService pool, int threadCount, OverloadPolicy policy,
+      int maxQueuedConnections, long queueTimeoutMillis, ConnectionReaper reaper,
+      ServiceMetrics metrics) {
+    this.pool = pool;
+    this.threadCount = threadCount;
+    this.policy = policy;
+    this.maxQueuedConnections = maxQueuedConnections;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.reaper = reaper;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return executor which runs tasks of admitted connections (like flow resumptions), which
+   * always find an available thread since admitted connections are bounded by pool threads.
+   */
+  Executor getExecutor() {
+    return pool;
+  }
+
+  /**
+   * Runs the task attending a new connection, queues it, or rejects the connection, according to
+   * the policy.
+   * <p>
+   * {@link #release()} must be invoked when an admitted connection ends.
+   *
+   * @param task task attending the connection.
+   * @param rejection closes the connection when rejected.
+   */
+  void admit(Runnable task, Runnable rejection) {
+    if (tryAdmit()) {
+      pool.execute(task);
+      return;
+    }
+    if (policy == OverloadPolicy.REJECT || queuedConnections.get() >= maxQueuedConnections) {
+      reject(rejection, "all threads are busy");
+      return;
+    }
+    QueuedConnection queued = new QueuedConnection(task, rejection);
+    queue.add(queued);
+    if (policy == OverloadPolicy.REJECT_AFTER_TIMEOUT) {
+      reaper.register(queued);
+    }
+    // an admitted connection may have ended while queuing this one
+    startQueuedConnections();
+  }
+
+  private boolean tryAdmit() {
+    while (true) {
+      int admitted = admittedConnections.get();
+      if (threadCount > 0 && admitted >= threadCount) {
+        return false;
+      }
+      if (admittedConnections.compareAndSet(admitted, admitted + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private void startQueuedConnections() {
+    while (!queue.isEmpty() && tryAdmit()) {
+      QueuedConnection queued = queue.poll();
+      if (queued == null || !queued.start()) {
+        admittedConnections.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Notifies that an admitted connection ended, starting a queued connection if any.
+   */
+  void release() {
+    admittedConnections.decrementAndGet();
+    startQueuedConnections();
+  }
+
+  private void reject(Runnable rejection, String reason) {
+    LOG.warn("Rejecting connection since {}", reason);
+    metrics.connectionRejected();
+    rejection.run();
+  }
+
+  private final class QueuedConnection implements ConnectionReaper.Reapable {
+
+    private static final int QUEUED = 0;
+    private static final int STARTED = 1;
+    private static final int REJECTED = 2;
+
+    private final Runnable task;
+    private final Runnable rejection;
+    private final long queueDeadlineNanos;
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+    private QueuedConnection(Runnable task, Runnable rejection) {
+      this.task = task;
+      this.rejection = rejection;
+      this.queueDeadlineNanos = System.nanoTime()
+          + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+      queuedConnections.incrementAndGet();
+      metrics.connectionQueued();
+    }
+
+    private boolean start() {
+      if (!state.compareAndSet(QUEUED, STARTED)) {
+        return false;
+      }
+      dequeue();
+      reaper.unregister(this);
+      try {
+        pool.execute(task);
+        return true;
+      } catch (RejectedExecutionException e) {
+        LOG.trace("Queued connection rejected since service has been stopped", e);
+        rejection.run();
+        return false;
+      }
+    }
+
+    private void dequeue() {
+      queuedConnections.decrementAndGet();
+      metrics.connectionDequeued();
+    }
+
+    @Override
+    public boolean isExpired(long nowNanos) {
+      return nowNanos - queueDeadlineNanos >= 0;
+    }
+
+    @Override
+    public void reap() {
+      if (state.compareAndSet(QUEUED, REJECTED)) {
+        queue.remove(this);
+        dequeue();
+        reject(rejection, "it waited for a thread longer than the queue timeout");
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,125 @@
+package us.abstracta.wiresham;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes flows in a compact binary format, which allows loading big flows almost
+ * instantly.
+ * <p>
+ * The file starts with a header containing the magic bytes "WSHF", the format version and the
+ * number of steps. Then follows a table with an entry per step (type, port, delay in microseconds
+ * of server steps or timeout of client steps, payload offset and payload length) and finally the
+ * payloads of all steps, one after the other. All numbers are big endian.
+ * <p>
+ * When reading, the file is memory mapped (in windows, so there is no limit on its size) and
+ * packets point to slices of the payloads region, so payloads are neither decoded nor copied to
+ * heap.
+ */
+final class BinaryFlowFile {
+
+  private static final int MAGIC = 0x57534846;
+  private static final int VERSION = 2;
+  // version 1 stored delays of server steps in milliseconds
+  private static final int MILLIS_DELAYS_VERSION = 1;
+  private static final int HEADER_SIZE = 12;
+  private static final int STEP_ENTRY_SIZE = 25;
+  private static final byte SERVER_STEP_TYPE = 0;
+  private static final byte CLIENT_STEP_TYPE = 1;
+
+  private BinaryFlowFile() {
+  }
+
+  static void write(Flow flow, File file) throws IOException {
+    List<PacketStep> steps = flow.getSteps();
+    try (DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeInt(steps.size());
+      long payloadOffset = 0;
+      for (PacketStep step : steps) {
+        boolean serverStep = step instanceof SendPacketStep;
+        output.writeByte(serverStep ? SERVER_STEP_TYPE : CLIENT_STEP_TYPE);
+        output.writeInt(step.port);
+        output.writeLong(serverStep ? ((SendPacketStep) step).getDelayMicros()
+            : ((ReceivePacketStep) step).getTimeoutMillis());
+        output.writeLong(payloadOffset);
+        output.writeInt(step.data.length());
+        payloadOffset += step.data.length();
+      }
+      for (PacketStep step : steps) {
+        output.write(step.data.getBytes());
+      }
+    }
+  }
+
+  static Flow read(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return read(file, channel);
+    }
+  }
+
+  private static Flow read(File file, FileChannel channel) throws IOException {
+    // steps table and payloads are read with different windows to avoid remapping on each step
+    MappedFile table = new MappedFile(channel);
+    MappedFile payloads = new MappedFile(channel);
+    if (table.size() < HEADER_SIZE) {
+      throw new IOException(file + " is not a binary flow file");
+    }
+    ByteBuffer header = table.slice(0, HEADER_SIZE);
+    if (header.getInt() != MAGIC) {
+      throw new IOException(file + " is not a binary flow file");
+    }
+    int version = header.getInt();
+    if (version != VERSION && version != MILLIS_DELAYS_VERSION) {
+      throw new IOException("Unsupported version " + version + " of binary flow file " + file);
+    }
+    int stepCount = header.getInt();
+    long payloadsStart = HEADER_SIZE + (long) stepCount * STEP_ENTRY_SIZE;
+    if (stepCount < 0 || payloadsStart > table.size()) {
+      throw new IOException("Invalid number of steps " + stepCount + " in " + file);
+    }
+    List<PacketStep> steps = new ArrayList<>(stepCount);
+    ByteBuffer entries = null;
+    for (int i = 0; i < stepCount; i++) {
+      if (entries == null || !entries.hasRemaining()) {
+        int entryCount = Math.min(stepCount - i, MappedFile.DEFAULT_WINDOW_SIZE / STEP_ENTRY_SIZE);
+        entries = table.slice(HEADER_SIZE + (long) i * STEP_ENTRY_SIZE,
+            entryCount * STEP_ENTRY_SIZE);
+      }
+      byte type = entries.get();
+      int port = entries.getInt();
+      // delay of server steps or timeout of client steps
+      long delay = entries.getLong();
+      long payloadOffset = payloadsStart + entries.getLong();
+      int payloadLength = entries.getInt();
+      if (payloadOffset < payloadsStart || payloadLength < 0
+          || payloadOffset > payloads.size() - payloadLength) {
+        throw new IOException("Step " + i + " payload is out of bounds in " + file);
+      }
+      Packet data = Packet.wrap(payloads.slice(payloadOffset, payloadLength));
+      if (type == SERVER_STEP_TYPE) {
+        steps.add(new SendPacketStep(data, version == MILLIS_DELAYS_VERSION
+            ? TimeUnit.MILLISECONDS.toMicros(delay) : delay, port));
+      } else if (type == CLIENT_STEP_TYPE) {
+        ReceivePacketStep step = new ReceivePacketStep(data, port);
+        step.setTimeoutMillis(delay);
+        steps.add(step);
+      } else {
+        throw new IOException("Unknown type " + type + " of step " + i + " in " + file);
+      }
+    }
+    return new Flow(steps);
+  }
+
+}
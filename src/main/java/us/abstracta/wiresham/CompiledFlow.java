@@ -0,0 +1,231 @@
+package us.abstracta.wiresham;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable version of a {@link Flow} prepared to be replayed by many connections.
+ * <p>
+ * Steps are kept in an array with the port of each step already resolved, and the ports used by
+ * the flow are precomputed, so a connection only needs to keep the index of its current step.
+ * <p>
+ * Steps are shared among all connections replaying the flow, so they must not be modified once
+ * the flow is compiled.
+ */
+public final class CompiledFlow {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CompiledFlow.class);
+
+  private final PacketStep[] steps;
+  private final int[] stepsPorts;
+  private final AtomicReferenceArray<ByteBuffer> stepsPayloads;
+  private final List<Integer> ports;
+  private final int firstPort;
+
+  private CompiledFlow(PacketStep[] steps, int[] stepsPorts, ByteBuffer[] stepsPayloads,
+      List<Integer> ports, int firstPort) {
+    this.steps = steps;
+    this.stepsPorts = stepsPorts;
+    this.stepsPayloads = new AtomicReferenceArray<>(stepsPayloads);
+    this.ports = ports;
+    this.firstPort = firstPort;
+  }
+
+  /**
+   * Compiles the given flow.
+   *
+   * @param flow the flow to compile.
+   * @param portArgument port to use for steps before the first one specifying a port.
+   * @return the compiled flow.
+   */
+  public static CompiledFlow compile(Flow flow, int portArgument) {
+    return compile(flow, portArgument, false);
+  }
+
+  /**
+   * Compiles the given flow, optionally coalescing consecutive sent packets.
+   * <p>
+   * When coalescing, each run of consecutive {@link SendPacketStep} on the same port where every
+   * packet after the first one has no delay is merged into a single step, so the whole run is
+   * sent with one write instead of one write (and usually one TCP segment) per packet.
+   *
+   * @param flow the flow to compile.
+   * @param portArgument port to use for steps before the first one specifying a port.
+   * @param coalesceSendPackets specifies if consecutive sent packets without delay should be
+   * merged.
+   * @return the compiled flow.
+   */
+  public static CompiledFlow compile(Flow flow, int portArgument, boolean coalesceSendPackets) {
+    return compile(flow, portArgument, coalesceSendPackets, null);
+  }
+
+  /**
+   * Same as {@link #compile(Flow, int, boolean)}, but reusing steps of a previously compiled
+   * version of the flow.
+   * <p>
+   * Each step equal to a step of the previous flow (on the same port) is replaced by the
+   * previous step, along with its staged payload, so recompiling a flow with a few changes (as
+   * when the flow file is reloaded) does not allocate again direct buffers nor matchers of
+   * unchanged steps.
+   *
+   * @param previous previously compiled flow, or null if there is no such flow.
+   */
+  static CompiledFlow compile(Flow flow, int portArgument, boolean coalesceSendPackets,
+      CompiledFlow previous) {
+    return compile(flow, portArgument, coalesceSendPackets, DelayScaling.NONE, previous);
+  }
+
+  /**
+   * Same as {@link #compile(Flow, int, boolean, CompiledFlow)}, but scaling delays of sent
+   * packets.
+   * <p>
+   * Delays are scaled before coalescing, so packets whose delay is scaled to zero are coalesced.
+   *
+   * @param delayScaling scaling applied to delays of sent packets.
+   */
+  static CompiledFlow compile(Flow flow, int portArgument, boolean coalesceSendPackets,
+      DelayScaling delayScaling, CompiledFlow previous) {
+    List<PacketStep> steps = new ArrayList<>();
+    List<Integer> stepsPorts = new ArrayList<>();
+    Set<Integer> ports = new LinkedHashSet<>();
+    List<Packet> pendingPackets = new ArrayList<>();
+    int port = portArgument;
+    for (PacketStep flowStep : flow.getSteps()) {
+      PacketStep step = flowStep;
+      if (step.getPort() != null) {
+        port = step.getPort();
+        if (step instanceof SendPacketStep) {
+          ports.add(port);
+        }
+      }
+      if (step instanceof SendPacketStep) {
+        step = delayScaling.apply((SendPacketStep) step, port);
+      }
+      int lastIndex = steps.size() - 1;
+      if (coalesceSendPackets && lastIndex >= 0 && isCoalescible(steps.get(lastIndex),
+          stepsPorts.get(lastIndex), step, port)) {
+        if (pendingPackets.isEmpty()) {
+          pendingPackets.add(steps.get(lastIndex).data);
+        }
+        pendingPackets.add(step.data);
+        continue;
+      }
+      mergePendingPackets(steps, pendingPackets);
+      steps.add(step);
+      stepsPorts.add(port);
+    }
+    mergePendingPackets(steps, pendingPackets);
+    int[] stepsPortsArray = stepsPorts.stream().mapToInt(Integer::intValue).toArray();
+    PacketStep[] stepsArray = steps.toArray(new PacketStep[0]);
+    ByteBuffer[] stepsPayloads = new ByteBuffer[stepsArray.length];
+    if (previous != null) {
+      previous.reuseSteps(stepsArray, stepsPortsArray, stepsPayloads);
+    }
+    return new CompiledFlow(stepsArray, stepsPortsArray, stepsPayloads,
+        Collections.unmodifiableList(new ArrayList<>(ports)),
+        steps.isEmpty() ? portArgument : stepsPorts.get(0));
+  }
+
+  private void reuseSteps(PacketStep[] newSteps, int[] newStepsPorts,
+      ByteBuffer[] newStepsPayloads) {
+    Map<PacketStep, Integer> indexes = new HashMap<>();
+    for (int i = steps.length - 1; i >= 0; i--) {
+      indexes.put(steps[i], i);
+    }
+    int reusedCount = 0;
+    for (int i = 0; i < newSteps.length; i++) {
+      Integer index = indexes.get(newSteps[i]);
+      if (index != null && stepsPorts[index] == newStepsPorts[i]
+          && Objects.equals(steps[index].getPort(), newSteps[i].getPort())) {
+        newSteps[i] = steps[index];
+        newStepsPayloads[i] = stepsPayloads.get(index);
+        reusedCount++;
+      }
+    }
+    LOG.debug("reused {} of {} steps from previous flow", reusedCount, newSteps.length);
+  }
+
+  private static boolean isCoalescible(PacketStep previous, int previousPort, PacketStep step,
+      int port) {
+    return previous instanceof SendPacketStep && step instanceof SendPacketStep
+        && previousPort == port && ((SendPacketStep) step).getDelayMicros() == 0;
+  }
+
+  private static void mergePendingPackets(List<PacketStep> steps, List<Packet> pendingPackets) {
+    if (pendingPackets.isEmpty()) {
+      return;
+    }
+    int lastIndex = steps.size() - 1;
+    SendPacketStep first = (SendPacketStep) steps.get(lastIndex);
+    steps.set(lastIndex, new SendPacketStep(Packet.concat(pendingPackets),
+        first.getDelayMicros(), first.port));
+    pendingPackets.clear();
+  }
+
+  public int size() {
+    return steps.length;
+  }
+
+  public PacketStep getStep(int index) {
+    return steps[index];
+  }
+
+  public int getStepPort(int index) {
+    return stepsPorts[index];
+  }
+
+  /**
+   * Gets the data of a step staged in a direct buffer, so it can be written to channels without
+   * copying it on each write.
+   * <p>
+   * The direct buffer is created on first request (unless step data is already in a direct
+   * buffer) and shared by all connections, so each invocation returns a new read-only view with
+   * its own position and limit.
+   */
+  public ByteBuffer getStepPayload(int index) {
+    ByteBuffer data = steps[index].data.getBuffer();
+    if (data.isDirect()) {
+      // data is already off-heap, as when loaded from a memory mapped file
+      return data.asReadOnlyBuffer();
+    }
+    ByteBuffer payload = stepsPayloads.get(index);
+    if (payload == null) {
+      payload = ByteBuffer.allocateDirect(data.remaining());
+      payload.put(data);
+      payload.flip();
+      if (!stepsPayloads.compareAndSet(index, null, payload)) {
+        payload = stepsPayloads.get(index);
+      }
+    }
+    return payload.asReadOnlyBuffer();
+  }
+
+  /**
+   * @return the port where the flow starts.
+   */
+  public int getFirstPort() {
+    return firstPort;
+  }
+
+  /**
+   * @return the ports explicitly defined by server steps of the flow, in order of appearance.
+   */
+  public List<Integer> getPorts() {
+    return ports;
+  }
+
+  public int getPortCount() {
+    return ports.size();
+  }
+
+}
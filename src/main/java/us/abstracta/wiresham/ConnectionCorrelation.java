@@ -0,0 +1,25 @@
+package us.abstracta.wiresham;
+
+/**
+ * Specifies how {@link VirtualTcpService} assigns connections received on secondary ports of
+ * flows (ports other than the one where flows start) to flows waiting for them.
+ */
+public enum ConnectionCorrelation {
+
+  /**
+   * Connections are assigned to the flow waiting the longest for a connection on the port,
+   * regardless of the client which started the flow.
+   */
+  ANY,
+  /**
+   * Connections are only assigned to flows started by a connection from the same client host.
+   * When no such flow is waiting for a connection on the port, a new flow is started.
+   */
+  CLIENT_ADDRESS,
+  /**
+   * Connections are assigned to flows started from the same client host when possible, and to
+   * any other waiting flow otherwise.
+   */
+  CLIENT_ADDRESS_OR_ANY
+
+}
@@ -1,55 +1,128 @@
 package us.abstracta.wiresham;
 
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
 /**
  * Drives the flow of a connection according to a configured flow.
+ * <p>
+ * When a delay scheduler is provided, the driver does not block its thread while waiting for the
+ * delay of a server packet. Instead, it schedules its resumption and returns, and is later run
+ * again in the given executor to continue with the flow.
  */
-public class ConnectionFlowDriver implements Runnable {
+public class ConnectionFlowDriver implements Runnable, ConnectionReaper.Reapable {
 
   private static final Logger LOG = LoggerFactory.getLogger(ConnectionFlowDriver.class);
 
   private final FlowConnectionProvider connectionProvider;
-  private final Queue<PacketStep> flowSteps;
-  private final int portArgument;
+  private final CompiledFlow flow;
+  private final ScheduledExecutorService delayScheduler;
+  private final Executor executor;
+  private final Consumer<ConnectionFlowDriver> completionListener;
+  private int stepIndex;
+  private int previousPort;
+  private boolean started;
+  private boolean delayElapsed;
+  private StepListener stepListener;
+  private ServiceMetrics metrics;
+  private boolean absoluteSchedule;
+  private ReplayClock clock;
+  private long sendNanos;
+  private boolean closedByClient;
+  private FlowDeadlines deadlines;
+  private volatile boolean timedOut;
 
   public ConnectionFlowDriver(FlowConnectionProvider connectionProvider,
       Flow flow, int portArgument) {
-    this.portArgument = portArgument;
-    this.flowSteps = new LinkedList<>(flow.getSteps());
+    this(connectionProvider, CompiledFlow.compile(flow, portArgument));
+  }
+
+  public ConnectionFlowDriver(FlowConnectionProvider connectionProvider, CompiledFlow flow) {
+    this(connectionProvider, flow, null, null, d -> {
+    });
+  }
+
+  /**
+   * Creates a driver which releases its thread while waiting for server packets delays.
+   *
+   * @param connectionProvider provides the connections used by the flow.
+   * @param flow the flow to drive.
+   * @param delayScheduler scheduler used to wait for delays. When null, the driver thread sleeps
+   * during delays.
+   * @param executor executor where the driver is run again once a delay elapses.
+   * @param completionListener notified when the flow ends, either completed or aborted.
+   */
+  ConnectionFlowDriver(FlowConnectionProvider connectionProvider, CompiledFlow flow,
+      ScheduledExecutorService delayScheduler, Executor executor,
+      Consumer<ConnectionFlowDriver> completionListener) {
+    this.flow = flow;
     this.connectionProvider = connectionProvider;
+    this.delayScheduler = delayScheduler;
+    this.executor = executor;
+    this.completionListener = completionListener;
   }
 
   @Override
   public void run() {
+    boolean suspended = false;
     try {
-      PacketStep first = flowSteps.peek();
-      int previousPort = (first == null || first.getPort() == null)
-          ? portArgument : first.getPort();
-      LOG.info("starting new flow on {}", previousPort);
-      while (!flowSteps.isEmpty()) {
-        PacketStep step = flowSteps.poll();
-        if (step.getPort() != null && step.getPort() != previousPort) {
-          LOG.info("changing to connections on port {}", step.getPort());
-          previousPort = step.getPort();
+      if (!started) {
+        started = true;
+        previousPort = flow.getFirstPort();
+        LOG.info("starting new flow on {}", previousPort);
+        clock = new ReplayClock(absoluteSchedule);
+      }
+      for (; stepIndex < flow.size(); stepIndex++) {
+        int port = flow.getStepPort(stepIndex);
+        if (port != previousPort) {
+          LOG.info("changing to connections on port {}", port);
+          previousPort = port;
+        }
+        PacketStep step = flow.getStep(stepIndex);
+        startWait(step);
+        FlowConnection flowConnection = connectionProvider.get(port);
+        if (step instanceof SendPacketStep) {
+          endWait();
+        }
+        long stepStartNanos = stepListener != null || metrics != null ? System.nanoTime() : 0;
+        if (step instanceof SendPacketStep) {
+          suspended = send((SendPacketStep) step, flowConnection);
+          if (suspended) {
+            return;
+          }
+        } else {
+          step.process(flowConnection);
+          endWait();
+          clock.received();
+        }
+        if (stepListener != null) {
+          stepListener.stepCompleted(stepIndex, step, System.nanoTime() - stepStartNanos);
+        }
+        if (metrics != null && step instanceof ReceivePacketStep) {
+          metrics.packetReceived(System.nanoTime() - stepStartNanos);
         }
-        FlowConnection flowConnection = connectionProvider.get(previousPort);
-        step.process(flowConnection);
       }
       LOG.info("flow completed!");
     } catch (ConnectionClosedException e) {
+      closedByClient = true;
       LOG.info("Connection closed by client while waiting for client packet");
       if (e.getDiscardedPacket().getBytes().length > 0) {
         LOG.debug("Discarding client packet {}", e.getDiscardedPacket(), e);
       }
-    } catch (IOException e) {
-      if (e.getMessage().contains("Socket is closed")) {
+    } catch (IOException | CancellationException e) {
+      if (timedOut) {
+        LOG.trace("Received expected exception when connections closed due to timeout", e);
+      } else if (e instanceof CancellationException
+          || e.getMessage().contains("Socket is closed")) {
         LOG.trace("Received expected exception when server socket has been closed", e);
       } else {
         LOG.error("Problem while processing requests from client. Closing connection.", e);
@@ -60,15 +133,146 @@ public class ConnectionFlowDriver implements Runnable {
     } catch (ExecutionException e) {
       LOG.error("Problem while waiting for socket to be created", e);
     } finally {
-      try {
-        closeFlowConnections();
-      } catch (IOException e) {
-        LOG.error("Problem while releasing sockets", e);
+      if (!suspended) {
+        complete();
       }
       MDC.clear();
     }
   }
 
+  private void recordFlowEnd() {
+    if (metrics == null) {
+      return;
+    }
+    if (isCompleted()) {
+      metrics.flowCompleted();
+    } else if (timedOut) {
+      metrics.flowTimedOut();
+    } else if (closedByClient) {
+      metrics.flowClosedByClient();
+    } else {
+      metrics.flowAborted();
+    }
+  }
+
+  private void startWait(PacketStep step) {
+    if (deadlines != null) {
+      deadlines.startWait(step instanceof ReceivePacketStep
+          ? ((ReceivePacketStep) step).getTimeoutMillis() : 0);
+    }
+  }
+
+  private void endWait() {
+    if (deadlines != null) {
+      deadlines.endWait();
+    }
+  }
+
+  /*
+   * Returns true when the driver is suspended until the delay of the step elapses.
+   */
+  private boolean send(SendPacketStep step, FlowConnection connection)
+      throws IOException, InterruptedException {
+    if (!delayElapsed) {
+      sendNanos = clock.scheduleSend(step.getDelayMicros());
+      long wakeUpDelayNanos = clock.getWakeUpNanos(sendNanos) - System.nanoTime();
+      if (delayScheduler != null && wakeUpDelayNanos > 0 && scheduleResume(wakeUpDelayNanos)) {
+        return true;
+      }
+    }
+    delayElapsed = false;
+    clock.awaitSend(sendNanos);
+    if (metrics != null && step.getDelayMicros() > 0) {
+      metrics.delayedPacketSent(Math.max(0, System.nanoTime() - sendNanos));
+    }
+    step.send(connection);
+    return false;
+  }
+
+  private boolean scheduleResume(long delayNanos) {
+    delayElapsed = true;
+    try {
+      delayScheduler.schedule(() -> {
+        try {
+          executor.execute(this);
+        } catch (RejectedExecutionException e) {
+          LOG.trace("Flow resumption rejected since service has been stopped", e);
+          complete();
+        }
+      }, delayNanos, TimeUnit.NANOSECONDS);
+      return true;
+    } catch (RejectedExecutionException e) {
+      LOG.trace("Flow delay rejected since service has been stopped", e);
+      return false;
+    }
+  }
+
+  private void complete() {
+    try {
+      closeFlowConnections();
+    } catch (IOException e) {
+      LOG.error("Problem while releasing sockets", e);
+    }
+    recordFlowEnd();
+    completionListener.accept(this);
+  }
+
+  /**
+   * Sets a listener to be notified each time a step is completed, for instance to measure
+   * response times.
+   */
+  void setStepListener(StepListener stepListener) {
+    this.stepListener = stepListener;
+  }
+
+  /**
+   * Specifies if delays of sent packets are counted from the instant previous packets were
+   * scheduled to be sent, instead of from the moment each step is reached.
+   *
+   * @see VirtualTcpService#setAbsoluteSchedule(boolean)
+   */
+  public void setAbsoluteSchedule(boolean absoluteSchedule) {
+    this.absoluteSchedule = absoluteSchedule;
+  }
+
+  /**
+   * Sets metrics where to record the flow progress.
+   */
+  void setMetrics(ServiceMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Sets deadlines of the flow, which are enforced when the driver is registered in a
+   * {@link ConnectionReaper}.
+   */
+  void setDeadlines(FlowDeadlines deadlines) {
+    this.deadlines = deadlines;
+  }
+
+  @Override
+  public boolean isExpired(long nowNanos) {
+    return deadlines != null && deadlines.isExpired(nowNanos);
+  }
+
+  @Override
+  public void reap() {
+    LOG.info("Closing connections since flow timed out");
+    timedOut = true;
+    try {
+      closeFlowConnections();
+    } catch (IOException e) {
+      LOG.error("Problem while releasing sockets", e);
+    }
+  }
+
+  /**
+   * @return true if all steps of the flow have been completed, false otherwise.
+   */
+  public boolean isCompleted() {
+    return stepIndex >= flow.size();
+  }
+
   public FlowConnectionProvider getConnectionProvider() {
     return connectionProvider;
   }
@@ -76,4 +280,19 @@ public class ConnectionFlowDriver implements Runnable {
   public void closeFlowConnections() throws IOException {
     connectionProvider.closeConnections();
   }
+
+  interface StepListener {
+
+    /**
+     * Invoked when a step is completed.
+     *
+     * @param stepIndex the index of the step in the flow.
+     * @param step the completed step.
+     * @param durationNanos time taken by the step, which for client packets steps is the time
+     * spent waiting for the packet.
+     */
+    void stepCompleted(int stepIndex, PacketStep step, long durationNanos);
+
+  }
+
 }
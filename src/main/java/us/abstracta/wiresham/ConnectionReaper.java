@@ -0,0 +1,89 @@
+package us.abstracta.wiresham;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically checks the connections of a service and closes the ones which exceeded their
+ * timeouts.
+ * <p>
+ * Drivers just keep their deadlines in volatile fields, which are cheap to update on each step,
+ * and a single thread shared by all connections of the service checks them, so timeouts don't
+ * require a timer per connection nor per step. Timeouts are thus enforced with a precision of
+ * the period of the reaper.
+ */
+final class ConnectionReaper {
+
+  public static final long DEFAULT_PERIOD_MILLIS = 100;
+
+  private static final Logger LOG = LoggerFactory.getLogger(ConnectionReaper.class);
+
+  private final Set<Reapable> reapables = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService scheduler;
+
+  ConnectionReaper(long periodMillis) {
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("Connection-Reaper-%d")
+        .setDaemon(true)
+        .build());
+    scheduler.scheduleWithFixedDelay(this::reapExpired, periodMillis, periodMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  void register(Reapable reapable) {
+    reapables.add(reapable);
+  }
+
+  void unregister(Reapable reapable) {
+    reapables.remove(reapable);
+  }
+
+  private void reapExpired() {
+    long nowNanos = System.nanoTime();
+    for (Reapable reapable : reapables) {
+      if (reapable.isExpired(nowNanos) && reapables.remove(reapable)) {
+        try {
+          reapable.reap();
+        } catch (RuntimeException e) {
+          LOG.error("Problem while closing timed out connection", e);
+        }
+      }
+    }
+  }
+
+  void stop() {
+    scheduler.shutdownNow();
+    reapables.clear();
+  }
+
+  /**
+   * Something (usually a connection driver) which may exceed its timeouts.
+   */
+  interface Reapable {
+
+    /**
+     * Checks if a timeout has been exceeded.
+     * <p>
+     * This method is invoked from the reaper thread, so implementations should only rely on
+     * thread safe (usually volatile) state.
+     *
+     * @param nowNanos current value of {@link System#nanoTime()}.
+     */
+    boolean isExpired(long nowNanos);
+
+    /**
+     * Closes the connections after a timeout is exceeded, recording the timeout.
+     * <p>
+     * This method is invoked from the reaper thread, at most once.
+     */
+    void reap();
+
+  }
+
+}
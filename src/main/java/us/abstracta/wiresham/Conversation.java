@@ -0,0 +1,76 @@
+package us.abstracta.wiresham;
+
+import java.util.Objects;
+
+/**
+ * A flow captured from a single TCP connection, along with the time the connection started in
+ * the capture.
+ * <p>
+ * Conversations allow replaying captures with many simultaneous clients, where each connection
+ * is replayed on its own, instead of as a single interleaved flow.
+ *
+ * @see Flow#conversationsFromPcap(java.io.File, String, String)
+ * @see Flow#conversationsFromWiresharkJsonDump(java.io.File, String)
+ */
+public class Conversation {
+
+  private final Flow flow;
+  private final long startOffsetMillis;
+  private final String clientAddress;
+
+  /**
+   * @param flow steps of the conversation.
+   * @param startOffsetMillis time since the beginning of the capture when the connection started.
+   * @param clientAddress address (ip:port) of the client in the capture.
+   */
+  public Conversation(Flow flow, long startOffsetMillis, String clientAddress) {
+    this.flow = flow;
+    this.startOffsetMillis = startOffsetMillis;
+    this.clientAddress = clientAddress;
+  }
+
+  public Flow getFlow() {
+    return flow;
+  }
+
+  public long getStartOffsetMillis() {
+    return startOffsetMillis;
+  }
+
+  public String getClientAddress() {
+    return clientAddress;
+  }
+
+  /**
+   * @return the same conversation from the client point of view.
+   * @see Flow#reversed()
+   */
+  public Conversation reversed() {
+    return new Conversation(flow.reversed(), startOffsetMillis, clientAddress);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    Conversation that = (Conversation) o;
+    return startOffsetMillis == that.startOffsetMillis && flow.equals(that.flow)
+        && Objects.equals(clientAddress, that.clientAddress);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(flow, startOffsetMillis, clientAddress);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("client: %s, startOffsetMillis: %d, flow: %s", clientAddress,
+        startOffsetMillis, flow);
+  }
+
+}
@@ -0,0 +1,76 @@
+package us.abstracta.wiresham;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scales and clamps delays of sent packets when a flow is compiled, so the same flow can be
+ * replayed with its captured timing, faster, slower or with no delays at all.
+ * <p>
+ * Each delay is first multiplied by the time scale of the port of its step (or the global time
+ * scale if the port has no specific one), and then limited to the min and max delays.
+ */
+final class DelayScaling {
+
+  static final DelayScaling NONE = new DelayScaling(1, Collections.emptyMap(), 0, 0);
+
+  private final double timeScale;
+  private final Map<Integer, Double> portsTimeScales;
+  private final long minDelayMicros;
+  private final long maxDelayMicros;
+  private final boolean identity;
+
+  /**
+   * @param timeScale factor applied to delays of steps on ports without a specific time scale.
+   * @param portsTimeScales time scales by port.
+   * @param minDelayMillis minimum delay of every sent packet.
+   * @param maxDelayMillis maximum delay of every sent packet, or zero for no maximum.
+   * @throws IllegalArgumentException if min delay is greater than max delay.
+   */
+  DelayScaling(double timeScale, Map<Integer, Double> portsTimeScales, long minDelayMillis,
+      long maxDelayMillis) {
+    if (maxDelayMillis > 0 && minDelayMillis > maxDelayMillis) {
+      throw new IllegalArgumentException("Min delay " + minDelayMillis
+          + " is greater than max delay " + maxDelayMillis);
+    }
+    this.timeScale = timeScale;
+    this.portsTimeScales = new HashMap<>(portsTimeScales);
+    this.minDelayMicros = TimeUnit.MILLISECONDS.toMicros(minDelayMillis);
+    this.maxDelayMicros = maxDelayMillis > 0 ? TimeUnit.MILLISECONDS.toMicros(maxDelayMillis)
+        : Long.MAX_VALUE;
+    this.identity = timeScale == 1 && portsTimeScales.values().stream().allMatch(s -> s == 1)
+        && minDelayMillis == 0 && maxDelayMillis <= 0;
+  }
+
+  /**
+   * @return the given time scale.
+   * @throws IllegalArgumentException if the time scale is negative.
+   */
+  static double validateTimeScale(double timeScale) {
+    if (timeScale < 0) {
+      throw new IllegalArgumentException("Invalid time scale " + timeScale
+          + ". Time scale must not be negative.");
+    }
+    return timeScale;
+  }
+
+  /**
+   * @param step the step to scale.
+   * @param port resolved port of the step.
+   * @return the given step when its delay does not change, or a copy of it with the scaled
+   * delay otherwise, since flow steps must not be modified.
+   */
+  SendPacketStep apply(SendPacketStep step, int port) {
+    if (identity) {
+      return step;
+    }
+    double scale = portsTimeScales.getOrDefault(port, timeScale);
+    long delayMicros = Math.max(minDelayMicros,
+        Math.min(maxDelayMicros, Math.round(step.getDelayMicros() * scale)));
+    return delayMicros == step.getDelayMicros() ? step
+        : new SendPacketStep(step.data, delayMicros, step.port);
+  }
+
+}
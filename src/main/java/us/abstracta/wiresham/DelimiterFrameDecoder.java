@@ -0,0 +1,71 @@
+package us.abstracta.wiresham;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes frames which end with a given delimiter, like text protocols ended by new lines or
+ * TN3270 records ended by IAC EOR ({@code FFEF}). Decoded frames include the delimiter.
+ */
+public class DelimiterFrameDecoder implements FrameDecoder {
+
+  private final byte[] delimiter;
+  private final int maxFrameLength;
+
+  /**
+   * @param delimiter bytes which end each frame.
+   * @throws IllegalArgumentException if the delimiter is empty.
+   */
+  public DelimiterFrameDecoder(byte[] delimiter) {
+    this(delimiter, LengthPrefixedFrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+  }
+
+  /**
+   * @param delimiter bytes which end each frame.
+   * @param maxFrameLength maximum length of frames, including the delimiter.
+   * @throws IllegalArgumentException if the delimiter is empty or the max frame length is not
+   * valid.
+   */
+  public DelimiterFrameDecoder(byte[] delimiter, int maxFrameLength) {
+    if (delimiter.length == 0) {
+      throw new IllegalArgumentException("delimiter must not be empty");
+    }
+    if (maxFrameLength < delimiter.length) {
+      throw new IllegalArgumentException("max frame length must not be less than the delimiter "
+          + "length but was " + maxFrameLength);
+    }
+    this.delimiter = delimiter.clone();
+    this.maxFrameLength = maxFrameLength;
+  }
+
+  @Override
+  public ByteBuffer decode(ByteBuffer data) throws TooLongFrameException {
+    return decode(data, 0);
+  }
+
+  @Override
+  public ByteBuffer decode(ByteBuffer data, int scannedLength) throws TooLongFrameException {
+    // no need to look for delimiters ending after max frame length
+    int end = Math.min(data.limit(), data.position() + maxFrameLength) - delimiter.length;
+    // a delimiter may start in the last scanned bytes and end in the new ones
+    int start = data.position() + Math.max(0, scannedLength - delimiter.length + 1);
+    for (int i = start; i <= end; i++) {
+      if (isDelimiterAt(data, i)) {
+        return FrameDecoder.nextFrame(data, i - data.position() + delimiter.length);
+      }
+    }
+    if (data.remaining() > maxFrameLength) {
+      throw new TooLongFrameException(data.remaining(), maxFrameLength);
+    }
+    return null;
+  }
+
+  private boolean isDelimiterAt(ByteBuffer data, int position) {
+    for (int i = 0; i < delimiter.length; i++) {
+      if (data.get(position + i) != delimiter[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
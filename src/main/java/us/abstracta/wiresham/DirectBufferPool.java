@@ -0,0 +1,63 @@
+package us.abstracta.wiresham;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of direct buffers shared by connections of a server.
+ * <p>
+ * Direct buffers avoid the copy the JDK does from heap buffers into a temporary direct buffer on
+ * each channel read or write, but they are expensive to allocate and release. Pooling them keeps
+ * that cost away from connection churn. Buffers are pooled by capacity, and buffers released
+ * when the pool already holds the maximum amount of bytes are just discarded.
+ * <p>
+ * This class is thread safe.
+ */
+final class DirectBufferPool {
+
+  private final long maxPooledBytes;
+  private final AtomicLong pooledBytes = new AtomicLong();
+  private final Map<Integer, Queue<ByteBuffer>> buffers = new ConcurrentHashMap<>();
+
+  DirectBufferPool(long maxPooledBytes) {
+    this.maxPooledBytes = maxPooledBytes;
+  }
+
+  /**
+   * Gets a cleared direct buffer with the given capacity, reusing a pooled one when available.
+   */
+  ByteBuffer lease(int capacity) {
+    Queue<ByteBuffer> queue = buffers.get(capacity);
+    ByteBuffer buffer = queue != null ? queue.poll() : null;
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(capacity);
+    }
+    pooledBytes.addAndGet(-capacity);
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool. The buffer must not be used after releasing it.
+   */
+  void release(ByteBuffer buffer) {
+    int capacity = buffer.capacity();
+    if (!buffer.isDirect() || capacity == 0) {
+      return;
+    }
+    if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+      pooledBytes.addAndGet(-capacity);
+      return;
+    }
+    buffers.computeIfAbsent(capacity, c -> new ConcurrentLinkedQueue<>()).offer(buffer);
+  }
+
+  long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+}
@@ -0,0 +1,28 @@
+package us.abstracta.wiresham;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes frames which have all the same length.
+ */
+public class FixedLengthFrameDecoder implements FrameDecoder {
+
+  private final int length;
+
+  /**
+   * @param length length of each frame.
+   * @throws IllegalArgumentException if the length is not positive.
+   */
+  public FixedLengthFrameDecoder(int length) {
+    if (length <= 0) {
+      throw new IllegalArgumentException("length must be positive but was " + length);
+    }
+    this.length = length;
+  }
+
+  @Override
+  public ByteBuffer decode(ByteBuffer data) {
+    return data.remaining() >= length ? FrameDecoder.nextFrame(data, length) : null;
+  }
+
+}
@@ -1,32 +1,29 @@
 package us.abstracta.wiresham;
 
-import com.fasterxml.jackson.core.JsonPointer;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.BaseEncoding;
-import java.io.EOFException;
+import com.google.common.net.InetAddresses;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.TimeoutException;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
-import org.pcap4j.core.BpfProgram.BpfCompileMode;
-import org.pcap4j.core.NotOpenException;
-import org.pcap4j.core.PcapHandle;
-import org.pcap4j.core.PcapNativeException;
-import org.pcap4j.core.Pcaps;
-import org.pcap4j.packet.IpV4Packet;
-import org.pcap4j.packet.TcpPacket;
 import org.yaml.snakeyaml.TypeDescription;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
@@ -40,21 +37,31 @@ import org.yaml.snakeyaml.representer.Representer;
  */
 public class Flow {
 
+  public static final String BINARY_FILE_EXTENSION = ".wsf";
+
   private static final Map<String, Class<?>> YAML_TAGS = ImmutableMap.<String, Class<?>>builder()
       .put("!server", SendPacketStep.class)
       .put("!client", ReceivePacketStep.class)
       .build();
 
-  private static final JsonPointer WIRESHARK_LAYERS_PATH = JsonPointer.valueOf("/_source/layers");
-  private static final JsonPointer WIRESHARK_TCP_PAYLOAD_PATH = JsonPointer
-      .valueOf("/tcp/tcp.payload");
-  private static final JsonPointer WIRESHARK_SOURCE_IP_PATH = JsonPointer.valueOf("/ip/ip.src");
-  private static final JsonPointer WIRESHARK_SOURCE_PORT_PATH = JsonPointer
-      .valueOf("/tcp/tcp.srcport");
-  private static final JsonPointer WIRESHARK_DESTINE_PORT_PATH = JsonPointer
-      .valueOf("/tcp/tcp.dstport");
-  private static final JsonPointer WIRESHARK_TIME_DELTA_PATH = JsonPointer
-      .valueOf("/frame/frame.time_delta_displayed");
+  private static final String WIRESHARK_LAYERS_PATH = "/_source/layers";
+  private static final String WIRESHARK_TCP_PAYLOAD_PATH =
+      WIRESHARK_LAYERS_PATH + "/tcp/tcp.payload";
+  private static final String WIRESHARK_SOURCE_IP_PATH = WIRESHARK_LAYERS_PATH + "/ip/ip.src";
+  private static final String WIRESHARK_DESTINE_IP_PATH = WIRESHARK_LAYERS_PATH + "/ip/ip.dst";
+  private static final String WIRESHARK_SOURCE_PORT_PATH =
+      WIRESHARK_LAYERS_PATH + "/tcp/tcp.srcport";
+  private static final String WIRESHARK_DESTINE_PORT_PATH =
+      WIRESHARK_LAYERS_PATH + "/tcp/tcp.dstport";
+  private static final String WIRESHARK_SEQUENCE_NUMBER_PATH =
+      WIRESHARK_LAYERS_PATH + "/tcp/tcp.seq";
+  private static final String WIRESHARK_TCP_FLAGS_PATH = WIRESHARK_LAYERS_PATH + "/tcp/tcp.flags";
+  private static final String WIRESHARK_TIME_DELTA_PATH =
+      WIRESHARK_LAYERS_PATH + "/frame/frame.time_delta_displayed";
+  private static final Set<String> WIRESHARK_FIELDS_PATHS = ImmutableSet.of(
+      WIRESHARK_TCP_PAYLOAD_PATH, WIRESHARK_SOURCE_IP_PATH, WIRESHARK_DESTINE_IP_PATH,
+      WIRESHARK_SOURCE_PORT_PATH, WIRESHARK_DESTINE_PORT_PATH, WIRESHARK_SEQUENCE_NUMBER_PATH,
+      WIRESHARK_TCP_FLAGS_PATH, WIRESHARK_TIME_DELTA_PATH);
   private static final String IP_PORT_SEPARATOR = ":";
 
   private final List<PacketStep> steps;
@@ -73,74 +80,184 @@ public class Flow {
     return steps.toString();
   }
 
+  /**
+   * Loads a flow from a Wireshark JSON export.
+   * <p>
+   * The file is parsed as a stream, packet by packet, only keeping the fields required to build
+   * the flow, so memory usage does not depend on the size of the file.
+   * <p>
+   * TCP streams are reassembled by sequence number (check {@link TcpStreamReassembler}), so
+   * retransmissions are ignored and contiguous packets sent by the same side of a connection are
+   * merged in one step.
+   */
   public static Flow fromWiresharkJsonDump(File file, String serverAddress)
       throws IOException {
-    ObjectMapper mapper = new ObjectMapper();
-    JsonNode json = mapper.readTree(file);
-    return new Flow(StreamSupport.stream(json.spliterator(), false)
-        .filter(packet -> !packet.at(WIRESHARK_LAYERS_PATH).at(WIRESHARK_TCP_PAYLOAD_PATH).asText()
-            .isEmpty())
-        .map(packet -> {
-          JsonNode layers = packet.at(WIRESHARK_LAYERS_PATH);
-          String sourceIp = layers.at(WIRESHARK_SOURCE_IP_PATH).asText();
-          String sourcePort = layers.at(WIRESHARK_SOURCE_PORT_PATH).asText();
-          String hexDump = layers.at(WIRESHARK_TCP_PAYLOAD_PATH).asText()
-              .replace(":", "");
-          long timeDeltaMillis =
-              Long.parseLong(layers.at(WIRESHARK_TIME_DELTA_PATH).asText().replace(".", ""))
-                  / 1000000;
-          return isServerAddress(sourceIp, sourcePort, serverAddress) ? new SendPacketStep(
-              hexDump, timeDeltaMillis, Integer.parseInt(sourcePort))
-              : new ReceivePacketStep(hexDump,
-                  Integer.parseInt(layers.at(WIRESHARK_DESTINE_PORT_PATH).asText()));
-        })
-        .collect(Collectors.toList()));
+    TcpStreamReassembler reassembler = new TcpStreamReassembler(
+        buildServerSegmentPredicate(serverAddress));
+    readWiresharkSegments(file, reassembler::add);
+    return new Flow(reassembler.finish());
   }
 
-  private static boolean isServerAddress(String sourceIp, String sourcePort, String serverAddress) {
-    return serverAddress.contains(IP_PORT_SEPARATOR)
-        && (sourceIp + IP_PORT_SEPARATOR + sourcePort).equals(serverAddress)
-        || serverAddress.equals(sourceIp);
+  /**
+   * Loads from a Wireshark JSON export one conversation per TCP connection, instead of a single
+   * flow with all connections packets.
+   *
+   * @see #fromWiresharkJsonDump(File, String)
+   */
+  public static List<Conversation> conversationsFromWiresharkJsonDump(File file,
+      String serverAddress) throws IOException {
+    TcpConversationSplitter splitter = new TcpConversationSplitter(
+        buildServerSegmentPredicate(serverAddress));
+    readWiresharkSegments(file, splitter);
+    return splitter.finish();
   }
 
-  public static Flow fromPcap(File file, String serverAddress, String filter) throws IOException {
-    List<PacketStep> steps = new ArrayList<>();
-    try (PcapHandle pcap = Pcaps.openOffline(file.getAbsolutePath())) {
-      if (filter != null) {
-        pcap.setFilter(filter, BpfCompileMode.OPTIMIZE);
+  private static Predicate<TcpSegment> buildServerSegmentPredicate(String serverAddress) {
+    return s -> isServerAddress(s.getSourceIp(), String.valueOf(s.getSourcePort()),
+        serverAddress);
+  }
+
+  private static void readWiresharkSegments(File file, Consumer<TcpSegment> consumer)
+      throws IOException {
+    try (JsonParser parser = new JsonFactory().createParser(file)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new IOException("Expected an array of packets in " + file);
       }
-      long lastTimeMillis = 0;
-      // we can't use getNextPacket and do a while != null due to https://github.com/kaitoy/pcap4j/issues/13
-      // so we use getNextPacketEx which throws an EOFException when reached end of file
-      while (true) {
-        org.pcap4j.packet.Packet p = pcap.getNextPacketEx();
-        if (!p.contains(TcpPacket.class)) {
-          continue;
-        }
-        org.pcap4j.packet.Packet payload = p.get(TcpPacket.class).getPayload();
-        if (payload == null) {
-          continue;
+      long timestampNanos = 0;
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        Map<String, String> fields = new HashMap<>();
+        readWiresharkFields(parser, "", fields);
+        // time deltas of all packets are accumulated since packets without payload are included
+        timestampNanos += parseSecondsAsNanos(fields.getOrDefault(WIRESHARK_TIME_DELTA_PATH,
+            "0"));
+        if (fields.containsKey(WIRESHARK_SOURCE_PORT_PATH)) {
+          consumer.accept(buildWiresharkTcpSegment(fields, timestampNanos));
         }
-        IpV4Packet ipV4Packet = p.get(IpV4Packet.class);
-        String sourceIp = ipV4Packet.getHeader().getSrcAddr().getHostAddress();
-        int sourcePort = ipV4Packet.getPayload().get(TcpPacket.class).getHeader().getSrcPort()
-            .valueAsInt();
-        String hexDump = BaseEncoding.base16().encode(payload.getRawData());
-        long timeMillis = pcap.getTimestamp().getTime();
-        long timeDeltaMillis = lastTimeMillis > 0 ? timeMillis - lastTimeMillis : 0;
-        lastTimeMillis = timeMillis;
-        steps.add(isServerAddress(sourceIp, String.valueOf(sourcePort), serverAddress)
-            ? new SendPacketStep(hexDump, timeDeltaMillis, sourcePort)
-            : new ReceivePacketStep(hexDump,
-                ipV4Packet.getPayload().get(TcpPacket.class).getHeader().getDstPort()
-                    .valueAsInt()));
       }
-    } catch (EOFException e) {
-      //just ignore if we reached end of file.
-    } catch (TimeoutException | PcapNativeException | NotOpenException e) {
-      throw new IOException("Problem reading file " + file, e);
     }
-    return new Flow(steps);
+  }
+
+  private static void readWiresharkFields(JsonParser parser, String path,
+      Map<String, String> fields) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String fieldPath = path + "/" + parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if (token == JsonToken.START_OBJECT && isWiresharkFieldsParentPath(fieldPath)) {
+        readWiresharkFields(parser, fieldPath, fields);
+      } else if (token.isScalarValue() && WIRESHARK_FIELDS_PATHS.contains(fieldPath)) {
+        fields.put(fieldPath, parser.getValueAsString());
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private static boolean isWiresharkFieldsParentPath(String path) {
+    String prefix = path + "/";
+    return WIRESHARK_FIELDS_PATHS.stream().anyMatch(p -> p.startsWith(prefix));
+  }
+
+  private static long parseSecondsAsNanos(String seconds) {
+    return new BigDecimal(seconds).movePointRight(9).longValue();
+  }
+
+  private static TcpSegment buildWiresharkTcpSegment(Map<String, String> fields,
+      long timestampNanos) {
+    String sequenceNumber = fields.get(WIRESHARK_SEQUENCE_NUMBER_PATH);
+    String flags = fields.get(WIRESHARK_TCP_FLAGS_PATH);
+    String hexDump = fields.getOrDefault(WIRESHARK_TCP_PAYLOAD_PATH, "").replace(":", "");
+    return new TcpSegment(timestampNanos, fields.getOrDefault(WIRESHARK_SOURCE_IP_PATH, ""),
+        Integer.parseInt(fields.get(WIRESHARK_SOURCE_PORT_PATH)),
+        fields.getOrDefault(WIRESHARK_DESTINE_IP_PATH, ""),
+        Integer.parseInt(fields.getOrDefault(WIRESHARK_DESTINE_PORT_PATH, "0")),
+        sequenceNumber != null ? Long.parseLong(sequenceNumber)
+            : TcpSegment.UNKNOWN_SEQUENCE_NUMBER,
+        flags != null ? Integer.decode(flags) : 0,
+        ByteBuffer.wrap(BaseEncoding.base16().decode(hexDump.toUpperCase())));
+  }
+
+  private static boolean isServerAddress(String sourceIp, String sourcePort, String serverAddress) {
+    int separatorIndex = serverAddress.lastIndexOf(IP_PORT_SEPARATOR);
+    // IPv6 addresses with port are expected in [ip]:port form
+    if (separatorIndex < 0 || serverAddress.indexOf(IP_PORT_SEPARATOR) != separatorIndex
+        && !serverAddress.startsWith("[")) {
+      return isSameIp(sourceIp, serverAddress);
+    }
+    String ip = serverAddress.substring(0, separatorIndex);
+    if (ip.startsWith("[") && ip.endsWith("]")) {
+      ip = ip.substring(1, ip.length() - 1);
+    }
+    return isSameIp(sourceIp, ip) && serverAddress.substring(separatorIndex + 1)
+        .equals(sourcePort);
+  }
+
+  private static boolean isSameIp(String ip, String otherIp) {
+    return ip.equals(otherIp) || InetAddresses.isInetAddress(ip)
+        && InetAddresses.isInetAddress(otherIp)
+        && InetAddresses.forString(ip).equals(InetAddresses.forString(otherIp));
+  }
+
+  /**
+   * Loads a flow from a classic pcap or pcapng file.
+   * <p>
+   * The file is memory mapped and parsed in place, so no native library (like libpcap) is
+   * required, and packets data is kept in the mapped file.
+   * <p>
+   * TCP streams are reassembled by sequence number (check {@link TcpStreamReassembler}), so
+   * retransmissions are ignored and contiguous segments sent by the same side of a connection are
+   * merged in one step.
+   *
+   * @param file capture file to load the flow from.
+   * @param serverAddress address of the server (ip, or ip and port) to identify server packets.
+   * @param filter optional pcap filter expression to select packets. Only a subset of pcap
+   * filters syntax is supported (check {@link PcapFilter}).
+   * @return the loaded flow.
+   * @throws IOException when the file can't be read or the filter is not supported.
+   */
+  public static Flow fromPcap(File file, String serverAddress, String filter) throws IOException {
+    TcpStreamReassembler reassembler = new TcpStreamReassembler(
+        buildServerSegmentPredicate(serverAddress));
+    readPcapSegments(file, filter, reassembler::add);
+    return new Flow(reassembler.finish());
+  }
+
+  /**
+   * Loads from a classic pcap or pcapng file one conversation per TCP connection, instead of a
+   * single flow with all connections packets.
+   *
+   * @see #fromPcap(File, String, String)
+   */
+  public static List<Conversation> conversationsFromPcap(File file, String serverAddress,
+      String filter) throws IOException {
+    TcpConversationSplitter splitter = new TcpConversationSplitter(
+        buildServerSegmentPredicate(serverAddress));
+    readPcapSegments(file, filter, splitter);
+    return splitter.finish();
+  }
+
+  private static void readPcapSegments(File file, String filter, Consumer<TcpSegment> consumer)
+      throws IOException {
+    Predicate<TcpSegment> segmentFilter;
+    try {
+      segmentFilter = filter != null ? PcapFilter.parse(filter) : s -> true;
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    PcapReader.read(file, segment -> {
+      if (segmentFilter.test(segment)) {
+        consumer.accept(segment);
+      }
+    });
+  }
+
+  /**
+   * Loads a flow from a binary flow file (as generated by {@link #saveBinary(File)}).
+   * <p>
+   * The file is memory mapped and packets data is kept in it, so loading is fast and does not
+   * require heap memory for packets data, no matter the size of the flow.
+   */
+  public static Flow fromBinary(File file) throws IOException {
+    return BinaryFlowFile.read(file);
   }
 
   public static Flow fromYml(File ymlFile) throws FileNotFoundException {
@@ -167,6 +284,15 @@ public class Flow {
         .dump(steps, new FileWriter(ymlFile));
   }
 
+  /**
+   * Saves the flow in a compact binary format, which is faster to load than YAML for big flows.
+   *
+   * @see #fromBinary(File)
+   */
+  public void saveBinary(File file) throws IOException {
+    BinaryFlowFile.write(this, file);
+  }
+
   private static Representer buildYamlRepresenter() {
     Representer representer = new Representer() {
       private int previousPort = 0;
@@ -174,7 +300,9 @@ public class Flow {
       @Override
       protected NodeTuple representJavaBeanProperty(Object javaBean, Property property,
           Object propertyValue, Tag customTag) {
-        if (property.getType() == long.class && (long) propertyValue == 0) {
+        if (property.getType() == long.class && (long) propertyValue == 0
+            || javaBean instanceof SendPacketStep && isRedundantDelay((SendPacketStep) javaBean,
+            property.getName())) {
           return null;
         } else if (property.getType() == int.class) {
           if ((int) propertyValue == 0 || previousPort == (int) propertyValue) {
@@ -190,6 +318,16 @@ public class Flow {
     return representer;
   }
 
+  /*
+   * Delays are saved in milliseconds (as in previous versions) when they have no fraction of
+   * millisecond, and in microseconds otherwise.
+   */
+  private static boolean isRedundantDelay(SendPacketStep step, String propertyName) {
+    boolean wholeMillis = step.getDelayMicros() % 1000 == 0;
+    return "delayMicros".equals(propertyName) && wholeMillis
+        || "delayMillis".equals(propertyName) && !wholeMillis;
+  }
+
   public Flow reversed() {
     return new Flow(steps.stream()
         .map(s -> s instanceof SendPacketStep ? new ReceivePacketStep(s.data.toString())
@@ -1,54 +1,300 @@
 package us.abstracta.wiresham;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Connection with a remote end used by a flow.
+ * <p>
+ * The read buffer is allocated on first read with a small size, and then adapts to the amount of
+ * data received in each read: it doubles (up to the maximum read buffer size) when a read fills
+ * it, and halves when reads use a small part of it. This way idle connections use little memory
+ * while connections receiving big messages read them in big chunks.
+ * <p>
+ * Connections over channels may lease their read buffers from a {@link DirectBufferPool}, in
+ * which case buffers are returned to the pool when replaced or when the connection is closed.
+ */
 public class FlowConnection {
 
+  public static final int INITIAL_READ_BUFFER_SIZE = 512;
+
   private static final Logger LOG = LoggerFactory.getLogger(FlowConnection.class);
 
   private final Socket socket;
-  private final ByteBuffer readBuffer;
+  private final SocketChannel channel;
+  private final int maxReadBufferSize;
+  private final DirectBufferPool bufferPool;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private ByteBuffer readBuffer;
+  private int nextReadBufferSize;
+  private ServiceMetrics metrics;
+  private FrameDecoder frameDecoder;
+  private ByteBuffer pendingFrame = ByteBuffer.allocate(0);
+  private int pendingFrameScannedLength;
+
+  public FlowConnection(Socket socket, int maxReadBufferSize) {
+    this(socket, null, maxReadBufferSize, null);
+  }
+
+  /**
+   * Creates a connection over a non-blocking channel.
+   * <p>
+   * {@link #read()} and {@link #write(ByteBuffer)} never block on such connections, so they can be
+   * driven from an event loop.
+   */
+  public FlowConnection(SocketChannel channel, int maxReadBufferSize) {
+    this(channel.socket(), channel, maxReadBufferSize, null);
+  }
+
+  /**
+   * Creates a connection over a non-blocking channel which leases its read buffers from the given
+   * pool.
+   */
+  FlowConnection(SocketChannel channel, int maxReadBufferSize, DirectBufferPool bufferPool) {
+    this(channel.socket(), channel, maxReadBufferSize, bufferPool);
+  }
 
-  public FlowConnection(Socket socket, int readBufferSize) {
+  private FlowConnection(Socket socket, SocketChannel channel, int maxReadBufferSize,
+      DirectBufferPool bufferPool) {
     this.socket = socket;
-    this.readBuffer = ByteBuffer.allocate(readBufferSize);
-    this.readBuffer.limit(0);
+    this.channel = channel;
+    this.maxReadBufferSize = maxReadBufferSize;
+    this.bufferPool = bufferPool;
+    this.readBuffer = ByteBuffer.allocate(0);
+    this.nextReadBufferSize = Math.min(INITIAL_READ_BUFFER_SIZE, maxReadBufferSize);
+  }
+
+  /**
+   * Sets metrics where to record this connection activity, registering the connection as open in
+   * them.
+   */
+  void setMetrics(ServiceMetrics metrics) {
+    this.metrics = metrics;
+    metrics.connectionOpened(getPort());
+  }
+
+  /**
+   * Sets the decoder used to split received data in frames.
+   *
+   * @param frameDecoder the decoder, or null to consume received data as a plain byte stream.
+   * @see #readFrame()
+   */
+  public void setFrameDecoder(FrameDecoder frameDecoder) {
+    this.frameDecoder = frameDecoder;
+  }
+
+  public FrameDecoder getFrameDecoder() {
+    return frameDecoder;
   }
 
   public void write(byte[] data) throws IOException {
     socket.getOutputStream().write(data);
+    if (metrics != null) {
+      metrics.bytesSent(data.length);
+    }
+  }
+
+  /**
+   * Writes as much of the given data as possible.
+   *
+   * @return true when all the data has been written, false if the connection is non-blocking and
+   * the remaining data has to be written once the channel is writable again.
+   */
+  public boolean write(ByteBuffer data) throws IOException {
+    if (channel == null) {
+      int count = data.remaining();
+      if (data.hasArray()) {
+        socket.getOutputStream().write(data.array(), data.arrayOffset() + data.position(),
+            data.remaining());
+        data.position(data.limit());
+      } else {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        socket.getOutputStream().write(bytes);
+      }
+      recordSentBytes(count);
+      return true;
+    }
+    recordSentBytes(channel.write(data));
+    return !data.hasRemaining();
+  }
+
+  private void recordSentBytes(int count) {
+    if (metrics != null) {
+      metrics.bytesSent(count);
+    }
   }
 
+  /**
+   * Gets the buffer with received data, reading from the connection when all buffered data has
+   * been consumed.
+   * <p>
+   * When the connection is non-blocking the returned buffer might have no remaining data, which
+   * means that there is no data available yet.
+   */
   public ByteBuffer read() throws IOException {
     if (!readBuffer.hasRemaining()) {
       LOG.trace("reading from socket");
-      int count = socket.getInputStream().read(readBuffer.array(), readBuffer.position(),
-          readBuffer.capacity() - readBuffer.position());
-      if (count == -1) {
-        throw new ConnectionClosedException(
-            Packet.fromBytes(readBuffer.array(), 0, readBuffer.position()));
+      ByteBuffer consumedBuffer = readBuffer;
+      int consumedCount = readBuffer.position();
+      prepareReadBuffer();
+      int count;
+      try {
+        if (channel == null) {
+          count = socket.getInputStream().read(readBuffer.array(), 0, readBuffer.capacity());
+        } else {
+          count = channel.read(readBuffer);
+          readBuffer.position(0);
+        }
+        if (count == -1) {
+          throw new ConnectionClosedException(
+              Packet.fromBuffer(consumedBuffer, 0, consumedCount));
+        }
+      } finally {
+        if (consumedBuffer != readBuffer) {
+          releaseBuffer(consumedBuffer);
+        }
       }
-      readBuffer.limit(readBuffer.position() + count);
-      if (LOG.isTraceEnabled()) {
-        LOG.trace("read from socket: {}",
-            Packet.fromBytes(readBuffer.array(), readBuffer.position(), count));
+      readBuffer.limit(count);
+      if (count > 0) {
+        updateNextReadBufferSize(count);
+        if (metrics != null) {
+          metrics.bytesReceived(count);
+        }
+        if (LOG.isTraceEnabled()) {
+          LOG.trace("read from socket: {}", Packet.fromBuffer(readBuffer, 0, count));
+        }
       }
     }
     return readBuffer;
   }
 
+  /**
+   * Gets the next frame of received data, as split by the frame decoder of the connection,
+   * reading from the connection until a complete frame is available.
+   * <p>
+   * Frames contained in a single read are returned without copying them, so the returned buffer
+   * is only valid until next read. Only frames split among several reads are accumulated in an
+   * additional buffer, keeping track of the data already decoded so the frame decoder only
+   * scans new data after each read.
+   *
+   * @return the frame (from its position to its limit), or null if the connection is
+   * non-blocking and a complete frame is not available yet.
+   * @throws IllegalStateException if no frame decoder has been set.
+   */
+  public ByteBuffer readFrame() throws IOException {
+    if (frameDecoder == null) {
+      throw new IllegalStateException("No frame decoder has been set");
+    }
+    while (true) {
+      if (pendingFrame.hasRemaining()) {
+        ByteBuffer ret = frameDecoder.decode(pendingFrame, pendingFrameScannedLength);
+        if (ret != null) {
+          pendingFrameScannedLength = 0;
+          return ret;
+        }
+        pendingFrameScannedLength = pendingFrame.remaining();
+      }
+      ByteBuffer data = read();
+      if (!data.hasRemaining()) {
+        return null;
+      }
+      if (!pendingFrame.hasRemaining()) {
+        ByteBuffer ret = frameDecoder.decode(data);
+        if (ret != null) {
+          return ret;
+        }
+        pendingFrameScannedLength = data.remaining();
+      }
+      appendPendingFrame(data);
+    }
+  }
+
+  private void appendPendingFrame(ByteBuffer data) {
+    if (pendingFrame.capacity() - pendingFrame.remaining() < data.remaining()) {
+      ByteBuffer buffer = ByteBuffer.allocate(Math.max(pendingFrame.capacity() * 2,
+          pendingFrame.remaining() + data.remaining()));
+      buffer.put(pendingFrame);
+      pendingFrame = buffer;
+    } else {
+      pendingFrame.compact();
+    }
+    pendingFrame.put(data);
+    pendingFrame.flip();
+  }
+
+  /*
+   * When this method is invoked all buffered data has already been consumed, so the buffer can
+   * be replaced or cleared without losing any data pending to be processed. A replaced buffer is
+   * released by the caller once no longer needed.
+   */
+  private void prepareReadBuffer() {
+    if (readBuffer.capacity() != nextReadBufferSize) {
+      readBuffer = bufferPool != null ? bufferPool.lease(nextReadBufferSize)
+          : ByteBuffer.allocate(nextReadBufferSize);
+    } else {
+      readBuffer.clear();
+    }
+  }
+
+  private void releaseBuffer(ByteBuffer buffer) {
+    if (bufferPool != null) {
+      bufferPool.release(buffer);
+    }
+  }
+
+  private void updateNextReadBufferSize(int count) {
+    int capacity = readBuffer.capacity();
+    if (count == capacity) {
+      nextReadBufferSize = Math.min(capacity * 2, maxReadBufferSize);
+    } else if (count < capacity / 4) {
+      nextReadBufferSize = Math.max(capacity / 2,
+          Math.min(INITIAL_READ_BUFFER_SIZE, maxReadBufferSize));
+    }
+  }
+
+  /**
+   * Records received bytes which were ignored while looking for an expected packet.
+   */
+  void recordDiscardedBytes(int count) {
+    if (metrics != null && count > 0) {
+      metrics.bytesDiscarded(count);
+    }
+  }
+
   public void close() throws IOException {
-    if (socket.isClosed()) {
+    if (!closed.compareAndSet(false, true)) {
       return;
     }
-    socket.close();
+    try {
+      socket.close();
+    } finally {
+      releaseBuffer(readBuffer);
+      readBuffer = ByteBuffer.allocate(0);
+      if (metrics != null) {
+        metrics.connectionClosed(getPort());
+      }
+    }
   }
 
   public int getPort() {
     return socket.getLocalPort();
   }
+
+  /**
+   * @return the address of the remote end of the connection.
+   */
+  public InetAddress getRemoteAddress() {
+    return socket.getInetAddress();
+  }
+
+  public SocketChannel getChannel() {
+    return channel;
+  }
 }
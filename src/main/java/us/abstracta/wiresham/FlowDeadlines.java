@@ -0,0 +1,56 @@
+package us.abstracta.wiresham;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadlines of a flow replayed on a connection, updated by the driver of the flow and checked by
+ * a {@link ConnectionReaper}.
+ * <p>
+ * A flow has an optional overall deadline, counted from its creation, and an optional deadline
+ * for each wait for a client packet or connection, counted from the start of the wait. The wait
+ * deadline uses the timeout of the step being waited for, if any, or the default receive timeout
+ * otherwise.
+ */
+final class FlowDeadlines {
+
+  private final long receiveTimeoutMillis;
+  private final boolean hasFlowDeadline;
+  private final long flowDeadlineNanos;
+  private volatile long waitDeadlineNanos;
+  private volatile boolean waiting;
+
+  /**
+   * @param receiveTimeoutMillis default time to wait for each client packet or connection. Zero
+   * means no timeout.
+   * @param flowTimeoutMillis time since now to complete the flow. Zero means no timeout.
+   */
+  FlowDeadlines(long receiveTimeoutMillis, long flowTimeoutMillis) {
+    this.receiveTimeoutMillis = receiveTimeoutMillis;
+    this.hasFlowDeadline = flowTimeoutMillis > 0;
+    this.flowDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flowTimeoutMillis);
+  }
+
+  /**
+   * Starts waiting for a client packet or connection.
+   *
+   * @param stepTimeoutMillis timeout of the step being waited for, which overrides the default
+   * receive timeout when greater than zero.
+   */
+  void startWait(long stepTimeoutMillis) {
+    long timeoutMillis = stepTimeoutMillis > 0 ? stepTimeoutMillis : receiveTimeoutMillis;
+    if (timeoutMillis > 0) {
+      waitDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      waiting = true;
+    }
+  }
+
+  void endWait() {
+    waiting = false;
+  }
+
+  boolean isExpired(long nowNanos) {
+    return hasFlowDeadline && nowNanos - flowDeadlineNanos >= 0
+        || waiting && nowNanos - waitDeadlineNanos >= 0;
+  }
+
+}
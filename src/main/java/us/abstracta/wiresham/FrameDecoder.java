@@ -0,0 +1,108 @@
+package us.abstracta.wiresham;
+
+import com.google.common.io.BaseEncoding;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the data received from a connection in messages (frames) according to a protocol
+ * framing.
+ * <p>
+ * When a connection has a frame decoder, received data is split in frames once, and each
+ * expected packet is compared with a whole frame (by length and content), instead of scanning
+ * received bytes looking for it. This makes matching deterministic (packets can't match in the
+ * middle of unrelated messages) and cheaper.
+ * <p>
+ * Implementations must be thread safe, since a decoder is shared by all connections on a port.
+ * Built-in decoders can be created with {@link #parse(String)}.
+ */
+public interface FrameDecoder {
+
+  /**
+   * Gets the frame at the beginning of the given data, if it is complete.
+   *
+   * @param data received data, from its position to its limit.
+   * @return a buffer with the frame content (from its position to its limit), which may share
+   * content with the given data, or null if data does not contain a complete frame yet. When a
+   * frame is returned, the position of data is moved right after it, otherwise the position is
+   * not changed.
+   * @throws TooLongFrameException if the frame at the beginning of data exceeds the maximum
+   * frame length supported by the decoder.
+   */
+  ByteBuffer decode(ByteBuffer data) throws TooLongFrameException;
+
+  /**
+   * Same as {@link #decode(ByteBuffer)}, but allows decoders which scan data looking for the end
+   * of the frame to resume scanning where a previous invocation stopped, instead of scanning
+   * again data accumulated while waiting for the rest of a frame.
+   *
+   * @param scannedLength number of bytes at the beginning of data which were already decoded by
+   * a previous invocation without getting a complete frame.
+   */
+  default ByteBuffer decode(ByteBuffer data, int scannedLength) throws TooLongFrameException {
+    return decode(data);
+  }
+
+  /**
+   * Creates one of the built-in decoders from a textual specification.
+   * <p>
+   * Supported specifications are:
+   * <ul>
+   * <li>{@code length:<size>[:<offset>[:<adjustment>[:<maxLength>]]]} for frames with a big
+   * endian length field (check {@link LengthPrefixedFrameDecoder}).</li>
+   * <li>{@code delimiter:<hex>[:<maxLength>]} for frames ending with the given delimiter (check
+   * {@link DelimiterFrameDecoder}).</li>
+   * <li>{@code fixed:<length>} for frames of the given length (check
+   * {@link FixedLengthFrameDecoder}).</li>
+   * </ul>
+   *
+   * @param spec specification of the decoder.
+   * @return the decoder for the specification.
+   * @throws IllegalArgumentException if the specification is not valid.
+   */
+  static FrameDecoder parse(String spec) {
+    String[] parts = spec.split(":");
+    try {
+      switch (parts[0].toLowerCase()) {
+        case "length":
+          if (parts.length < 2 || parts.length > 5) {
+            break;
+          }
+          return new LengthPrefixedFrameDecoder(Integer.parseInt(parts[1]),
+              parts.length > 2 ? Integer.parseInt(parts[2]) : 0,
+              parts.length > 3 ? Integer.parseInt(parts[3]) : 0,
+              parts.length > 4 ? Integer.parseInt(parts[4])
+                  : LengthPrefixedFrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+        case "delimiter":
+          if (parts.length < 2 || parts.length > 3) {
+            break;
+          }
+          return new DelimiterFrameDecoder(BaseEncoding.base16().decode(parts[1].toUpperCase()),
+              parts.length > 2 ? Integer.parseInt(parts[2])
+                  : LengthPrefixedFrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+        case "fixed":
+          if (parts.length != 2) {
+            break;
+          }
+          return new FixedLengthFrameDecoder(Integer.parseInt(parts[1]));
+        default:
+          break;
+      }
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid framing '" + spec + "': " + e.getMessage(), e);
+    }
+    throw new IllegalArgumentException("Invalid framing '" + spec + "', expected "
+        + "length:<size>[:<offset>[:<adjustment>[:<maxLength>]]], "
+        + "delimiter:<hex>[:<maxLength>] or fixed:<length>");
+  }
+
+  /**
+   * Gets a slice of the given data with the given length, moving data position after it.
+   */
+  static ByteBuffer nextFrame(ByteBuffer data, int length) {
+    ByteBuffer ret = data.duplicate();
+    ret.limit(data.position() + length);
+    data.position(data.position() + length);
+    return ret.slice();
+  }
+
+}
@@ -0,0 +1,87 @@
+package us.abstracta.wiresham;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes frames which contain a big endian binary length field, as used by many binary
+ * protocols (like ISO 8583 over TCP or most RPC protocols).
+ * <p>
+ * Frame length is computed as {@code offset + size + length + adjustment}, where length is the
+ * value of the field. This means that, with no adjustment, the length field is considered to
+ * only count bytes after it. When the length field counts the whole frame, use
+ * {@code -(offset + size)} as adjustment. Decoded frames include the header and length field.
+ * <p>
+ * Frames longer than a maximum length are rejected as soon as their length field is received,
+ * so malformed lengths don't make connections accumulate data indefinitely.
+ */
+public class LengthPrefixedFrameDecoder implements FrameDecoder {
+
+  public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+  private final int lengthFieldSize;
+  private final int lengthFieldOffset;
+  private final int lengthAdjustment;
+  private final int maxFrameLength;
+
+  /**
+   * @param lengthFieldSize size of the length field in bytes: 1, 2, 3 or 4.
+   * @param lengthFieldOffset number of bytes in the frame before the length field.
+   * @param lengthAdjustment value to add to the length field to get the number of bytes after
+   * the length field.
+   * @throws IllegalArgumentException if the size or offset are not valid.
+   */
+  public LengthPrefixedFrameDecoder(int lengthFieldSize, int lengthFieldOffset,
+      int lengthAdjustment) {
+    this(lengthFieldSize, lengthFieldOffset, lengthAdjustment, DEFAULT_MAX_FRAME_LENGTH);
+  }
+
+  /**
+   * @param lengthFieldSize size of the length field in bytes: 1, 2, 3 or 4.
+   * @param lengthFieldOffset number of bytes in the frame before the length field.
+   * @param lengthAdjustment value to add to the length field to get the number of bytes after
+   * the length field.
+   * @param maxFrameLength maximum length of frames, including header and length field.
+   * @throws IllegalArgumentException if the size, offset or max frame length are not valid.
+   */
+  public LengthPrefixedFrameDecoder(int lengthFieldSize, int lengthFieldOffset,
+      int lengthAdjustment, int maxFrameLength) {
+    if (lengthFieldSize < 1 || lengthFieldSize > 4) {
+      throw new IllegalArgumentException(
+          "length field size must be 1, 2, 3 or 4 but was " + lengthFieldSize);
+    }
+    if (lengthFieldOffset < 0) {
+      throw new IllegalArgumentException(
+          "length field offset must not be negative but was " + lengthFieldOffset);
+    }
+    if (maxFrameLength < lengthFieldOffset + lengthFieldSize) {
+      throw new IllegalArgumentException("max frame length must not be less than the length "
+          + "field offset plus its size but was " + maxFrameLength);
+    }
+    this.lengthFieldSize = lengthFieldSize;
+    this.lengthFieldOffset = lengthFieldOffset;
+    this.lengthAdjustment = lengthAdjustment;
+    this.maxFrameLength = maxFrameLength;
+  }
+
+  @Override
+  public ByteBuffer decode(ByteBuffer data) throws TooLongFrameException {
+    int headerLength = lengthFieldOffset + lengthFieldSize;
+    if (data.remaining() < headerLength) {
+      return null;
+    }
+    long length = 0;
+    for (int i = 0; i < lengthFieldSize; i++) {
+      length = length << 8 | data.get(data.position() + lengthFieldOffset + i) & 0xff;
+    }
+    // frames are never shorter than their header, even with malformed lengths
+    long frameLength = Math.max(headerLength, headerLength + length + lengthAdjustment);
+    if (frameLength > maxFrameLength) {
+      throw new TooLongFrameException(frameLength, maxFrameLength);
+    }
+    if (data.remaining() < frameLength) {
+      return null;
+    }
+    return FrameDecoder.nextFrame(data, (int) frameLength);
+  }
+
+}
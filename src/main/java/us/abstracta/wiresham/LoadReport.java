@@ -0,0 +1,115 @@
+package us.abstracta.wiresham;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Results of a load generated by {@link VirtualTcpClient#runLoad()} or
+ * {@link VirtualTcpClient#runConversations()}.
+ * <p>
+ * Latencies are recorded in microseconds in HdrHistograms, so percentiles are accurate (to 3
+ * significant digits) regardless of the number of replayed flows. Flow latency is the time to
+ * replay a complete flow, including connection establishment and any delay in starting it with
+ * respect to its schedule (when flows are started at a given rate), and step latency is the time
+ * waited for each expected server packet (the server response time).
+ * <p>
+ * Recording methods are thread safe.
+ */
+public class LoadReport {
+
+  private static final int SIGNIFICANT_DIGITS = 3;
+  private static final double MICROS_PER_MILLI = 1000.0;
+
+  private final Histogram flowLatencies = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+  private final Map<Integer, Histogram> stepsLatencies = new LinkedHashMap<>();
+  private final AtomicLong completedFlows = new AtomicLong();
+  private final AtomicLong failedFlows = new AtomicLong();
+  private volatile long elapsedNanos;
+
+  /*
+   * Creates a report which only records flows latencies, as when replaying different flows.
+   */
+  LoadReport() {
+  }
+
+  LoadReport(CompiledFlow flow) {
+    for (int i = 0; i < flow.size(); i++) {
+      if (flow.getStep(i) instanceof ReceivePacketStep) {
+        stepsLatencies.put(i, new ConcurrentHistogram(SIGNIFICANT_DIGITS));
+      }
+    }
+  }
+
+  void recordStep(int stepIndex, PacketStep step, long durationNanos) {
+    Histogram histogram = stepsLatencies.get(stepIndex);
+    if (histogram != null) {
+      histogram.recordValue(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+    }
+  }
+
+  void recordFlow(boolean completed, long durationNanos) {
+    if (completed) {
+      completedFlows.incrementAndGet();
+      flowLatencies.recordValue(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+    } else {
+      failedFlows.incrementAndGet();
+    }
+  }
+
+  void setElapsedNanos(long elapsedNanos) {
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  public long getCompletedFlows() {
+    return completedFlows.get();
+  }
+
+  public long getFailedFlows() {
+    return failedFlows.get();
+  }
+
+  /**
+   * @return the latencies (in microseconds) of completed flows.
+   */
+  public Histogram getFlowLatencies() {
+    return flowLatencies;
+  }
+
+  /**
+   * @return the latencies (in microseconds) of each client step, by index of the step in the
+   * flow.
+   */
+  public Map<Integer, Histogram> getStepsLatencies() {
+    return Collections.unmodifiableMap(stepsLatencies);
+  }
+
+  /**
+   * @return the number of completed flows per second.
+   */
+  public double getThroughput() {
+    return elapsedNanos > 0 ? completedFlows.get() * 1e9 / elapsedNanos : 0;
+  }
+
+  public void print(PrintStream out) {
+    out.printf("flows: %d completed, %d failed, in %.3f s (%.2f flows/s)%n",
+        completedFlows.get(), failedFlows.get(), elapsedNanos / 1e9, getThroughput());
+    out.printf("%-12s %10s %10s %10s %10s%n", "latency(ms)", "p50", "p99", "p999", "max");
+    printLatencies(out, "flow", flowLatencies);
+    stepsLatencies.forEach((index, histogram) -> printLatencies(out, "step " + index, histogram));
+  }
+
+  private void printLatencies(PrintStream out, String name, Histogram histogram) {
+    out.printf("%-12s %10.3f %10.3f %10.3f %10.3f%n", name,
+        histogram.getValueAtPercentile(50) / MICROS_PER_MILLI,
+        histogram.getValueAtPercentile(99) / MICROS_PER_MILLI,
+        histogram.getValueAtPercentile(99.9) / MICROS_PER_MILLI,
+        histogram.getMaxValue() / MICROS_PER_MILLI);
+  }
+
+}
@@ -0,0 +1,67 @@
+package us.abstracta.wiresham;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only view of a file which maps it in memory in windows, so files bigger than the 2GB
+ * supported by a single mapped buffer can be read.
+ * <p>
+ * Slices of the file are taken from the current window, and a new window is mapped, starting at
+ * the requested slice, when the slice is not contained in the current one. This makes sequential
+ * reads map each region of the file once. Slices remain valid after the channel is closed and
+ * after the window they belong to is replaced.
+ * <p>
+ * Several instances may be used on the same channel to read different regions of a file without
+ * remapping windows on each access.
+ */
+final class MappedFile {
+
+  static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final long size;
+  private final int windowSize;
+  private ByteBuffer window;
+  private long windowStart;
+
+  MappedFile(FileChannel channel) throws IOException {
+    this(channel, DEFAULT_WINDOW_SIZE);
+  }
+
+  MappedFile(FileChannel channel, int windowSize) throws IOException {
+    this.channel = channel;
+    this.size = channel.size();
+    this.windowSize = windowSize;
+  }
+
+  long size() {
+    return size;
+  }
+
+  /**
+   * Gets a big endian buffer with the content of a region of the file, from position zero to the
+   * length of the region.
+   *
+   * @throws IndexOutOfBoundsException if the region is not contained in the file.
+   */
+  ByteBuffer slice(long position, int length) throws IOException {
+    if (position < 0 || length < 0 || position > size - length) {
+      throw new IndexOutOfBoundsException("Region of " + length + " bytes at " + position
+          + " is out of file bounds");
+    }
+    if (window == null || position < windowStart
+        || position + length > windowStart + window.capacity()) {
+      window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+          Math.max(Math.min(windowSize, size - position), length));
+      windowStart = position;
+    }
+    ByteBuffer ret = window.duplicate();
+    int offset = (int) (position - windowStart);
+    ret.limit(offset + length);
+    ret.position(offset);
+    return ret.slice();
+  }
+
+}
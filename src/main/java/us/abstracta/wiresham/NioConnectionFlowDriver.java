@@ -0,0 +1,340 @@
+package us.abstracta.wiresham;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drives the flow of a connection as a state machine running in a {@link NioEventLoop}.
+ * <p>
+ * Steps have same semantics as in {@link ConnectionFlowDriver}, but instead of blocking a thread
+ * while waiting for packets, delays or sockets to be writable, the driver keeps the current step
+ * and its progress and resumes processing when the loop notifies the awaited event.
+ */
+class NioConnectionFlowDriver implements NioEventLoop.Handler, ConnectionReaper.Reapable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NioConnectionFlowDriver.class);
+
+  private final NioEventLoop loop;
+  private final CompiledFlow flow;
+  private final IntFunction<FrameDecoder> frameDecoders;
+  private final int readBufferSize;
+  private final DirectBufferPool bufferPool;
+  private final ServiceMetrics metrics;
+  private final Consumer<NioConnectionFlowDriver> closeListener;
+  private final List<CompletableFuture<SocketChannel>> pendingConnections = new ArrayList<>();
+  private final Map<Integer, FlowConnection> connections = new HashMap<>();
+  private final Map<Integer, SelectionKey> keys = new HashMap<>();
+  private int stepIndex;
+  private int currentPort;
+  private ByteBuffer stepData;
+  private boolean receiving;
+  private int matchedCount;
+  private long receiveStartNanos;
+  private boolean absoluteSchedule;
+  private ReplayClock clock;
+  private boolean delayScheduled;
+  private long sendNanos;
+  private boolean delayElapsed;
+  private SelectionKey awaitedKey;
+  private boolean closedByClient;
+  private boolean closed;
+  private boolean awaitingConnection;
+  private FlowDeadlines deadlines;
+  private boolean timedOut;
+
+  NioConnectionFlowDriver(CompiledFlow flow, IntFunction<FrameDecoder> frameDecoders,
+      int readBufferSize, DirectBufferPool bufferPool, ServiceMetrics metrics, NioEventLoop loop,
+      Consumer<NioConnectionFlowDriver> closeListener) {
+    this.flow = flow;
+    this.frameDecoders = frameDecoders;
+    this.readBufferSize = readBufferSize;
+    this.bufferPool = bufferPool;
+    this.metrics = metrics;
+    this.loop = loop;
+    this.closeListener = closeListener;
+    this.currentPort = flow.getFirstPort();
+  }
+
+  /**
+   * Sets deadlines of the flow, which are enforced when the driver is registered in a
+   * {@link ConnectionReaper}.
+   */
+  void setDeadlines(FlowDeadlines deadlines) {
+    this.deadlines = deadlines;
+  }
+
+  /**
+   * @see ReplayClock
+   */
+  void setAbsoluteSchedule(boolean absoluteSchedule) {
+    this.absoluteSchedule = absoluteSchedule;
+  }
+
+  /**
+   * Registers a connection the flow waits for on a secondary port, which is assigned to this
+   * driver once completed, and cancelled when the driver is closed.
+   * <p>
+   * This method must be invoked before assigning the first connection to the driver.
+   */
+  void awaitConnection(CompletableFuture<SocketChannel> connection) {
+    pendingConnections.add(connection);
+    connection.thenAccept(this::assign);
+  }
+
+  /**
+   * Assigns an accepted connection to this driver and resumes the flow in the driver loop.
+   * <p>
+   * This method may be invoked from any thread.
+   */
+  void assign(SocketChannel channel) {
+    loop.execute(this, () -> {
+      if (closed) {
+        closeChannel(channel);
+        return;
+      }
+      try {
+        FlowConnection connection = new FlowConnection(channel, readBufferSize, bufferPool);
+        connection.setMetrics(metrics);
+        connection.setFrameDecoder(frameDecoders.apply(connection.getPort()));
+        boolean firstConnection = connections.isEmpty();
+        keys.put(connection.getPort(), loop.register(channel, 0, this));
+        connections.put(connection.getPort(), connection);
+        if (firstConnection) {
+          LOG.info("starting new flow on {}", currentPort);
+          clock = new ReplayClock(absoluteSchedule);
+        }
+        advance();
+      } catch (IOException e) {
+        LOG.error("Problem while registering connection. Closing connection.", e);
+        closeChannel(channel);
+        close();
+      }
+    });
+  }
+
+  private void closeChannel(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      LOG.error("Problem while releasing socket", e);
+    }
+  }
+
+  @Override
+  public void handle(SelectionKey key) {
+    advance();
+  }
+
+  private void advance() {
+    if (closed) {
+      return;
+    }
+    try {
+      while (stepIndex < flow.size()) {
+        PacketStep step = flow.getStep(stepIndex);
+        int port = flow.getStepPort(stepIndex);
+        if (port != currentPort) {
+          LOG.info("changing to connections on port {}", port);
+          currentPort = port;
+        }
+        FlowConnection connection = connections.get(currentPort);
+        if (connection == null) {
+          // flow is resumed when connection is assigned
+          if (!awaitingConnection) {
+            awaitingConnection = true;
+            startWait(0);
+          }
+          awaitNothing();
+          return;
+        }
+        if (awaitingConnection) {
+          awaitingConnection = false;
+          endWait();
+        }
+        boolean completed = step instanceof SendPacketStep
+            ? send((SendPacketStep) step, connection)
+            : receive((ReceivePacketStep) step, connection);
+        if (!completed) {
+          return;
+        }
+        stepIndex++;
+      }
+      LOG.info("flow completed!");
+    } catch (ConnectionClosedException e) {
+      closedByClient = true;
+      LOG.info("Connection closed by client while waiting for client packet");
+      if (e.getDiscardedPacket().getBytes().length > 0) {
+        LOG.debug("Discarding client packet {}", e.getDiscardedPacket(), e);
+      }
+    } catch (IOException e) {
+      LOG.error("Problem while processing requests from client. Closing connection.", e);
+    }
+    close();
+  }
+
+  private boolean send(SendPacketStep step, FlowConnection connection) throws IOException {
+    if (stepData == null) {
+      if (!delayScheduled) {
+        sendNanos = clock.scheduleSend(step.getDelayMicros());
+        if (sendNanos - System.nanoTime() > 0) {
+          delayScheduled = true;
+          awaitNothing();
+          loop.scheduleAt(this, () -> {
+            delayElapsed = true;
+            advance();
+          }, sendNanos);
+          return false;
+        }
+      } else if (!delayElapsed) {
+        return false;
+      }
+      if (step.getDelayMicros() > 0) {
+        metrics.delayedPacketSent(Math.max(0, System.nanoTime() - sendNanos));
+      }
+      LOG.debug("sending {} with {} micros delay", step.data, step.getDelayMicros());
+      stepData = flow.getStepPayload(stepIndex);
+    }
+    if (!connection.write(stepData)) {
+      await(SelectionKey.OP_WRITE);
+      return false;
+    }
+    stepData = null;
+    delayScheduled = false;
+    delayElapsed = false;
+    return true;
+  }
+
+  private boolean receive(ReceivePacketStep step, FlowConnection connection)
+      throws IOException {
+    if (!receiving) {
+      LOG.debug("Waiting for {}", step.data);
+      receiving = true;
+      matchedCount = 0;
+      receiveStartNanos = System.nanoTime();
+      startWait(step.getTimeoutMillis());
+    }
+    boolean received = connection.getFrameDecoder() != null
+        ? receiveFrame(step, connection) : receiveBytes(step, connection);
+    if (!received) {
+      await(SelectionKey.OP_READ);
+      return false;
+    }
+    receiving = false;
+    endWait();
+    clock.received();
+    metrics.packetReceived(System.nanoTime() - receiveStartNanos);
+    return true;
+  }
+
+  private boolean receiveBytes(ReceivePacketStep step, FlowConnection connection)
+      throws IOException {
+    while (!step.isReceived(matchedCount)) {
+      ByteBuffer readBuffer = connection.read();
+      if (!readBuffer.hasRemaining()) {
+        return false;
+      }
+      matchedCount = step.consume(connection, readBuffer, matchedCount);
+    }
+    return true;
+  }
+
+  private boolean receiveFrame(ReceivePacketStep step, FlowConnection connection)
+      throws IOException {
+    while (true) {
+      ByteBuffer frame = connection.readFrame();
+      if (frame == null) {
+        return false;
+      }
+      if (step.consumeFrame(connection, frame)) {
+        return true;
+      }
+    }
+  }
+
+  private void startWait(long stepTimeoutMillis) {
+    if (deadlines != null) {
+      deadlines.startWait(stepTimeoutMillis);
+    }
+  }
+
+  private void endWait() {
+    if (deadlines != null) {
+      deadlines.endWait();
+    }
+  }
+
+  @Override
+  public boolean isExpired(long nowNanos) {
+    return deadlines != null && deadlines.isExpired(nowNanos);
+  }
+
+  /**
+   * Closes the flow connections in the driver loop.
+   * <p>
+   * This method may be invoked from any thread.
+   */
+  @Override
+  public void reap() {
+    loop.execute(this, () -> {
+      if (!closed) {
+        LOG.info("Closing connections since flow timed out");
+        timedOut = true;
+        close();
+      }
+    });
+  }
+
+  private void await(int ops) {
+    SelectionKey key = keys.get(currentPort);
+    if (awaitedKey != key) {
+      awaitNothing();
+    }
+    key.interestOps(ops);
+    awaitedKey = key;
+  }
+
+  private void awaitNothing() {
+    if (awaitedKey != null && awaitedKey.isValid()) {
+      awaitedKey.interestOps(0);
+    }
+    awaitedKey = null;
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    pendingConnections.forEach(c -> c.cancel(false));
+    for (FlowConnection connection : connections.values()) {
+      try {
+        connection.close();
+      } catch (IOException e) {
+        LOG.error("Problem while releasing sockets", e);
+      }
+    }
+    if (stepIndex >= flow.size()) {
+      metrics.flowCompleted();
+    } else if (timedOut) {
+      metrics.flowTimedOut();
+    } else if (closedByClient) {
+      metrics.flowClosedByClient();
+    } else {
+      metrics.flowAborted();
+    }
+    closeListener.accept(this);
+  }
+
+}
@@ -0,0 +1,177 @@
+package us.abstracta.wiresham;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single thread loop which attends I/O readiness of many channels through a {@link Selector} and
+ * runs tasks and timers submitted to it.
+ * <p>
+ * All registered handlers, tasks and timers run in the loop thread, so they don't need any
+ * synchronization among them.
+ * <p>
+ * Unexpected exceptions thrown by handlers, tasks or timers are logged and close the handler
+ * they belong to (if any), keeping the loop running for the rest of the channels.
+ */
+class NioEventLoop implements Runnable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NioEventLoop.class);
+
+  private final Selector selector;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+  private volatile boolean stopped;
+
+  /**
+   * Handles readiness events of a channel registered in the loop.
+   */
+  interface Handler {
+
+    void handle(SelectionKey key) throws IOException;
+
+    void close();
+
+  }
+
+  private static class Timer implements Comparable<Timer> {
+
+    private final long dueNanos;
+    private final Runnable task;
+
+    private Timer(long dueNanos, Runnable task) {
+      this.dueNanos = dueNanos;
+      this.task = task;
+    }
+
+    @Override
+    public int compareTo(Timer other) {
+      return Long.compare(dueNanos, other.dueNanos);
+    }
+
+  }
+
+  NioEventLoop() throws IOException {
+    selector = Selector.open();
+  }
+
+  /**
+   * Registers the channel in the loop selector. Must be invoked from the loop thread.
+   */
+  SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+      throws ClosedChannelException {
+    return channel.register(selector, ops, handler);
+  }
+
+  /**
+   * Runs the given task in the loop thread.
+   */
+  void execute(Runnable task) {
+    execute(null, task);
+  }
+
+  /**
+   * Runs the given task of a handler in the loop thread, closing the handler if the task fails.
+   */
+  void execute(Handler owner, Runnable task) {
+    tasks.add(guard(owner, task));
+    selector.wakeup();
+  }
+
+  /**
+   * Runs the given task of a handler in the loop thread at the given {@link System#nanoTime()},
+   * with milliseconds precision, closing the handler if the task fails. Must be invoked from the
+   * loop thread.
+   */
+  void scheduleAt(Handler owner, Runnable task, long dueNanos) {
+    timers.add(new Timer(dueNanos, guard(owner, task)));
+  }
+
+  private static Runnable guard(Handler owner, Runnable task) {
+    return () -> {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        LOG.error("Unexpected problem while running task in event loop.", e);
+        if (owner != null) {
+          owner.close();
+        }
+      }
+    };
+  }
+
+  @Override
+  public void run() {
+    while (!stopped) {
+      try {
+        selector.select(runDueTimers());
+        processSelectedKeys();
+        runTasks();
+      } catch (IOException e) {
+        LOG.error("Problem while waiting for events. Keep waiting.", e);
+      }
+    }
+    closeChannels();
+  }
+
+  private long runDueTimers() {
+    long now = System.nanoTime();
+    while (!timers.isEmpty() && timers.peek().dueNanos - now <= 0) {
+      timers.poll().task.run();
+    }
+    if (timers.isEmpty()) {
+      return 0;
+    }
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(timers.peek().dueNanos - now));
+  }
+
+  private void processSelectedKeys() {
+    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+    while (it.hasNext()) {
+      SelectionKey key = it.next();
+      it.remove();
+      Handler handler = (Handler) key.attachment();
+      try {
+        handler.handle(key);
+      } catch (IOException | RuntimeException e) {
+        LOG.error("Problem while processing connection event. Closing connection.", e);
+        handler.close();
+      }
+    }
+  }
+
+  private void runTasks() {
+    Runnable task = tasks.poll();
+    while (task != null) {
+      task.run();
+      task = tasks.poll();
+    }
+  }
+
+  private void closeChannels() {
+    runTasks();
+    for (SelectionKey key : selector.keys()) {
+      ((Handler) key.attachment()).close();
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      LOG.error("Problem closing selector", e);
+    }
+  }
+
+  void stop() {
+    stopped = true;
+    selector.wakeup();
+  }
+
+}
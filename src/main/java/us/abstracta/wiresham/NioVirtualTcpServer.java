@@ -0,0 +1,219 @@
+package us.abstracta.wiresham;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking engine for {@link VirtualTcpService} which attends all connections with a few
+ * {@link NioEventLoop} threads.
+ * <p>
+ * Connections are accepted in the first loop (or in several loops when using several acceptors
+ * per port) and each new flow is assigned to a loop in a round robin fashion. Connections on
+ * secondary ports of a flow are assigned to flows waiting for them through
+ * {@link PendingConnections}, and attended by the loop of the flow they belong to.
+ * <p>
+ * Connections read into direct buffers leased from a pool shared by all loops, and server packets
+ * are written from direct buffers staged once per compiled flow.
+ */
+class NioVirtualTcpServer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NioVirtualTcpServer.class);
+  private static final long MAX_POOLED_BUFFERS_BYTES = 64L * 1024 * 1024;
+
+  private final IntFunction<CompiledFlow> flowSelector;
+  private final IntFunction<FrameDecoder> frameDecoders;
+  private final int readBufferSize;
+  private final ServiceMetrics metrics;
+  private final ConnectionReaper reaper;
+  private final Supplier<FlowDeadlines> deadlinesFactory;
+  private final PendingConnections<SocketChannel> pendingConnections;
+  private final DirectBufferPool bufferPool = new DirectBufferPool(MAX_POOLED_BUFFERS_BYTES);
+  private final List<NioEventLoop> loops = new ArrayList<>();
+  private final ExecutorService loopsExecutorService;
+  private final Set<NioConnectionFlowDriver> drivers = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger nextLoopIndex = new AtomicInteger();
+  private boolean absoluteSchedule;
+  private int localPort;
+  private boolean multiPort;
+
+  /**
+   * @param flowSelector provides the flow to replay on a new connection to a given port.
+   * @param frameDecoders provides the frame decoder (or null) of connections to a given port.
+   * @param reaper reaper where drivers are registered to enforce their timeouts.
+   * @param deadlinesFactory creates deadlines for each new flow.
+   * @param correlation specifies how connections on secondary ports are assigned to flows.
+   */
+  NioVirtualTcpServer(IntFunction<CompiledFlow> flowSelector,
+      IntFunction<FrameDecoder> frameDecoders, int readBufferSize, ServiceMetrics metrics,
+      ConnectionReaper reaper, Supplier<FlowDeadlines> deadlinesFactory,
+      ConnectionCorrelation correlation, int loopCount) throws IOException {
+    this.flowSelector = flowSelector;
+    this.frameDecoders = frameDecoders;
+    this.readBufferSize = readBufferSize;
+    this.metrics = metrics;
+    this.reaper = reaper;
+    this.deadlinesFactory = deadlinesFactory;
+    this.pendingConnections = new PendingConnections<>(correlation);
+    for (int i = 0; i < loopCount; i++) {
+      loops.add(new NioEventLoop());
+    }
+    loopsExecutorService = Executors.newFixedThreadPool(loopCount, new ThreadFactoryBuilder()
+        .setNameFormat("Event-Loop-%d").build());
+  }
+
+  /**
+   * @see ReplayClock
+   */
+  public void setAbsoluteSchedule(boolean absoluteSchedule) {
+    this.absoluteSchedule = absoluteSchedule;
+  }
+
+  /**
+   * @param listenBacklog maximum connections pending to be accepted by each port, or zero to use
+   * the JVM default.
+   * @param acceptorCount number of channels accepting connections on each port, each one in a
+   * different loop (as long as there are enough loops). Several acceptors require SO_REUSEPORT
+   * support.
+   */
+  public void start(List<Integer> ports, int listenBacklog, int acceptorCount)
+      throws IOException {
+    multiPort = ports.size() > 1;
+    loops.forEach(loopsExecutorService::execute);
+    for (Integer port : ports) {
+      int boundPort = port;
+      for (int i = 0; i < acceptorCount; i++) {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+          if (acceptorCount > 1) {
+            ReusePort.enable(serverChannel);
+          }
+          serverChannel.bind(new InetSocketAddress(boundPort), listenBacklog);
+          serverChannel.configureBlocking(false);
+        } catch (IOException | RuntimeException e) {
+          // channels already registered in loops are closed when loops are stopped
+          serverChannel.close();
+          throw e;
+        }
+        // dynamic ports are resolved by the first acceptor and shared by the rest
+        boundPort = serverChannel.socket().getLocalPort();
+        if (localPort == 0) {
+          localPort = boundPort;
+        }
+        registerAcceptor(port, serverChannel, loops.get(i % loops.size()));
+      }
+      LOG.info("Waiting for connections on {}", port);
+    }
+  }
+
+  /**
+   * @return the port the first of the service ports is bound to, or zero if the server has not
+   * been started.
+   */
+  public int getLocalPort() {
+    return localPort;
+  }
+
+  private void registerAcceptor(int port, ServerSocketChannel serverChannel,
+      NioEventLoop acceptLoop) {
+    acceptLoop.execute(() -> {
+      try {
+        acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor(serverChannel));
+      } catch (IOException e) {
+        LOG.error("Problem waiting for client connections on {}", port, e);
+      }
+    });
+  }
+
+  private class Acceptor implements NioEventLoop.Handler {
+
+    private final ServerSocketChannel serverChannel;
+
+    private Acceptor(ServerSocketChannel serverChannel) {
+      this.serverChannel = serverChannel;
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+      SocketChannel channel = serverChannel.accept();
+      while (channel != null) {
+        channel.configureBlocking(false);
+        assignConnectionToDriver(channel.socket().getLocalPort(), channel);
+        channel = serverChannel.accept();
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        serverChannel.close();
+      } catch (IOException e) {
+        LOG.error("Problem closing server socket", e);
+      }
+    }
+
+  }
+
+  private void assignConnectionToDriver(int port, SocketChannel channel) {
+    InetAddress client = channel.socket().getInetAddress();
+    Supplier<NioConnectionFlowDriver> flowStarter = () -> startDriver(port, client);
+    // single port services have no flows waiting for connections
+    NioConnectionFlowDriver driver = multiPort
+        ? pendingConnections.assignOrStart(port, client, channel, flowStarter)
+        : flowStarter.get();
+    if (driver == null) {
+      return;
+    }
+    drivers.add(driver);
+    reaper.register(driver);
+    driver.assign(channel);
+  }
+
+  private NioConnectionFlowDriver startDriver(int port, InetAddress client) {
+    NioEventLoop loop = loops.get(Math.floorMod(nextLoopIndex.getAndIncrement(), loops.size()));
+    CompiledFlow flow = flowSelector.apply(port);
+    NioConnectionFlowDriver ret = new NioConnectionFlowDriver(flow, frameDecoders,
+        readBufferSize, bufferPool, metrics, loop, this::removeDriver);
+    ret.setDeadlines(deadlinesFactory.get());
+    ret.setAbsoluteSchedule(absoluteSchedule);
+    for (Integer flowPort : flow.getPorts()) {
+      if (flowPort != port) {
+        CompletableFuture<SocketChannel> pending = new CompletableFuture<>();
+        ret.awaitConnection(pending);
+        pendingConnections.add(flowPort, client, pending);
+      }
+    }
+    return ret;
+  }
+
+  private void removeDriver(NioConnectionFlowDriver driver) {
+    drivers.remove(driver);
+    reaper.unregister(driver);
+  }
+
+  public void stop(long timeoutMillis) throws InterruptedException {
+    loops.forEach(NioEventLoop::stop);
+    loopsExecutorService.shutdown();
+    if (!loopsExecutorService.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+      loopsExecutorService.shutdownNow();
+    }
+  }
+
+}
@@ -0,0 +1,25 @@
+package us.abstracta.wiresham;
+
+/**
+ * Specifies what {@link VirtualTcpService} does with new connections when all the threads
+ * attending connections are busy.
+ *
+ * @see VirtualTcpService#setOverloadPolicy(OverloadPolicy)
+ */
+public enum OverloadPolicy {
+
+  /**
+   * Connections wait for a thread in a queue, and are closed when the queue is full.
+   */
+  QUEUE,
+  /**
+   * Connections are immediately closed.
+   */
+  REJECT,
+  /**
+   * Connections wait for a thread in a queue, and are closed when the queue is full or when they
+   * wait longer than the queue timeout.
+   */
+  REJECT_AFTER_TIMEOUT
+
+}
@@ -1,17 +1,27 @@
 package us.abstracta.wiresham;
 
 import com.google.common.io.BaseEncoding;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Packet exchanged between the server and the client.
+ * <p>
+ * Packet data may be kept in heap or in a slice of a memory mapped file (when loaded from a
+ * binary flow file), in which case data is not copied to heap unless {@link #getBytes()} is
+ * used.
  */
 public class Packet {
 
-  private final byte[] bytes;
+  private final ByteBuffer buffer;
 
   private Packet(byte[] bytes) {
-    this.bytes = bytes;
+    this(ByteBuffer.wrap(bytes));
+  }
+
+  private Packet(ByteBuffer buffer) {
+    this.buffer = buffer;
   }
 
   public static Packet fromHexDump(String hexDump) {
@@ -22,8 +32,55 @@ public class Packet {
     return new Packet(Arrays.copyOfRange(bytes, offset, offset + length));
   }
 
+  public static Packet fromBuffer(ByteBuffer buffer, int offset, int length) {
+    byte[] bytes = new byte[length];
+    ByteBuffer source = buffer.duplicate();
+    source.limit(offset + length);
+    source.position(offset);
+    source.get(bytes);
+    return new Packet(bytes);
+  }
+
+  /**
+   * Creates a packet with the remaining data of the given buffer, without copying it.
+   * <p>
+   * The buffer must not be modified afterwards.
+   */
+  static Packet wrap(ByteBuffer buffer) {
+    return new Packet(buffer.slice());
+  }
+
+  public static Packet concat(List<Packet> packets) {
+    ByteBuffer ret = ByteBuffer.allocate(packets.stream().mapToInt(Packet::length).sum());
+    packets.forEach(p -> ret.put(p.getBuffer()));
+    ret.flip();
+    return new Packet(ret);
+  }
+
+  /**
+   * Gets packet data as an array, which is the array holding packet data for heap packets, or a
+   * copy of the data otherwise.
+   */
   public byte[] getBytes() {
-    return bytes;
+    if (buffer.hasArray() && buffer.arrayOffset() == 0
+        && buffer.array().length == buffer.remaining()) {
+      return buffer.array();
+    }
+    byte[] ret = new byte[buffer.remaining()];
+    buffer.duplicate().get(ret);
+    return ret;
+  }
+
+  /**
+   * @return a view of packet data, with its own position and limit. Data must not be modified
+   * through it.
+   */
+  ByteBuffer getBuffer() {
+    return buffer.duplicate();
+  }
+
+  public int length() {
+    return buffer.remaining();
   }
 
   @Override
@@ -35,16 +92,16 @@ public class Packet {
       return false;
     }
     Packet packet = (Packet) o;
-    return Arrays.equals(bytes, packet.bytes);
+    return buffer.equals(packet.buffer);
   }
 
   @Override
   public int hashCode() {
-    return Arrays.hashCode(bytes);
+    return buffer.hashCode();
   }
 
   public String toString() {
-    return BaseEncoding.base16().encode(bytes);
+    return BaseEncoding.base16().encode(getBytes());
   }
 
 }
@@ -0,0 +1,72 @@
+package us.abstracta.wiresham;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds an expected packet in a stream of received bytes, using Knuth-Morris-Pratt algorithm.
+ * <p>
+ * The failure table is built once per expected packet, and matching progress is kept as the
+ * number of expected bytes matched so far, so received data can be provided in as many chunks as
+ * required, without keeping previously received bytes and without rescanning any byte.
+ */
+final class PacketMatcher {
+
+  private final ByteBuffer expected;
+  private final int expectedLength;
+  private final int[] failureTable;
+
+  /**
+   * @param expected buffer with the expected packet from position 0 to its limit.
+   */
+  PacketMatcher(ByteBuffer expected) {
+    this.expected = expected;
+    this.expectedLength = expected.limit();
+    this.failureTable = buildFailureTable(expected, expectedLength);
+  }
+
+  private static int[] buildFailureTable(ByteBuffer pattern, int length) {
+    int[] table = new int[length];
+    int prefixLength = 0;
+    for (int i = 1; i < length; i++) {
+      byte b = pattern.get(i);
+      while (prefixLength > 0 && b != pattern.get(prefixLength)) {
+        prefixLength = table[prefixLength - 1];
+      }
+      if (b == pattern.get(prefixLength)) {
+        prefixLength++;
+      }
+      table[i] = prefixLength;
+    }
+    return table;
+  }
+
+  /**
+   * Consumes remaining data from the buffer until the expected packet is found or all data is
+   * consumed.
+   *
+   * @param buffer buffer with received data. Its position is moved after last consumed byte.
+   * @param matchedCount number of expected bytes matched by previously consumed data.
+   * @return the number of expected bytes matched by consumed data.
+   */
+  int match(ByteBuffer buffer, int matchedCount) {
+    int position = buffer.position();
+    int limit = buffer.limit();
+    int matched = matchedCount;
+    while (position < limit && matched < expectedLength) {
+      byte b = buffer.get(position++);
+      while (matched > 0 && b != expected.get(matched)) {
+        matched = failureTable[matched - 1];
+      }
+      if (b == expected.get(matched)) {
+        matched++;
+      }
+    }
+    buffer.position(position);
+    return matched;
+  }
+
+  boolean isComplete(int matchedCount) {
+    return matchedCount == expectedLength;
+  }
+
+}
@@ -24,6 +24,11 @@ public abstract class PacketStep {
     this.port = port;
   }
 
+  protected PacketStep(Packet data, int port) {
+    this.data = data;
+    this.port = port;
+  }
+
   public String getData() {
     return data.toString();
   }
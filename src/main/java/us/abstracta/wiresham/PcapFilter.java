@@ -0,0 +1,220 @@
+package us.abstracta.wiresham;
+
+import com.google.common.net.InetAddresses;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Filter of TCP segments read from capture files, which supports a subset of the pcap filter
+ * (BPF) syntax.
+ * <p>
+ * Supported primitives are {@code tcp}, {@code ip}, {@code ip6}, {@code [src|dst] host <ip>}
+ * (or just {@code src|dst <ip>}) and {@code [src|dst] port <port>}, which may be combined with
+ * {@code and} ({@code &&}), {@code or} ({@code ||}), {@code not} ({@code !}) and parentheses. As
+ * in pcap filters, protocols may prefix other primitives (like {@code tcp port 80} or
+ * {@code ip host 10.0.0.1}), and primitives may be combined without repeating the qualifiers
+ * (like {@code port 80 or 8080}).
+ */
+final class PcapFilter implements Predicate<TcpSegment> {
+
+  private final List<String> tokens;
+  private final String expression;
+  private final Predicate<TcpSegment> predicate;
+  private int position;
+  private String lastQualifier;
+
+  private PcapFilter(String expression) {
+    this.expression = expression;
+    this.tokens = tokenize(expression);
+    this.predicate = parseOr();
+    if (position < tokens.size()) {
+      throw buildParseException("unexpected '" + tokens.get(position) + "'");
+    }
+  }
+
+  /**
+   * Parses the given filter expression.
+   *
+   * @param expression pcap filter expression.
+   * @return the filter for the given expression.
+   * @throws IllegalArgumentException when the expression is not valid or is not supported.
+   */
+  static PcapFilter parse(String expression) {
+    return new PcapFilter(expression);
+  }
+
+  private static List<String> tokenize(String expression) {
+    List<String> ret = new ArrayList<>();
+    int i = 0;
+    while (i < expression.length()) {
+      char c = expression.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '(' || c == ')' || c == '!') {
+        ret.add(String.valueOf(c));
+        i++;
+      } else if (c == '&' || c == '|') {
+        // single & and | (bitwise operators) are not supported and are reported by the parser
+        int length = expression.startsWith("&&", i) || expression.startsWith("||", i) ? 2 : 1;
+        ret.add(expression.substring(i, i + length));
+        i += length;
+      } else {
+        int start = i;
+        while (i < expression.length() && !Character.isWhitespace(expression.charAt(i))
+            && "()!&|".indexOf(expression.charAt(i)) < 0) {
+          i++;
+        }
+        ret.add(expression.substring(start, i).toLowerCase());
+      }
+    }
+    return ret;
+  }
+
+  private Predicate<TcpSegment> parseOr() {
+    Predicate<TcpSegment> ret = parseAnd();
+    while (acceptToken("or") || acceptToken("||")) {
+      ret = ret.or(parseAnd());
+    }
+    return ret;
+  }
+
+  private Predicate<TcpSegment> parseAnd() {
+    Predicate<TcpSegment> ret = parseNot();
+    while (acceptToken("and") || acceptToken("&&")) {
+      ret = ret.and(parseNot());
+    }
+    return ret;
+  }
+
+  private Predicate<TcpSegment> parseNot() {
+    if (acceptToken("not") || acceptToken("!")) {
+      return parseNot().negate();
+    }
+    if (acceptToken("(")) {
+      Predicate<TcpSegment> ret = parseOr();
+      if (!acceptToken(")")) {
+        throw buildParseException("missing ')'");
+      }
+      return ret;
+    }
+    return parsePrimitive();
+  }
+
+  private Predicate<TcpSegment> parsePrimitive() {
+    String token = nextToken();
+    switch (token) {
+      case "tcp":
+        return parseProtocolQualifiedPrimitive(s -> true);
+      case "ip":
+        return parseProtocolQualifiedPrimitive(s -> !isIpV6(s.getSourceIp()));
+      case "ip6":
+        return parseProtocolQualifiedPrimitive(s -> isIpV6(s.getSourceIp()));
+      case "src":
+      case "dst":
+        if (acceptToken("port")) {
+          return parseQualifiedPrimitive(token, "port");
+        }
+        // as in pcap filters, direction without type refers to a host
+        acceptToken("host");
+        return parseQualifiedPrimitive(token, "host");
+      case "host":
+      case "port":
+        return parseQualifiedPrimitive(null, token);
+      default:
+        if (lastQualifier != null) {
+          // value without qualifiers, as in "port 80 or 8080", reuses previous qualifiers
+          position--;
+          String[] qualifiers = lastQualifier.split(" ");
+          return parseQualifiedPrimitive(qualifiers[0].isEmpty() ? null : qualifiers[0],
+              qualifiers[1]);
+        }
+        throw buildParseException("unsupported primitive '" + token + "'");
+    }
+  }
+
+  /*
+   * A protocol followed by a primitive, as in "tcp port 80", is the same as both primitives
+   * joined by "and".
+   */
+  private Predicate<TcpSegment> parseProtocolQualifiedPrimitive(Predicate<TcpSegment> protocol) {
+    if (position < tokens.size() && isQualifier(tokens.get(position))) {
+      return protocol.and(parsePrimitive());
+    }
+    return protocol;
+  }
+
+  private static boolean isQualifier(String token) {
+    return "src".equals(token) || "dst".equals(token) || "host".equals(token)
+        || "port".equals(token);
+  }
+
+  private Predicate<TcpSegment> parseQualifiedPrimitive(String direction, String type) {
+    lastQualifier = (direction == null ? "" : direction) + " " + type;
+    String value = nextToken();
+    Predicate<TcpSegment> source;
+    Predicate<TcpSegment> destination;
+    if ("port".equals(type)) {
+      int port = parsePort(value);
+      source = s -> s.getSourcePort() == port;
+      destination = s -> s.getDestinationPort() == port;
+    } else if ("host".equals(type)) {
+      if (!InetAddresses.isInetAddress(value)) {
+        throw buildParseException("unsupported host '" + value + "', only IPs are supported");
+      }
+      String ip = InetAddresses.toAddrString(InetAddresses.forString(value));
+      source = s -> ip.equals(s.getSourceIp());
+      destination = s -> ip.equals(s.getDestinationIp());
+    } else {
+      throw buildParseException("unsupported primitive '" + type + "'");
+    }
+    if ("src".equals(direction)) {
+      return source;
+    } else if ("dst".equals(direction)) {
+      return destination;
+    } else {
+      return source.or(destination);
+    }
+  }
+
+  private int parsePort(String value) {
+    try {
+      int ret = Integer.parseInt(value);
+      if (ret >= 0 && ret <= 65535) {
+        return ret;
+      }
+    } catch (NumberFormatException e) {
+      // an exception is thrown next
+    }
+    throw buildParseException("invalid port '" + value + "'");
+  }
+
+  private static boolean isIpV6(String ip) {
+    return ip.contains(":");
+  }
+
+  private boolean acceptToken(String token) {
+    if (position < tokens.size() && tokens.get(position).equals(token)) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  private String nextToken() {
+    if (position >= tokens.size()) {
+      throw buildParseException("unexpected end of expression");
+    }
+    return tokens.get(position++);
+  }
+
+  private IllegalArgumentException buildParseException(String message) {
+    return new IllegalArgumentException("Invalid filter '" + expression + "': " + message);
+  }
+
+  @Override
+  public boolean test(TcpSegment segment) {
+    return predicate.test(segment);
+  }
+
+}
@@ -0,0 +1,342 @@
+package us.abstracta.wiresham;
+
+import com.google.common.net.InetAddresses;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads TCP segments from classic pcap and pcapng capture files, without requiring native
+ * libraries.
+ * <p>
+ * Files are memory mapped (in windows, so there is no limit on their size) and parsed in place,
+ * and segments payloads are slices of the mapped file. Supported link types are Ethernet (with
+ * optional VLAN tags), BSD loopback, Linux cooked captures and raw IP, with IPv4 or IPv6 network
+ * layer. Other packets, like fragmented IP packets, are ignored.
+ */
+final class PcapReader {
+
+  private static final int PCAP_MICROS_MAGIC = 0xa1b2c3d4;
+  private static final int PCAP_NANOS_MAGIC = 0xa1b23c4d;
+  private static final int PCAP_HEADER_SIZE = 24;
+  private static final int PCAP_RECORD_HEADER_SIZE = 16;
+
+  private static final int PCAPNG_SECTION_HEADER_BLOCK = 0x0a0d0d0a;
+  private static final int PCAPNG_INTERFACE_DESCRIPTION_BLOCK = 1;
+  private static final int PCAPNG_OBSOLETE_PACKET_BLOCK = 2;
+  private static final int PCAPNG_SIMPLE_PACKET_BLOCK = 3;
+  private static final int PCAPNG_ENHANCED_PACKET_BLOCK = 6;
+  private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+  private static final int PCAPNG_TIMESTAMP_RESOLUTION_OPTION = 9;
+  private static final long DEFAULT_TIMESTAMP_UNITS_PER_SECOND = 1_000_000;
+
+  private static final int LINK_TYPE_NULL = 0;
+  private static final int LINK_TYPE_ETHERNET = 1;
+  private static final int LINK_TYPE_RAW = 101;
+  private static final int LINK_TYPE_LOOP = 108;
+  private static final int LINK_TYPE_LINUX_SLL = 113;
+  private static final int LINK_TYPE_IPV4 = 228;
+  private static final int LINK_TYPE_IPV6 = 229;
+  private static final int LINK_TYPE_LINUX_SLL2 = 276;
+
+  private static final int ETHER_TYPE_IPV4 = 0x0800;
+  private static final int ETHER_TYPE_IPV6 = 0x86dd;
+  private static final int ETHER_TYPE_VLAN = 0x8100;
+  private static final int ETHER_TYPE_QINQ = 0x88a8;
+  private static final int TCP_PROTOCOL = 6;
+  private static final int IPV6_HOP_BY_HOP_HEADER = 0;
+  private static final int IPV6_ROUTING_HEADER = 43;
+  private static final int IPV6_DESTINATION_OPTIONS_HEADER = 60;
+  private static final long NANOS_PER_SECOND = 1_000_000_000;
+
+  private final File file;
+  private final MappedFile mappedFile;
+  private final Consumer<TcpSegment> consumer;
+  private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+  private PcapReader(File file, MappedFile mappedFile, Consumer<TcpSegment> consumer) {
+    this.file = file;
+    this.mappedFile = mappedFile;
+    this.consumer = consumer;
+  }
+
+  /**
+   * Reads all TCP segments of the given capture file, in order of appearance.
+   *
+   * @param file classic pcap or pcapng file to read.
+   * @param consumer receives each TCP segment found in the file.
+   * @throws IOException when the file can't be read or its format is not supported.
+   */
+  static void read(File file, Consumer<TcpSegment> consumer) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      MappedFile mappedFile = new MappedFile(channel);
+      PcapReader reader = new PcapReader(file, mappedFile, consumer);
+      if (mappedFile.size() >= 4
+          && mappedFile.slice(0, 4).getInt(0) == PCAPNG_SECTION_HEADER_BLOCK) {
+        reader.readPcapng();
+      } else {
+        reader.readPcap();
+      }
+    }
+  }
+
+  private void readPcap() throws IOException {
+    if (mappedFile.size() < PCAP_HEADER_SIZE) {
+      throw new IOException(file + " is not a pcap or pcapng file");
+    }
+    ByteBuffer header = mappedFile.slice(0, PCAP_HEADER_SIZE);
+    int magic = header.getInt(0);
+    if (Integer.reverseBytes(magic) == PCAP_MICROS_MAGIC
+        || Integer.reverseBytes(magic) == PCAP_NANOS_MAGIC) {
+      order = ByteOrder.LITTLE_ENDIAN;
+      header.order(order);
+      magic = Integer.reverseBytes(magic);
+    }
+    if (magic != PCAP_MICROS_MAGIC && magic != PCAP_NANOS_MAGIC) {
+      throw new IOException(file + " is not a pcap or pcapng file");
+    }
+    long fractionNanos = magic == PCAP_NANOS_MAGIC ? 1 : 1000;
+    // upper bits of link type field may contain FCS information
+    int linkType = header.getInt(20) & 0xffff;
+    long position = PCAP_HEADER_SIZE;
+    while (position + PCAP_RECORD_HEADER_SIZE <= mappedFile.size()) {
+      ByteBuffer record = mappedFile.slice(position, PCAP_RECORD_HEADER_SIZE).order(order);
+      long seconds = Integer.toUnsignedLong(record.getInt(0));
+      long fraction = Integer.toUnsignedLong(record.getInt(4));
+      int capturedLength = record.getInt(8);
+      long dataPosition = position + PCAP_RECORD_HEADER_SIZE;
+      if (capturedLength < 0 || capturedLength > mappedFile.size() - dataPosition) {
+        // truncated file, as when capture is abruptly stopped
+        break;
+      }
+      readFrame(linkType, mappedFile.slice(dataPosition, capturedLength),
+          seconds * NANOS_PER_SECOND + fraction * fractionNanos);
+      position = dataPosition + capturedLength;
+    }
+  }
+
+  private void readPcapng() throws IOException {
+    List<Integer> interfacesLinkTypes = new ArrayList<>();
+    List<Long> interfacesTimestampUnits = new ArrayList<>();
+    long lastTimestampNanos = 0;
+    long position = 0;
+    while (position + 12 <= mappedFile.size()) {
+      ByteBuffer blockHeader = mappedFile.slice(position, 12).order(order);
+      int blockType = blockHeader.getInt(0);
+      if (blockType == PCAPNG_SECTION_HEADER_BLOCK) {
+        setPcapngSectionByteOrder(blockHeader.order(ByteOrder.BIG_ENDIAN).getInt(8));
+        blockHeader.order(order);
+        interfacesLinkTypes.clear();
+        interfacesTimestampUnits.clear();
+      }
+      int blockLength = blockHeader.getInt(4);
+      if (blockLength < 12 || blockLength > mappedFile.size() - position) {
+        break;
+      }
+      ByteBuffer block = mappedFile.slice(position, blockLength).order(order);
+      int body = 8;
+      int bodyEnd = blockLength - 4;
+      if (blockType == PCAPNG_INTERFACE_DESCRIPTION_BLOCK) {
+        interfacesLinkTypes.add(block.getShort(body) & 0xffff);
+        interfacesTimestampUnits.add(readTimestampUnits(block, body + 8, bodyEnd));
+      } else if (blockType == PCAPNG_ENHANCED_PACKET_BLOCK
+          || blockType == PCAPNG_OBSOLETE_PACKET_BLOCK) {
+        int interfaceId = blockType == PCAPNG_ENHANCED_PACKET_BLOCK ? block.getInt(body)
+            : block.getShort(body) & 0xffff;
+        if (interfaceId >= interfacesLinkTypes.size()) {
+          throw new IOException("Packet of undefined interface " + interfaceId + " in " + file);
+        }
+        long timestamp = (Integer.toUnsignedLong(block.getInt(body + 4)) << 32)
+            | Integer.toUnsignedLong(block.getInt(body + 8));
+        lastTimestampNanos = toNanos(timestamp, interfacesTimestampUnits.get(interfaceId));
+        int capturedLength = Math.min(block.getInt(body + 12), bodyEnd - body - 20);
+        readFrame(interfacesLinkTypes.get(interfaceId), slice(block, body + 20, capturedLength),
+            lastTimestampNanos);
+      } else if (blockType == PCAPNG_SIMPLE_PACKET_BLOCK && !interfacesLinkTypes.isEmpty()) {
+        // simple packets have no timestamp, so they are considered sent with previous packet
+        int capturedLength = Math.min(block.getInt(body), bodyEnd - body - 4);
+        readFrame(interfacesLinkTypes.get(0), slice(block, body + 4, capturedLength),
+            lastTimestampNanos);
+      }
+      position += blockLength;
+    }
+  }
+
+  private void setPcapngSectionByteOrder(int magic) throws IOException {
+    if (magic == PCAPNG_BYTE_ORDER_MAGIC) {
+      order = ByteOrder.BIG_ENDIAN;
+    } else if (magic == Integer.reverseBytes(PCAPNG_BYTE_ORDER_MAGIC)) {
+      order = ByteOrder.LITTLE_ENDIAN;
+    } else {
+      throw new IOException("Invalid section header in " + file);
+    }
+  }
+
+  private static long readTimestampUnits(ByteBuffer block, int optionsPosition,
+      int optionsEnd) {
+    int position = optionsPosition;
+    while (position + 4 <= optionsEnd) {
+      int code = block.getShort(position) & 0xffff;
+      int length = block.getShort(position + 2) & 0xffff;
+      if (code == 0) {
+        break;
+      }
+      if (code == PCAPNG_TIMESTAMP_RESOLUTION_OPTION && length == 1) {
+        int resolution = block.get(position + 4);
+        return (resolution & 0x80) == 0 ? (long) Math.pow(10, resolution)
+            : 1L << (resolution & 0x7f);
+      }
+      position += 4 + (length + 3) / 4 * 4;
+    }
+    return DEFAULT_TIMESTAMP_UNITS_PER_SECOND;
+  }
+
+  private static long toNanos(long timestamp, long unitsPerSecond) {
+    return timestamp / unitsPerSecond * NANOS_PER_SECOND
+        + timestamp % unitsPerSecond * NANOS_PER_SECOND / unitsPerSecond;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer ret = buffer.duplicate();
+    ret.limit(offset + length);
+    ret.position(offset);
+    return ret.slice();
+  }
+
+  /*
+   * The frame is a big endian buffer with the frame content, from position zero to its limit.
+   */
+  private void readFrame(int linkType, ByteBuffer frame, long timestampNanos)
+      throws IOException {
+    int networkOffset = getNetworkOffset(linkType, frame);
+    if (networkOffset < 0 || networkOffset >= frame.limit()) {
+      return;
+    }
+    int ipVersion = (frame.get(networkOffset) >> 4) & 0xf;
+    if (ipVersion == 4) {
+      readIpV4Packet(frame, networkOffset, timestampNanos);
+    } else if (ipVersion == 6) {
+      readIpV6Packet(frame, networkOffset, timestampNanos);
+    }
+  }
+
+  /*
+   * Returns the offset of the IP packet in the frame, or -1 if the frame does not contain an IP
+   * packet.
+   */
+  private int getNetworkOffset(int linkType, ByteBuffer frame) throws IOException {
+    switch (linkType) {
+      case LINK_TYPE_ETHERNET:
+        int offset = 12;
+        while (offset + 2 <= frame.limit()) {
+          int etherType = frame.getShort(offset) & 0xffff;
+          if (etherType == ETHER_TYPE_VLAN || etherType == ETHER_TYPE_QINQ) {
+            offset += 4;
+          } else {
+            return isIpEtherType(etherType) ? offset + 2 : -1;
+          }
+        }
+        return -1;
+      case LINK_TYPE_NULL:
+      case LINK_TYPE_LOOP:
+        // address family is stored in capturing host byte order, IP version is checked instead
+        return 4;
+      case LINK_TYPE_RAW:
+      case LINK_TYPE_IPV4:
+      case LINK_TYPE_IPV6:
+        return 0;
+      case LINK_TYPE_LINUX_SLL:
+        return frame.limit() >= 16 && isIpEtherType(frame.getShort(14) & 0xffff) ? 16 : -1;
+      case LINK_TYPE_LINUX_SLL2:
+        return frame.limit() >= 20 && isIpEtherType(frame.getShort(0) & 0xffff) ? 20 : -1;
+      default:
+        throw new IOException("Unsupported link type " + linkType + " in " + file);
+    }
+  }
+
+  private static boolean isIpEtherType(int etherType) {
+    return etherType == ETHER_TYPE_IPV4 || etherType == ETHER_TYPE_IPV6;
+  }
+
+  private void readIpV4Packet(ByteBuffer frame, int offset, long timestampNanos) {
+    if (offset + 20 > frame.limit()) {
+      return;
+    }
+    int headerLength = (frame.get(offset) & 0xf) * 4;
+    int totalLength = frame.getShort(offset + 2) & 0xffff;
+    int fragmentation = frame.getShort(offset + 6) & 0x3fff;
+    int protocol = frame.get(offset + 9) & 0xff;
+    if (protocol != TCP_PROTOCOL || fragmentation != 0) {
+      return;
+    }
+    // total length is zero in captures of TCP segmentation offload packets
+    int end = totalLength == 0 ? frame.limit() : Math.min(offset + totalLength, frame.limit());
+    readTcpSegment(frame, offset + headerLength, end, readAddress(frame, offset + 12, 4),
+        readAddress(frame, offset + 16, 4), timestampNanos);
+  }
+
+  private static String readAddress(ByteBuffer frame, int offset, int length) {
+    byte[] address = new byte[length];
+    for (int i = 0; i < length; i++) {
+      address[i] = frame.get(offset + i);
+    }
+    try {
+      return InetAddresses.toAddrString(InetAddress.getByAddress(address));
+    } catch (UnknownHostException e) {
+      // this should never happen since only IPv4 and IPv6 addresses lengths are used
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void readIpV6Packet(ByteBuffer frame, int offset, long timestampNanos) {
+    if (offset + 40 > frame.limit()) {
+      return;
+    }
+    int payloadLength = frame.getShort(offset + 4) & 0xffff;
+    int nextHeader = frame.get(offset + 6) & 0xff;
+    int end = payloadLength == 0 ? frame.limit()
+        : Math.min(offset + 40 + payloadLength, frame.limit());
+    int position = offset + 40;
+    while (nextHeader == IPV6_HOP_BY_HOP_HEADER || nextHeader == IPV6_ROUTING_HEADER
+        || nextHeader == IPV6_DESTINATION_OPTIONS_HEADER) {
+      if (position + 2 > end) {
+        return;
+      }
+      nextHeader = frame.get(position) & 0xff;
+      position += ((frame.get(position + 1) & 0xff) + 1) * 8;
+    }
+    // fragmented packets and non TCP packets are ignored
+    if (nextHeader != TCP_PROTOCOL) {
+      return;
+    }
+    readTcpSegment(frame, position, end, readAddress(frame, offset + 8, 16),
+        readAddress(frame, offset + 24, 16), timestampNanos);
+  }
+
+  private void readTcpSegment(ByteBuffer frame, int offset, int end, String sourceIp,
+      String destinationIp, long timestampNanos) {
+    if (offset + 20 > end) {
+      return;
+    }
+    int dataOffset = ((frame.get(offset + 12) >> 4) & 0xf) * 4;
+    if (offset + dataOffset > end) {
+      return;
+    }
+    ByteBuffer payload = frame.duplicate();
+    payload.limit(end);
+    payload.position(offset + dataOffset);
+    consumer.accept(new TcpSegment(timestampNanos, sourceIp, frame.getShort(offset) & 0xffff,
+        destinationIp, frame.getShort(offset + 2) & 0xffff,
+        Integer.toUnsignedLong(frame.getInt(offset + 4)), frame.get(offset + 13) & 0x3f,
+        payload.slice()));
+  }
+
+}
@@ -0,0 +1,176 @@
+package us.abstracta.wiresham;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * Connections which flows of a {@link VirtualTcpService} are waiting for, on ports other than the
+ * one where the flows started.
+ * <p>
+ * Each pending connection is a future completed with the connection assigned to it. Pending
+ * connections are kept in concurrent queues per port and, depending on the
+ * {@link ConnectionCorrelation}, per port and client host, so a new connection is assigned in
+ * constant time and without locking. Only starting a flow when no flow is waiting for a
+ * connection takes a lock, so connections of a client received concurrently on different ports
+ * don't start flows waiting for each other. Since a future can only be completed once, the same
+ * pending connection may be queued in both queues, and it is removed from both of them as soon
+ * as it is assigned or cancelled (when a flow ends).
+ *
+ * @param <T> type of the connections, which depends on the engine attending them.
+ */
+final class PendingConnections<T> {
+
+  private final ConnectionCorrelation correlation;
+  private final Map<Integer, Queue<CompletableFuture<T>>> portsPending =
+      new ConcurrentHashMap<>();
+  private final Map<ClientPort, Queue<CompletableFuture<T>>> clientsPending =
+      new ConcurrentHashMap<>();
+
+  PendingConnections(ConnectionCorrelation correlation) {
+    this.correlation = correlation;
+  }
+
+  /**
+   * Registers a connection a flow waits for.
+   *
+   * @param port port where the connection is expected.
+   * @param client host of the client which started the flow.
+   * @param connection future to complete with the connection.
+   */
+  void add(int port, InetAddress client, CompletableFuture<T> connection) {
+    if (correlation != ConnectionCorrelation.CLIENT_ADDRESS) {
+      add(portsPending, port, connection);
+    }
+    ClientPort clientPort = new ClientPort(client, port);
+    if (correlation != ConnectionCorrelation.ANY) {
+      add(clientsPending, clientPort, connection);
+    }
+    connection.whenComplete((c, e) -> {
+      remove(portsPending, port, connection);
+      remove(clientsPending, clientPort, connection);
+    });
+  }
+
+  /*
+   * Queues are updated while computing their entries so a queue is not removed when found empty
+   * by a concurrent update.
+   */
+  private static <K, T> void add(Map<K, Queue<CompletableFuture<T>>> pending, K key,
+      CompletableFuture<T> connection) {
+    pending.compute(key, (k, queue) -> {
+      Queue<CompletableFuture<T>> ret = queue != null ? queue : new ConcurrentLinkedQueue<>();
+      ret.add(connection);
+      return ret;
+    });
+  }
+
+  private static <K, T> void remove(Map<K, Queue<CompletableFuture<T>>> pending, K key,
+      CompletableFuture<T> connection) {
+    pending.computeIfPresent(key, (k, queue) -> {
+      queue.remove(connection);
+      return queue.isEmpty() ? null : queue;
+    });
+  }
+
+  /**
+   * Assigns a connection to a flow waiting for it, according to the correlation policy.
+   *
+   * @param port port where the connection was received.
+   * @param client host of the client which opened the connection.
+   * @param connection the received connection.
+   * @return true if the connection has been assigned, false if no flow was waiting for it.
+   */
+  boolean assign(int port, InetAddress client, T connection) {
+    if (correlation != ConnectionCorrelation.ANY) {
+      Queue<CompletableFuture<T>> queue = clientsPending.get(new ClientPort(client, port));
+      if (queue != null && assign(queue, connection)) {
+        return true;
+      }
+    }
+    if (correlation != ConnectionCorrelation.CLIENT_ADDRESS) {
+      Queue<CompletableFuture<T>> queue = portsPending.get(port);
+      return queue != null && assign(queue, connection);
+    }
+    return false;
+  }
+
+  private static <T> boolean assign(Queue<CompletableFuture<T>> queue, T connection) {
+    CompletableFuture<T> pending = queue.poll();
+    while (pending != null) {
+      if (pending.complete(connection)) {
+        return true;
+      }
+      pending = queue.poll();
+    }
+    return false;
+  }
+
+  /**
+   * Assigns a connection to a flow waiting for it or, if there is none, starts a new flow with
+   * it.
+   * <p>
+   * Flows are started while holding a lock, which is also held while checking again for flows
+   * waiting for the connection. So connections a flow waits for must only be added by flow
+   * starters, to make sure that no connection starts a new flow when a concurrently started one
+   * waits for it.
+   *
+   * @param port port where the connection was received.
+   * @param client host of the client which opened the connection.
+   * @param connection the received connection.
+   * @param flowStarter starts a new flow with the connection, registering the connections it
+   * waits for.
+   * @param <R> type of the started flow.
+   * @return the flow started by the flow starter, or null if the connection has been assigned
+   * to a flow waiting for it.
+   */
+  <R> R assignOrStart(int port, InetAddress client, T connection, Supplier<R> flowStarter) {
+    if (assign(port, client, connection)) {
+      return null;
+    }
+    synchronized (this) {
+      return assign(port, client, connection) ? null : flowStarter.get();
+    }
+  }
+
+  /**
+   * @return true if no flow is waiting for a connection.
+   */
+  boolean isEmpty() {
+    return portsPending.isEmpty() && clientsPending.isEmpty();
+  }
+
+  private static final class ClientPort {
+
+    private final InetAddress client;
+    private final int port;
+
+    private ClientPort(InetAddress client, int port) {
+      this.client = client;
+      this.port = port;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      ClientPort that = (ClientPort) o;
+      return port == that.port && client.equals(that.client);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * client.hashCode() + port;
+    }
+
+  }
+
+}
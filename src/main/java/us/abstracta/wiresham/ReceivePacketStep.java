@@ -2,6 +2,7 @@ package us.abstracta.wiresham;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Objects;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -12,6 +13,9 @@ public class ReceivePacketStep extends PacketStep {
 
   private static final Logger LOG = LoggerFactory.getLogger(ReceivePacketStep.class);
 
+  private long timeoutMillis;
+  private volatile PacketMatcher matcher;
+
   public ReceivePacketStep() {
   }
 
@@ -23,80 +27,137 @@ public class ReceivePacketStep extends PacketStep {
     super(hexDump, port);
   }
 
+  ReceivePacketStep(Packet data, int port) {
+    super(data, port);
+  }
+
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Sets the maximum time to wait for the packet, which overrides the receive timeout of the
+   * service for this step. Zero (the default) means the receive timeout of the service is used.
+   *
+   * @see VirtualTcpService#setReceiveTimeoutMillis(long)
+   */
+  public void setTimeoutMillis(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  @Override
+  public void setData(String data) {
+    super.setData(data);
+    matcher = null;
+  }
+
+  /*
+   * Matcher is built on first use, since it requires additional memory proportional to the size
+   * of the expected packet, which is only worth paying for steps actually used.
+   */
+  private PacketMatcher getMatcher() {
+    PacketMatcher ret = matcher;
+    if (ret == null) {
+      ret = new PacketMatcher(data.getBuffer());
+      matcher = ret;
+    }
+    return ret;
+  }
+
   @Override
   public void process(FlowConnection flowConnection) throws IOException {
-    ByteBuffer dataBuffer = ByteBuffer.wrap(data.getBytes());
     LOG.debug("Waiting for {}", data);
-    boolean receivedExpected = false;
-    while (!receivedExpected) {
-      ByteBuffer readBuffer = flowConnection.read();
-      int foundPos = findDataInBuffer(dataBuffer, readBuffer);
-      if (foundPos != -1) {
-        if (foundPos != 0 && LOG.isTraceEnabled()) {
-          LOG.trace("ignoring received {}  before expected",
-              Packet.fromBytes(readBuffer.array(), 0, foundPos));
-        }
-        LOG.debug("received expected {}", data);
-        readBuffer.compact();
-        readBuffer.flip();
-        receivedExpected = true;
-      } else if (readBuffer.limit() == readBuffer.capacity()) {
-        int markedPosition = getMarkedPosition(readBuffer);
-        if (markedPosition != -1) {
-          int relativePos = readBuffer.position() - markedPosition + 1;
-          readBuffer.compact();
-          readBuffer.flip();
-          readBuffer.position(1);
-          readBuffer.mark();
-          readBuffer.position(relativePos);
-        } else {
-          if (LOG.isTraceEnabled()) {
-            LOG.trace("ignoring received {} while waiting for {}",
-                Packet.fromBytes(readBuffer.array(), 0, readBuffer.limit()), data);
-          }
-          readBuffer.clear();
-          readBuffer.limit(0);
-        }
+    if (flowConnection.getFrameDecoder() != null) {
+      while (!consumeFrame(flowConnection, flowConnection.readFrame())) {
+        LOG.trace("waiting for next frame");
       }
+      return;
+    }
+    int matchedCount = 0;
+    while (!isReceived(matchedCount)) {
+      matchedCount = consume(flowConnection, flowConnection.read(), matchedCount);
     }
   }
 
-  private int findDataInBuffer(ByteBuffer dataBuffer, ByteBuffer readBuffer) {
-    if (LOG.isTraceEnabled()) {
-      LOG.trace("Searching for {} from {} in {} from {}", data, dataBuffer.position(),
-          Packet.fromBytes(readBuffer.array(), 0, readBuffer.limit()), readBuffer.position());
-    }
-    while (dataBuffer.hasRemaining() && readBuffer.hasRemaining()) {
-      if (readBuffer.get() != dataBuffer.get()) {
-        if (dataBuffer.position() != 1) {
-          LOG.trace("Finish match at {} and {}", readBuffer.position() - 1,
-              dataBuffer.position() - 1);
-          readBuffer.reset();
-        }
-        dataBuffer.rewind();
-      } else if (dataBuffer.position() == 1) {
-        readBuffer.mark();
-        LOG.trace("Start match at {}", readBuffer.position() - 1);
+  /**
+   * Consumes the received data available in the read buffer looking for the expected packet.
+   * <p>
+   * When the expected packet is found, data received after it is kept in the read buffer for
+   * following steps.
+   *
+   * @param readBuffer buffer with data received from the connection.
+   * @param matchedCount number of bytes of the expected packet matched by previously consumed
+   * data.
+   * @return the number of bytes of the expected packet matched so far.
+   * @see #isReceived(int)
+   */
+  int consume(ByteBuffer readBuffer, int matchedCount) {
+    PacketMatcher packetMatcher = getMatcher();
+    int matched = packetMatcher.match(readBuffer, matchedCount);
+    if (packetMatcher.isComplete(matched)) {
+      int ignoredCount = readBuffer.position() - data.length();
+      if (ignoredCount > 0 && LOG.isTraceEnabled()) {
+        LOG.trace("ignoring received {} before expected",
+            Packet.fromBuffer(readBuffer, 0, ignoredCount));
       }
+      LOG.debug("received expected {}", data);
+      readBuffer.compact();
+      readBuffer.flip();
+    }
+    return matched;
+  }
+
+  /**
+   * Same as {@link #consume(ByteBuffer, int)}, but records in the connection the received bytes
+   * discarded while looking for the expected packet.
+   */
+  int consume(FlowConnection connection, ByteBuffer readBuffer, int matchedCount) {
+    int remaining = readBuffer.remaining();
+    int matched = consume(readBuffer, matchedCount);
+    connection.recordDiscardedBytes(remaining - readBuffer.remaining() - (matched - matchedCount));
+    return matched;
+  }
+
+  /**
+   * Checks if a received frame is the expected packet, comparing its length and content.
+   * <p>
+   * Frames which are not the expected packet are discarded and recorded as such in the
+   * connection.
+   *
+   * @param connection connection where the frame was received.
+   * @param frame received frame, as returned by {@link FlowConnection#readFrame()}.
+   * @return true if the frame is the expected packet, false otherwise.
+   */
+  boolean consumeFrame(FlowConnection connection, ByteBuffer frame) {
+    if (frame.remaining() == data.length() && frame.equals(data.getBuffer())) {
+      LOG.debug("received expected {}", data);
+      return true;
     }
-    if (!dataBuffer.hasRemaining()) {
-      return getMarkedPosition(readBuffer) - 1;
-    } else {
-      return -1;
+    if (LOG.isTraceEnabled()) {
+      LOG.trace("ignoring received frame {}",
+          Packet.fromBuffer(frame, frame.position(), frame.remaining()));
     }
+    connection.recordDiscardedBytes(frame.remaining());
+    return false;
   }
 
-  private int getMarkedPosition(ByteBuffer readBuffer) {
-    int position = readBuffer.position();
-    readBuffer.reset();
-    int markedPosition = readBuffer.position();
-    readBuffer.position(position);
-    return markedPosition;
+  boolean isReceived(int matchedCount) {
+    return getMatcher().isComplete(matchedCount);
   }
 
   @Override
   public String toString() {
-    return "client: " + data;
+    return "client: " + data + (timeoutMillis > 0 ? ", timeoutMillis: " + timeoutMillis : "");
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return super.equals(o) && timeoutMillis == ((ReceivePacketStep) o).timeoutMillis;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(super.hashCode(), timeoutMillis);
   }
 
 }
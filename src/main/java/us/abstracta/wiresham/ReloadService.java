@@ -11,20 +11,39 @@ import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Watches the flow file of a {@link VirtualTcpService} and reloads the flow of the service when
+ * the file is modified.
+ * <p>
+ * Since editors usually generate several modification events on each save, reloads are debounced:
+ * the flow is loaded once no modification has been notified for a given time. Flows are loaded
+ * in a separate thread from the one watching the file, and are only set in the service when
+ * they are successfully loaded and contain at least one step, keeping the previous flow
+ * otherwise.
+ */
 public class ReloadService implements Runnable {
 
+  public static final long DEFAULT_DEBOUNCE_MILLIS = 300;
+
   private static final Logger LOG = LoggerFactory.getLogger(ReloadService.class);
   private final VirtualTcpService service;
   private final ExecutorService reloadExecutorService =
       Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
           .setNameFormat("Auto-Reload-Service-%d").build());
+  private final ScheduledExecutorService loadScheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("Flow-Loader-%d").build());
   private final File configFile;
   private final Supplier<Flow> loadFlowProvider;
+  private long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+  private ScheduledFuture<?> scheduledLoad;
 
   public ReloadService(VirtualTcpService service, File configFile,
       Supplier<Flow> loadFlowProvider) {
@@ -33,6 +52,13 @@ public class ReloadService implements Runnable {
     this.loadFlowProvider = loadFlowProvider;
   }
 
+  /**
+   * Sets the time to wait since last file modification before reloading the flow.
+   */
+  public void setDebounceMillis(long debounceMillis) {
+    this.debounceMillis = debounceMillis;
+  }
+
   @Override
   public void run() {
     try {
@@ -77,12 +103,42 @@ public class ReloadService implements Runnable {
 
       Path p = (Path) pollEvent.context();
       if (configFile.toPath().resolveSibling(p).equals(configFile.toPath())) {
-        LOG.info("File was modified, new connections will now use last changes");
-        service.setFlow(loadFlowProvider.get());
+        scheduleLoad();
       }
     }
   }
 
+  private void scheduleLoad() {
+    if (scheduledLoad != null) {
+      scheduledLoad.cancel(false);
+    }
+    scheduledLoad = loadScheduler.schedule(this::loadFlow, debounceMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void loadFlow() {
+    Flow flow;
+    try {
+      flow = loadFlowProvider.get();
+    } catch (RuntimeException e) {
+      LOG.error("Could not load modified file {}, keeping previous flow",
+          configFile.getAbsolutePath(), e);
+      return;
+    }
+    if (flow == null || flow.getSteps().isEmpty()) {
+      LOG.error("No steps found in modified file {}, keeping previous flow",
+          configFile.getAbsolutePath());
+      return;
+    }
+    try {
+      service.setFlow(flow);
+      LOG.info("File was modified, new connections will now use last changes");
+    } catch (RuntimeException e) {
+      LOG.error("Invalid flow in modified file {}, keeping previous flow",
+          configFile.getAbsolutePath(), e);
+    }
+  }
+
   public void start() {
     reloadExecutorService.submit(this);
   }
@@ -92,6 +148,7 @@ public class ReloadService implements Runnable {
       return;
     }
     reloadExecutorService.shutdown();
+    loadScheduler.shutdownNow();
     reloadExecutorService.awaitTermination(VirtualTcpServiceMain.STOP_TIMEOUT_MILLIS,
         TimeUnit.MILLISECONDS);
   }
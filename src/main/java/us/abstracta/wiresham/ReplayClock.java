@@ -0,0 +1,94 @@
+package us.abstracta.wiresham;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Computes when server packets of a connection should be sent according to their delays.
+ * <p>
+ * By default, each delay is counted from the moment its step is reached, so time spent writing
+ * previous packets and waking up after previous delays piles up along the flow. With an absolute
+ * schedule, each delay is counted from the instant the previous server packet was scheduled to
+ * be sent, on a {@link System#nanoTime()} timeline anchored at the flow start, so such errors
+ * don't accumulate on long flows. Since server packets can't be sent before the client packets
+ * preceding them, the timeline is anchored again each time a client packet is received.
+ * <p>
+ * With an absolute schedule, waits end spinning for the last
+ * {@value #SPIN_MICROS} microseconds, to send packets with microseconds precision instead of the
+ * precision of the operating system timers.
+ */
+final class ReplayClock {
+
+  static final long SPIN_MICROS = 200;
+
+  private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(SPIN_MICROS);
+
+  private final boolean absoluteSchedule;
+  private long timelineNanos;
+
+  ReplayClock(boolean absoluteSchedule) {
+    this.absoluteSchedule = absoluteSchedule;
+    this.timelineNanos = System.nanoTime();
+  }
+
+  /**
+   * Schedules sending a server packet.
+   *
+   * @param delayMicros delay of the server packet.
+   * @return the {@link System#nanoTime()} at which the packet should be sent.
+   */
+  long scheduleSend(long delayMicros) {
+    long base = absoluteSchedule ? timelineNanos : System.nanoTime();
+    timelineNanos = base + TimeUnit.MICROSECONDS.toNanos(delayMicros);
+    return timelineNanos;
+  }
+
+  /**
+   * Anchors the timeline to the current time, when a client packet is received.
+   */
+  void received() {
+    timelineNanos = System.nanoTime();
+  }
+
+  /**
+   * Gets the time at which a timer should wake up to send a packet scheduled at the given time,
+   * which is earlier than the scheduled time when waits end spinning.
+   */
+  long getWakeUpNanos(long sendNanos) {
+    return absoluteSchedule ? sendNanos - SPIN_NANOS : sendNanos;
+  }
+
+  /**
+   * Blocks current thread until the given time, if not already reached.
+   */
+  void awaitSend(long sendNanos) throws InterruptedException {
+    if (absoluteSchedule) {
+      sleepUntil(sendNanos - SPIN_NANOS);
+      while (System.nanoTime() - sendNanos < 0) {
+        // spin to not depend on timers precision
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    } else {
+      sleepUntil(sendNanos);
+    }
+  }
+
+  /**
+   * Blocks current thread until the given {@link System#nanoTime()}.
+   * <p>
+   * Unlike {@link Thread#sleep(long, int)}, this does not round the time to milliseconds.
+   */
+  static void sleepUntil(long nanos) throws InterruptedException {
+    long remaining = nanos - System.nanoTime();
+    while (remaining > 0) {
+      LockSupport.parkNanos(remaining);
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      remaining = nanos - System.nanoTime();
+    }
+  }
+
+}
@@ -0,0 +1,312 @@
+package us.abstracta.wiresham;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Index from each client packet of one or more flows to the server packets which followed it,
+ * used to answer client requests regardless of their order.
+ * <p>
+ * Client packets are indexed by content, so a request is looked up by its hash in constant time.
+ * When the same client packet appears several times in the flows, each occurrence keeps its own
+ * responses, which are used in order of appearance by consecutive equal requests on a
+ * connection.
+ * <p>
+ * Requests at the beginning of unframed data are looked up with a {@link Scanner}, which keeps a
+ * rolling hash of received data for each length of known requests. This way, each received byte
+ * is hashed a bounded number of times (twice per requests length) while it does not belong to a
+ * request, instead of hashing again all the candidate requests each time a byte is discarded.
+ * Hashes of the beginnings of known requests are also kept, so received data is discarded as soon
+ * as it can not be the beginning of any known request, instead of waiting to receive as many bytes
+ * as the longest known request.
+ */
+final class ResponseIndex {
+
+  private static final SendPacketStep[] NO_STEPS = new SendPacketStep[0];
+  private static final int HASH_BASE = 0x01000193;
+
+  private final SendPacketStep[] welcomeSteps;
+  private final Map<ByteBuffer, Request> requests;
+  private final RequestsOfLength[] requestsByLength;
+  private final int[] hashBasePowers;
+  private final int[][] prefixHashes;
+
+  private ResponseIndex(SendPacketStep[] welcomeSteps, Map<ByteBuffer, Request> requests) {
+    this.welcomeSteps = welcomeSteps;
+    this.requests = requests;
+    Map<Integer, List<Request>> lengthsRequests = new TreeMap<>(Collections.reverseOrder());
+    requests.values().forEach(r -> lengthsRequests.computeIfAbsent(r.length(),
+        l -> new ArrayList<>()).add(r));
+    this.requestsByLength = lengthsRequests.values().stream()
+        .map(RequestsOfLength::new)
+        .toArray(RequestsOfLength[]::new);
+    this.hashBasePowers = new int[getMaxRequestLength() + 1];
+    hashBasePowers[0] = 1;
+    for (int i = 1; i < hashBasePowers.length; i++) {
+      hashBasePowers[i] = hashBasePowers[i - 1] * HASH_BASE;
+    }
+    this.prefixHashes = buildPrefixHashes(requests.values(), getMaxRequestLength());
+  }
+
+  /*
+   * Builds for each length the sorted hashes of the beginnings of that length of longer requests.
+   */
+  private static int[][] buildPrefixHashes(Collection<Request> requests, int maxRequestLength) {
+    List<Set<Integer>> lengthsHashes = new ArrayList<>();
+    for (int i = 0; i < maxRequestLength; i++) {
+      lengthsHashes.add(new TreeSet<>());
+    }
+    for (Request request : requests) {
+      ByteBuffer content = request.content;
+      int hash = 0;
+      for (int i = 1; i < content.remaining(); i++) {
+        hash = hash * HASH_BASE + content.get(content.position() + i - 1);
+        lengthsHashes.get(i).add(hash);
+      }
+    }
+    return lengthsHashes.stream()
+        .map(hashes -> hashes.stream().mapToInt(Integer::intValue).toArray())
+        .toArray(int[][]::new);
+  }
+
+  /**
+   * Builds the index for the given flows.
+   * <p>
+   * Server packets sent before the first client packet of the first flow are considered welcome
+   * packets, to be sent when a connection is established. Server packets sent before the first
+   * client packet of other flows are ignored, as well as empty client packets.
+   */
+  static ResponseIndex build(List<CompiledFlow> flows) {
+    List<SendPacketStep> welcomeSteps = new ArrayList<>();
+    Map<ByteBuffer, List<SendPacketStep[]>> occurrences = new LinkedHashMap<>();
+    for (int i = 0; i < flows.size(); i++) {
+      CompiledFlow flow = flows.get(i);
+      ByteBuffer request = null;
+      List<SendPacketStep> responses = i == 0 ? welcomeSteps : new ArrayList<>();
+      for (int stepIndex = 0; stepIndex < flow.size(); stepIndex++) {
+        PacketStep step = flow.getStep(stepIndex);
+        if (step instanceof SendPacketStep) {
+          responses.add((SendPacketStep) step);
+        } else if (step.data.length() > 0) {
+          addOccurrence(request, responses, occurrences);
+          request = step.data.getBuffer().asReadOnlyBuffer();
+          responses = new ArrayList<>();
+        }
+      }
+      addOccurrence(request, responses, occurrences);
+    }
+    Map<ByteBuffer, Request> requests = new HashMap<>();
+    occurrences.forEach((request, responses) -> requests.put(request,
+        new Request(request, responses.toArray(new SendPacketStep[0][]))));
+    return new ResponseIndex(welcomeSteps.toArray(NO_STEPS), requests);
+  }
+
+  private static void addOccurrence(ByteBuffer request, List<SendPacketStep> responses,
+      Map<ByteBuffer, List<SendPacketStep[]>> occurrences) {
+    if (request != null) {
+      occurrences.computeIfAbsent(request, r -> new ArrayList<>())
+          .add(responses.toArray(NO_STEPS));
+    }
+  }
+
+  SendPacketStep[] getWelcomeSteps() {
+    return welcomeSteps;
+  }
+
+  /**
+   * Gets the known request with the same content as the given frame.
+   *
+   * @param frame received frame, from its position to its limit.
+   * @return the found request or null if the frame is not a known request.
+   */
+  Request get(ByteBuffer frame) {
+    return requests.get(frame);
+  }
+
+  /**
+   * @return a new scanner to look for known requests in the data received by a connection.
+   */
+  Scanner newScanner() {
+    return new Scanner();
+  }
+
+  /**
+   * @return the length of the longest known request.
+   */
+  int getMaxRequestLength() {
+    return requestsByLength.length > 0 ? requestsByLength[0].length : 0;
+  }
+
+  private static int hash(ByteBuffer data) {
+    int ret = 0;
+    for (int i = data.position(); i < data.limit(); i++) {
+      ret = ret * HASH_BASE + data.get(i);
+    }
+    return ret;
+  }
+
+  static final class Request {
+
+    private final ByteBuffer content;
+    private final SendPacketStep[][] occurrencesResponses;
+
+    private Request(ByteBuffer content, SendPacketStep[][] occurrencesResponses) {
+      this.content = content;
+      this.occurrencesResponses = occurrencesResponses;
+    }
+
+    int length() {
+      return content.remaining();
+    }
+
+    /**
+     * @param occurrence number of times the request has already been answered in a connection.
+     * @return the responses for the given occurrence of the request, which are the ones of the
+     * last occurrence if the request is received more times than in the flows.
+     */
+    SendPacketStep[] getResponses(int occurrence) {
+      return occurrencesResponses[Math.min(occurrence, occurrencesResponses.length - 1)];
+    }
+
+    boolean hasManyOccurrences() {
+      return occurrencesResponses.length > 1;
+    }
+
+  }
+
+  /*
+   * Requests with the same length, sorted by their hash so they are looked up by hash with a
+   * binary search, without boxing hashes.
+   */
+  private static final class RequestsOfLength {
+
+    private final int length;
+    private final int[] hashes;
+    private final Request[] requests;
+
+    private RequestsOfLength(List<Request> requests) {
+      this.length = requests.get(0).length();
+      this.requests = requests.stream()
+          .sorted(Comparator.comparingInt(r -> hash(r.content)))
+          .toArray(Request[]::new);
+      this.hashes = Arrays.stream(this.requests)
+          .mapToInt(r -> hash(r.content))
+          .toArray();
+    }
+
+    private Request find(int hash, ByteBuffer data) {
+      int index = Arrays.binarySearch(hashes, hash);
+      if (index < 0) {
+        return null;
+      }
+      // binary search may find any of the requests with colliding hashes
+      while (index > 0 && hashes[index - 1] == hash) {
+        index--;
+      }
+      ByteBuffer candidate = data.duplicate();
+      candidate.limit(data.position() + length);
+      for (; index < hashes.length && hashes[index] == hash; index++) {
+        if (requests[index].content.equals(candidate)) {
+          return requests[index];
+        }
+      }
+      return null;
+    }
+
+  }
+
+  /**
+   * Looks for known requests at the beginning of the data received by a connection.
+   * <p>
+   * The scanner keeps, for each length of known requests, the hash of the received data from its
+   * beginning up to such length. So, it is not thread safe, and the data given to it must only
+   * change by adding received data at its end, or through {@link #skip(ByteBuffer)} and
+   * {@link #consume(ByteBuffer, Request)}.
+   */
+  final class Scanner {
+
+    private final int[] hashes = new int[requestsByLength.length];
+    private final int[] hashedLengths = new int[requestsByLength.length];
+
+    private Scanner() {
+    }
+
+    /**
+     * Looks for a known request at the beginning of the given data, preferring the longest one
+     * when several requests match.
+     *
+     * @param data received data, which is not modified.
+     * @return the found request or null if no request matches the beginning of the data.
+     */
+    Request find(ByteBuffer data) {
+      for (int i = 0; i < requestsByLength.length; i++) {
+        RequestsOfLength candidates = requestsByLength[i];
+        int hashEnd = Math.min(candidates.length, data.remaining());
+        int hash = hashes[i];
+        for (int j = hashedLengths[i]; j < hashEnd; j++) {
+          hash = hash * HASH_BASE + data.get(data.position() + j);
+        }
+        hashes[i] = hash;
+        hashedLengths[i] = hashEnd;
+        if (hashEnd == candidates.length) {
+          Request ret = candidates.find(hash, data);
+          if (ret != null) {
+            return ret;
+          }
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Checks if the given data, where {@link #find(ByteBuffer)} found no request, may be the
+     * beginning of a known request, so more data needs to be received before skipping any of it.
+     * <p>
+     * Hash collisions may report data as a possible beginning of a request when it is not, which
+     * only delays skipping it until the data is as long as the longest known request.
+     */
+    boolean isPossibleRequestStart(ByteBuffer data) {
+      int length = data.remaining();
+      if (length >= getMaxRequestLength()) {
+        return false;
+      }
+      // longest requests are first, so the first hash covers all the data
+      return length == 0 || Arrays.binarySearch(prefixHashes[length], hashes[0]) >= 0;
+    }
+
+    /**
+     * Discards the first byte of the given data.
+     */
+    void skip(ByteBuffer data) {
+      byte discarded = data.get();
+      for (int i = 0; i < hashes.length; i++) {
+        if (hashedLengths[i] > 0) {
+          hashedLengths[i]--;
+          hashes[i] -= discarded * hashBasePowers[hashedLengths[i]];
+        }
+      }
+    }
+
+    /**
+     * Removes a request found at the beginning of the given data.
+     */
+    void consume(ByteBuffer data, Request request) {
+      data.position(data.position() + request.length());
+      Arrays.fill(hashes, 0);
+      Arrays.fill(hashedLengths, 0);
+    }
+
+  }
+
+}
@@ -0,0 +1,72 @@
+package us.abstracta.wiresham;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+/**
+ * Enables SO_REUSEPORT socket option, which allows several sockets to listen on the same port,
+ * with the operating system balancing new connections among them.
+ * <p>
+ * The option is only considered supported on Linux (where connections are balanced among
+ * sockets) when running on JDK 9+. The option is accessed through reflection to keep the library
+ * compatible with JDK 8.
+ */
+final class ReusePort {
+
+  private static final SocketOption<Boolean> OPTION = findOption();
+
+  private ReusePort() {
+  }
+
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> findOption() {
+    if (!System.getProperty("os.name", "").toLowerCase().startsWith("linux")) {
+      return null;
+    }
+    try {
+      return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT")
+          .get(null);
+    } catch (ReflectiveOperationException e) {
+      // SO_REUSEPORT is not available (JDK < 9)
+      return null;
+    }
+  }
+
+  static boolean isSupported() {
+    return OPTION != null;
+  }
+
+  /**
+   * Enables the option in the given socket, which must not be bound yet.
+   *
+   * @throws IOException if the option could not be enabled.
+   */
+  static void enable(ServerSocket socket) throws IOException {
+    try {
+      ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class)
+          .invoke(socket, OPTION, true);
+    } catch (InvocationTargetException e) {
+      throw new IOException("Could not enable SO_REUSEPORT", e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IOException("Could not enable SO_REUSEPORT", e);
+    }
+  }
+
+  /**
+   * Enables the option in the given channel, which must not be bound yet.
+   *
+   * @throws IOException if the option could not be enabled.
+   */
+  static void enable(NetworkChannel channel) throws IOException {
+    try {
+      channel.setOption(OPTION, true);
+    } catch (UnsupportedOperationException e) {
+      throw new IOException("Could not enable SO_REUSEPORT", e);
+    }
+  }
+
+}
@@ -2,53 +2,87 @@ package us.abstracta.wiresham;
 
 import java.io.IOException;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A step in a flow which sends a packet.
+ * <p>
+ * The delay of the packet is kept with microseconds precision, and can be set either in
+ * milliseconds or microseconds.
  */
 public class SendPacketStep extends PacketStep {
 
   private static final Logger LOG = LoggerFactory.getLogger(SendPacketStep.class);
 
-  private long delayMillis;
+  private long delayMicros;
 
   public SendPacketStep() {
   }
 
   public SendPacketStep(String hexDump, long delayMillis) {
     super(hexDump);
-    this.delayMillis = delayMillis;
+    this.delayMicros = TimeUnit.MILLISECONDS.toMicros(delayMillis);
   }
 
   public SendPacketStep(String hexDump, long delayMillis, int port) {
     super(hexDump, port);
-    this.delayMillis = delayMillis;
+    this.delayMicros = TimeUnit.MILLISECONDS.toMicros(delayMillis);
     this.port = port;
   }
 
+  SendPacketStep(Packet data, long delayMicros, int port) {
+    super(data, port);
+    this.delayMicros = delayMicros;
+  }
+
+  /**
+   * @return the delay truncated to milliseconds.
+   */
   public long getDelayMillis() {
-    return delayMillis;
+    return TimeUnit.MICROSECONDS.toMillis(delayMicros);
   }
 
   public void setDelayMillis(long delayMillis) {
-    this.delayMillis = delayMillis;
+    this.delayMicros = TimeUnit.MILLISECONDS.toMicros(delayMillis);
+  }
+
+  public long getDelayMicros() {
+    return delayMicros;
+  }
+
+  /**
+   * Sets the delay with microseconds precision, replacing any delay set in milliseconds.
+   * <p>
+   * Flows saved in YAML use this property instead of delayMillis only for delays which are not a
+   * whole number of milliseconds.
+   */
+  public void setDelayMicros(long delayMicros) {
+    this.delayMicros = delayMicros;
   }
 
   @Override
   public void process(FlowConnection connectionDriver)
       throws IOException, InterruptedException {
-    LOG.debug("sending {} with {} millis delay", data, delayMillis);
-    if (delayMillis > 0) {
-      Thread.sleep(delayMillis);
+    if (delayMicros > 0) {
+      ReplayClock.sleepUntil(System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(delayMicros));
     }
-    connectionDriver.write(data.getBytes());
+    send(connectionDriver);
+  }
+
+  /**
+   * Sends the packet without waiting for the step delay, for drivers which handle delays by
+   * themselves.
+   */
+  void send(FlowConnection connectionDriver) throws IOException {
+    LOG.debug("sending {} with {} micros delay", data, delayMicros);
+    connectionDriver.write(data.getBuffer());
   }
 
   @Override
   public String toString() {
-    return String.format("server: %s, delayMillis: %d, port: %d", data, delayMillis, port);
+    return String.format("server: %s, delayMicros: %d, port: %d", data, delayMicros, port);
   }
 
   @Override
@@ -63,11 +97,11 @@ public class SendPacketStep extends PacketStep {
       return false;
     }
     SendPacketStep that = (SendPacketStep) o;
-    return port == that.port && delayMillis == that.delayMillis;
+    return port == that.port && delayMicros == that.delayMicros;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(super.hashCode(), port, delayMillis);
+    return Objects.hash(super.hashCode(), port, delayMicros);
   }
 }
@@ -0,0 +1,108 @@
+package us.abstracta.wiresham;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiled flows served by a {@link VirtualTcpService}, which selects the flow to replay on each
+ * new connection.
+ * <p>
+ * When the service replays a single flow, every connection replays it. When it replays
+ * conversations, each new connection replays the next conversation (in round robin) among the
+ * ones starting on the port of the connection, so simultaneous clients are attended concurrently,
+ * each one with its own captured conversation.
+ */
+final class ServiceFlows {
+
+  private final CompiledFlow[] flows;
+  private final Map<Integer, CompiledFlow[]> portsFlows;
+  private final Map<Integer, AtomicInteger> portsNextIndexes = new HashMap<>();
+  private final AtomicInteger nextIndex = new AtomicInteger();
+  private final List<Integer> ports;
+  private volatile ResponseIndex responseIndex;
+
+  private ServiceFlows(List<CompiledFlow> flows) {
+    this.flows = flows.toArray(new CompiledFlow[0]);
+    Map<Integer, List<CompiledFlow>> portsFlowsLists = new HashMap<>();
+    Set<Integer> flowsPorts = new LinkedHashSet<>();
+    for (CompiledFlow flow : flows) {
+      portsFlowsLists.computeIfAbsent(flow.getFirstPort(), p -> new ArrayList<>()).add(flow);
+      flowsPorts.addAll(flow.getPorts());
+    }
+    portsFlows = new HashMap<>();
+    portsFlowsLists.forEach((port, portFlows) -> {
+      portsFlows.put(port, portFlows.toArray(new CompiledFlow[0]));
+      portsNextIndexes.put(port, new AtomicInteger());
+    });
+    ports = Collections.unmodifiableList(new ArrayList<>(flowsPorts));
+  }
+
+  /**
+   * @param previous flows previously served, whose first flow steps are reused by the new flow
+   * when unchanged, or null if there are no such flows.
+   * @see CompiledFlow#compile(Flow, int, boolean, DelayScaling, CompiledFlow)
+   */
+  static ServiceFlows of(Flow flow, int portArgument, boolean coalesceServerPackets,
+      DelayScaling delayScaling, ServiceFlows previous) {
+    return new ServiceFlows(Collections.singletonList(CompiledFlow.compile(flow, portArgument,
+        coalesceServerPackets, delayScaling, previous != null ? previous.flows[0] : null)));
+  }
+
+  static ServiceFlows ofConversations(List<Conversation> conversations, int portArgument,
+      boolean coalesceServerPackets, DelayScaling delayScaling) {
+    List<CompiledFlow> flows = new ArrayList<>();
+    for (Conversation conversation : conversations) {
+      flows.add(CompiledFlow.compile(conversation.getFlow(), portArgument,
+          coalesceServerPackets, delayScaling, null));
+    }
+    return new ServiceFlows(flows);
+  }
+
+  /**
+   * Selects the flow to replay on a new connection.
+   *
+   * @param port port where the connection was received.
+   * @return the flow to replay, which is one starting on the given port, if any, or any other
+   * flow otherwise.
+   */
+  CompiledFlow next(int port) {
+    CompiledFlow[] candidates = portsFlows.get(port);
+    AtomicInteger index = portsNextIndexes.get(port);
+    if (candidates == null) {
+      candidates = flows;
+      index = nextIndex;
+    }
+    return candidates.length == 1 ? candidates[0]
+        : candidates[Math.floorMod(index.getAndIncrement(), candidates.length)];
+  }
+
+  /**
+   * Gets the index of responses of all flows, used when requests are answered regardless of
+   * their order.
+   * <p>
+   * The index is built on first use, since it is only required in such case.
+   */
+  ResponseIndex getResponseIndex() {
+    ResponseIndex ret = responseIndex;
+    if (ret == null) {
+      ret = ResponseIndex.build(Arrays.asList(flows));
+      responseIndex = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * @return the ports explicitly defined by server steps of all flows, in order of appearance.
+   */
+  List<Integer> getPorts() {
+    return ports;
+  }
+
+}
@@ -0,0 +1,181 @@
+package us.abstracta.wiresham;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the activity of a {@link VirtualTcpService}.
+ * <p>
+ * Counters are updated by connections and flow drivers with no locking, so they can be kept
+ * always enabled, and are exposed through JMX while the service is running.
+ */
+public class ServiceMetrics implements ServiceMetricsMXBean {
+
+  private final Map<Integer, LongAdder> activeConnections = new ConcurrentHashMap<>();
+  private final Map<Integer, LongAdder> totalConnections = new ConcurrentHashMap<>();
+  private final LongAdder queuedConnections = new LongAdder();
+  private final LongAdder rejectedConnections = new LongAdder();
+  private final LongAdder completedFlows = new LongAdder();
+  private final LongAdder abortedFlows = new LongAdder();
+  private final LongAdder clientClosedFlows = new LongAdder();
+  private final LongAdder timedOutFlows = new LongAdder();
+  private final LongAdder receivedBytes = new LongAdder();
+  private final LongAdder sentBytes = new LongAdder();
+  private final LongAdder discardedBytes = new LongAdder();
+  private final LongAdder receivedPackets = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+  private final LongAdder delayedPackets = new LongAdder();
+  private final LongAdder delayOvershootNanos = new LongAdder();
+  private final LongAccumulator maxDelayOvershootNanos = new LongAccumulator(Math::max, 0);
+
+  void connectionOpened(int port) {
+    activeConnections.computeIfAbsent(port, p -> new LongAdder()).increment();
+    totalConnections.computeIfAbsent(port, p -> new LongAdder()).increment();
+  }
+
+  void connectionClosed(int port) {
+    activeConnections.computeIfAbsent(port, p -> new LongAdder()).decrement();
+  }
+
+  void connectionQueued() {
+    queuedConnections.increment();
+  }
+
+  void connectionDequeued() {
+    queuedConnections.decrement();
+  }
+
+  void connectionRejected() {
+    rejectedConnections.increment();
+  }
+
+  void flowCompleted() {
+    completedFlows.increment();
+  }
+
+  void flowAborted() {
+    abortedFlows.increment();
+  }
+
+  void flowClosedByClient() {
+    clientClosedFlows.increment();
+  }
+
+  void flowTimedOut() {
+    timedOutFlows.increment();
+  }
+
+  void bytesReceived(long count) {
+    receivedBytes.add(count);
+  }
+
+  void bytesSent(long count) {
+    sentBytes.add(count);
+  }
+
+  void bytesDiscarded(long count) {
+    discardedBytes.add(count);
+  }
+
+  void packetReceived(long waitNanos) {
+    receivedPackets.increment();
+    this.waitNanos.add(waitNanos);
+  }
+
+  void delayedPacketSent(long overshootNanos) {
+    delayedPackets.increment();
+    delayOvershootNanos.add(overshootNanos);
+    maxDelayOvershootNanos.accumulate(overshootNanos);
+  }
+
+  @Override
+  public Map<Integer, Long> getActiveConnections() {
+    return sumByPort(activeConnections);
+  }
+
+  private static Map<Integer, Long> sumByPort(Map<Integer, LongAdder> counters) {
+    Map<Integer, Long> ret = new TreeMap<>();
+    counters.forEach((port, counter) -> ret.put(port, counter.sum()));
+    return ret;
+  }
+
+  @Override
+  public Map<Integer, Long> getTotalConnections() {
+    return sumByPort(totalConnections);
+  }
+
+  @Override
+  public long getQueuedConnections() {
+    return queuedConnections.sum();
+  }
+
+  @Override
+  public long getRejectedConnections() {
+    return rejectedConnections.sum();
+  }
+
+  @Override
+  public long getCompletedFlows() {
+    return completedFlows.sum();
+  }
+
+  @Override
+  public long getAbortedFlows() {
+    return abortedFlows.sum();
+  }
+
+  @Override
+  public long getClientClosedFlows() {
+    return clientClosedFlows.sum();
+  }
+
+  @Override
+  public long getTimedOutFlows() {
+    return timedOutFlows.sum();
+  }
+
+  @Override
+  public long getReceivedBytes() {
+    return receivedBytes.sum();
+  }
+
+  @Override
+  public long getSentBytes() {
+    return sentBytes.sum();
+  }
+
+  @Override
+  public long getDiscardedBytes() {
+    return discardedBytes.sum();
+  }
+
+  @Override
+  public long getReceivedPackets() {
+    return receivedPackets.sum();
+  }
+
+  @Override
+  public long getWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+  }
+
+  @Override
+  public long getDelayedPackets() {
+    return delayedPackets.sum();
+  }
+
+  @Override
+  public long getDelayOvershootMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(delayOvershootNanos.sum());
+  }
+
+  @Override
+  public long getMaxDelayOvershootMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxDelayOvershootNanos.get());
+  }
+
+}
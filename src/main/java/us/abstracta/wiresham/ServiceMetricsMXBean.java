@@ -0,0 +1,76 @@
+package us.abstracta.wiresham;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ServiceMetrics}.
+ */
+public interface ServiceMetricsMXBean {
+
+  /**
+   * @return currently open connections, by local port.
+   */
+  Map<Integer, Long> getActiveConnections();
+
+  /**
+   * @return connections accepted since the service started, by local port.
+   */
+  Map<Integer, Long> getTotalConnections();
+
+  /**
+   * @return connections currently waiting for a thread to be attended.
+   */
+  long getQueuedConnections();
+
+  /**
+   * @return connections closed without being attended, due to the overload policy.
+   */
+  long getRejectedConnections();
+
+  long getCompletedFlows();
+
+  /**
+   * @return flows ended due to an error or because the service stopped.
+   */
+  long getAbortedFlows();
+
+  /**
+   * @return flows ended because the client closed the connection before sending an expected
+   * packet.
+   */
+  long getClientClosedFlows();
+
+  /**
+   * @return flows closed because a receive timeout or the flow timeout was exceeded.
+   */
+  long getTimedOutFlows();
+
+  long getReceivedBytes();
+
+  long getSentBytes();
+
+  /**
+   * @return received bytes which did not match any expected packet and were ignored.
+   */
+  long getDiscardedBytes();
+
+  long getReceivedPackets();
+
+  /**
+   * @return total time spent waiting for expected client packets.
+   */
+  long getWaitMillis();
+
+  long getDelayedPackets();
+
+  /**
+   * @return total time server packets were sent after their specified delay.
+   */
+  long getDelayOvershootMillis();
+
+  /**
+   * @return maximum time a server packet was sent after its specified delay.
+   */
+  long getMaxDelayOvershootMillis();
+
+}
@@ -0,0 +1,195 @@
+package us.abstracta.wiresham;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Attends a connection answering each client request with the server packets which followed it
+ * in the flow, regardless of the order of the requests.
+ * <p>
+ * Received data is accumulated until it starts with a known request (looked up in a
+ * {@link ResponseIndex}), and then the request is answered and removed from received data. When
+ * received data is as long as the longest known request and still does not start with a known
+ * one, its first byte is discarded.
+ * <p>
+ * When the connection has a {@link FrameDecoder}, each received frame is looked up as a whole,
+ * and frames which are not known requests are discarded.
+ */
+class StatelessConnectionDriver implements Runnable, ConnectionReaper.Reapable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(StatelessConnectionDriver.class);
+
+  private final FlowConnection connection;
+  private final ResponseIndex index;
+  private final ResponseIndex.Scanner scanner;
+  private final Consumer<StatelessConnectionDriver> completionListener;
+  private final Map<ResponseIndex.Request, Integer> requestsOccurrences = new HashMap<>();
+  private ByteBuffer received = ByteBuffer.allocate(0);
+  private ServiceMetrics metrics;
+  private FlowDeadlines deadlines;
+  private volatile boolean timedOut;
+
+  StatelessConnectionDriver(FlowConnection connection, ResponseIndex index,
+      Consumer<StatelessConnectionDriver> completionListener) {
+    this.connection = connection;
+    this.index = index;
+    this.scanner = index.newScanner();
+    this.completionListener = completionListener;
+  }
+
+  /**
+   * Sets metrics where to record the connection progress.
+   */
+  void setMetrics(ServiceMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Sets deadlines of the connection, which are enforced when the driver is registered in a
+   * {@link ConnectionReaper}. The receive timeout applies to each request.
+   */
+  void setDeadlines(FlowDeadlines deadlines) {
+    this.deadlines = deadlines;
+  }
+
+  @Override
+  public void run() {
+    try {
+      LOG.info("starting new stateless connection on {}", connection.getPort());
+      send(index.getWelcomeSteps());
+      while (true) {
+        long waitStartNanos = System.nanoTime();
+        if (deadlines != null) {
+          deadlines.startWait(0);
+        }
+        ResponseIndex.Request request = awaitRequest();
+        if (deadlines != null) {
+          deadlines.endWait();
+        }
+        if (metrics != null) {
+          metrics.packetReceived(System.nanoTime() - waitStartNanos);
+        }
+        send(request.getResponses(getOccurrence(request)));
+      }
+    } catch (ConnectionClosedException e) {
+      LOG.info("Connection closed by client");
+      if (metrics != null) {
+        metrics.flowClosedByClient();
+      }
+    } catch (IOException e) {
+      if (metrics != null) {
+        if (timedOut) {
+          metrics.flowTimedOut();
+        } else {
+          metrics.flowAborted();
+        }
+      }
+      if (timedOut) {
+        LOG.trace("Received expected exception when connection closed due to timeout", e);
+      } else if (e.getMessage() != null && e.getMessage().contains("Socket is closed")) {
+        LOG.trace("Received expected exception when server socket has been closed", e);
+      } else {
+        LOG.error("Problem while processing requests from client. Closing connection.", e);
+      }
+    } catch (InterruptedException e) {
+      LOG.trace("The thread has been interrupted", e);
+      Thread.currentThread().interrupt();
+    } finally {
+      close();
+      completionListener.accept(this);
+    }
+  }
+
+  private void send(SendPacketStep[] steps) throws IOException, InterruptedException {
+    for (SendPacketStep step : steps) {
+      step.process(connection);
+    }
+  }
+
+  private ResponseIndex.Request awaitRequest() throws IOException {
+    if (connection.getFrameDecoder() != null) {
+      return awaitFrameRequest();
+    }
+    while (true) {
+      ResponseIndex.Request ret = scanner.find(received);
+      if (ret != null) {
+        LOG.debug("received request {}", Packet.fromBuffer(received, received.position(),
+            ret.length()));
+        scanner.consume(received, ret);
+        return ret;
+      }
+      if (received.hasRemaining() && !scanner.isPossibleRequestStart(received)) {
+        scanner.skip(received);
+        connection.recordDiscardedBytes(1);
+      } else {
+        receive();
+      }
+    }
+  }
+
+  private ResponseIndex.Request awaitFrameRequest() throws IOException {
+    while (true) {
+      ByteBuffer frame = connection.readFrame();
+      ResponseIndex.Request ret = index.get(frame);
+      if (ret != null) {
+        LOG.debug("received request {}", Packet.fromBuffer(frame, frame.position(),
+            frame.remaining()));
+        return ret;
+      }
+      if (LOG.isTraceEnabled()) {
+        LOG.trace("ignoring received frame {}", Packet.fromBuffer(frame, frame.position(),
+            frame.remaining()));
+      }
+      connection.recordDiscardedBytes(frame.remaining());
+    }
+  }
+
+  private void receive() throws IOException {
+    ByteBuffer readBuffer = connection.read();
+    if (received.capacity() - received.remaining() < readBuffer.remaining()) {
+      ByteBuffer buffer = ByteBuffer.allocate(Math.max(received.capacity() * 2,
+          received.remaining() + readBuffer.remaining()));
+      buffer.put(received);
+      received = buffer;
+    } else {
+      received.compact();
+    }
+    received.put(readBuffer);
+    received.flip();
+  }
+
+  private int getOccurrence(ResponseIndex.Request request) {
+    if (!request.hasManyOccurrences()) {
+      return 0;
+    }
+    int ret = requestsOccurrences.getOrDefault(request, 0);
+    requestsOccurrences.put(request, ret + 1);
+    return ret;
+  }
+
+  @Override
+  public boolean isExpired(long nowNanos) {
+    return deadlines != null && deadlines.isExpired(nowNanos);
+  }
+
+  @Override
+  public void reap() {
+    LOG.info("Closing stateless connection since it timed out");
+    timedOut = true;
+    close();
+  }
+
+  public void close() {
+    try {
+      connection.close();
+    } catch (IOException e) {
+      LOG.error("Problem while releasing socket", e);
+    }
+  }
+
+}
@@ -0,0 +1,105 @@
+package us.abstracta.wiresham;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Splits captured TCP segments in one {@link Conversation} per TCP connection (identified by its
+ * client and server addresses and ports), reassembling each one with its own
+ * {@link TcpStreamReassembler}.
+ * <p>
+ * When a client reuses the address and port of a previous connection, the new connection is
+ * detected by its SYN segment and considered a new conversation.
+ */
+final class TcpConversationSplitter implements Consumer<TcpSegment> {
+
+  private final Predicate<TcpSegment> serverSegment;
+  private final Map<String, TcpConnection> connections = new HashMap<>();
+  private final List<TcpConnection> connectionsInOrder = new ArrayList<>();
+  private long firstTimestampNanos = -1;
+
+  /**
+   * @param serverSegment identifies segments sent by the server.
+   */
+  TcpConversationSplitter(Predicate<TcpSegment> serverSegment) {
+    this.serverSegment = serverSegment;
+  }
+
+  @Override
+  public void accept(TcpSegment segment) {
+    if (firstTimestampNanos < 0) {
+      firstTimestampNanos = segment.getTimestampNanos();
+    }
+    boolean fromServer = serverSegment.test(segment);
+    String sourceAddress = formatAddress(segment.getSourceIp(), segment.getSourcePort());
+    String destinationAddress = formatAddress(segment.getDestinationIp(),
+        segment.getDestinationPort());
+    String clientAddress = fromServer ? destinationAddress : sourceAddress;
+    String connectionId = clientAddress + ">" + (fromServer ? sourceAddress : destinationAddress);
+    TcpConnection connection = connections.get(connectionId);
+    if (connection == null || !fromServer && connection.isReopenedBy(segment)) {
+      connection = new TcpConnection(clientAddress,
+          segment.getTimestampNanos() - firstTimestampNanos);
+      connections.put(connectionId, connection);
+      connectionsInOrder.add(connection);
+    }
+    connection.add(segment, fromServer);
+  }
+
+  private static String formatAddress(String ip, int port) {
+    return (ip.contains(":") ? "[" + ip + "]" : ip) + ":" + port;
+  }
+
+  /**
+   * @return conversations with at least one step, in order of connection start.
+   */
+  List<Conversation> finish() {
+    return connectionsInOrder.stream()
+        .map(TcpConnection::toConversation)
+        .filter(c -> !c.getFlow().getSteps().isEmpty())
+        .collect(Collectors.toList());
+  }
+
+  private final class TcpConnection {
+
+    private final String clientAddress;
+    private final long startOffsetNanos;
+    private final TcpStreamReassembler reassembler = new TcpStreamReassembler(serverSegment);
+    private long clientInitialSequenceNumber = TcpSegment.UNKNOWN_SEQUENCE_NUMBER;
+
+    private TcpConnection(String clientAddress, long startOffsetNanos) {
+      this.clientAddress = clientAddress;
+      this.startOffsetNanos = startOffsetNanos;
+    }
+
+    /*
+     * A client SYN with a different sequence number than the one which started the connection
+     * (retransmitted SYNs keep the same one) starts a new connection.
+     */
+    private boolean isReopenedBy(TcpSegment segment) {
+      return segment.hasFlag(TcpSegment.SYN_FLAG) && !segment.hasFlag(TcpSegment.ACK_FLAG)
+          && clientInitialSequenceNumber != TcpSegment.UNKNOWN_SEQUENCE_NUMBER
+          && segment.getSequenceNumber() != clientInitialSequenceNumber;
+    }
+
+    private void add(TcpSegment segment, boolean fromServer) {
+      if (!fromServer && segment.hasFlag(TcpSegment.SYN_FLAG)) {
+        clientInitialSequenceNumber = segment.getSequenceNumber();
+      }
+      reassembler.add(segment);
+    }
+
+    private Conversation toConversation() {
+      return new Conversation(new Flow(reassembler.finish()),
+          TimeUnit.NANOSECONDS.toMillis(startOffsetNanos), clientAddress);
+    }
+
+  }
+
+}
@@ -0,0 +1,80 @@
+package us.abstracta.wiresham;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A TCP segment read from a capture file.
+ */
+final class TcpSegment {
+
+  static final int FIN_FLAG = 0x01;
+  static final int SYN_FLAG = 0x02;
+  static final int RST_FLAG = 0x04;
+  static final int ACK_FLAG = 0x10;
+  static final long UNKNOWN_SEQUENCE_NUMBER = -1;
+
+  private final long timestampNanos;
+  private final String sourceIp;
+  private final int sourcePort;
+  private final String destinationIp;
+  private final int destinationPort;
+  private final long sequenceNumber;
+  private final int flags;
+  private final ByteBuffer payload;
+
+  TcpSegment(long timestampNanos, String sourceIp, int sourcePort, String destinationIp,
+      int destinationPort, long sequenceNumber, int flags, ByteBuffer payload) {
+    this.timestampNanos = timestampNanos;
+    this.sourceIp = sourceIp;
+    this.sourcePort = sourcePort;
+    this.destinationIp = destinationIp;
+    this.destinationPort = destinationPort;
+    this.sequenceNumber = sequenceNumber;
+    this.flags = flags;
+    this.payload = payload;
+  }
+
+  long getTimestampNanos() {
+    return timestampNanos;
+  }
+
+  String getSourceIp() {
+    return sourceIp;
+  }
+
+  int getSourcePort() {
+    return sourcePort;
+  }
+
+  String getDestinationIp() {
+    return destinationIp;
+  }
+
+  int getDestinationPort() {
+    return destinationPort;
+  }
+
+  /**
+   * @return the sequence number as an unsigned 32 bits value, or
+   * {@link #UNKNOWN_SEQUENCE_NUMBER} when it is not available.
+   */
+  long getSequenceNumber() {
+    return sequenceNumber;
+  }
+
+  boolean hasFlag(int flag) {
+    return (flags & flag) != 0;
+  }
+
+  /**
+   * @return a view of the payload, which is a slice of the capture file.
+   */
+  ByteBuffer getPayload() {
+    return payload.duplicate();
+  }
+
+  int getPayloadLength() {
+    return payload.remaining();
+  }
+
+}
@@ -0,0 +1,217 @@
+package us.abstracta.wiresham;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Builds flow steps from captured TCP segments, reassembling each TCP stream by sequence number.
+ * <p>
+ * Retransmitted data is dropped, out of order segments are kept until missing data arrives, and
+ * contiguous data sent in the same direction of a connection is merged into one step, so each
+ * step contains a whole application message instead of a single TCP segment.
+ * <p>
+ * When missing data of a stream never arrives (as when the capture lost some packets), the gap is
+ * skipped once other stream sends data.
+ */
+final class TcpStreamReassembler {
+
+  private static final long SEQUENCE_NUMBER_MASK = 0xffffffffL;
+
+  private final Predicate<TcpSegment> serverSegment;
+  private final Map<String, TcpStream> streams = new HashMap<>();
+  private final Set<TcpStream> outOfOrderStreams = new LinkedHashSet<>();
+  private final List<PacketStep> steps = new ArrayList<>();
+  private final List<Packet> messageParts = new ArrayList<>();
+  private TcpStream messageStream;
+  private long messageStartNanos;
+  private long lastDataNanos;
+  private long lastMessageEndNanos;
+  private boolean skippingGaps;
+
+  /**
+   * @param serverSegment identifies segments sent by the server.
+   */
+  TcpStreamReassembler(Predicate<TcpSegment> serverSegment) {
+    this.serverSegment = serverSegment;
+  }
+
+  void add(TcpSegment segment) {
+    TcpStream stream = streams.computeIfAbsent(getStreamId(segment),
+        id -> new TcpStream(serverSegment.test(segment), segment));
+    boolean knownSequenceNumber =
+        segment.getSequenceNumber() != TcpSegment.UNKNOWN_SEQUENCE_NUMBER;
+    if (segment.hasFlag(TcpSegment.SYN_FLAG) && knownSequenceNumber) {
+      stream.nextSequenceNumber = getDataSequenceNumber(segment);
+      stream.outOfOrderSegments.clear();
+      outOfOrderStreams.remove(stream);
+    }
+    if (segment.getPayloadLength() == 0) {
+      return;
+    }
+    if (!knownSequenceNumber) {
+      append(stream, segment, segment.getPayload());
+      return;
+    }
+    if (stream.nextSequenceNumber == TcpSegment.UNKNOWN_SEQUENCE_NUMBER) {
+      // capture started after connection establishment
+      stream.nextSequenceNumber = getDataSequenceNumber(segment);
+    }
+    if (getOffset(stream, segment) > 0) {
+      stream.addOutOfOrder(segment);
+      outOfOrderStreams.add(stream);
+      return;
+    }
+    appendInOrder(stream, segment);
+    appendOutOfOrder(stream);
+  }
+
+  private static String getStreamId(TcpSegment segment) {
+    return segment.getSourceIp() + "/" + segment.getSourcePort() + ">"
+        + segment.getDestinationIp() + "/" + segment.getDestinationPort();
+  }
+
+  private static long getDataSequenceNumber(TcpSegment segment) {
+    // SYN consumes one sequence number
+    return segment.hasFlag(TcpSegment.SYN_FLAG)
+        ? (segment.getSequenceNumber() + 1) & SEQUENCE_NUMBER_MASK
+        : segment.getSequenceNumber();
+  }
+
+  /*
+   * Offset (in sequence number space) of the segment data respect to the next expected sequence
+   * number of the stream, taking into consideration sequence number wrap around.
+   */
+  private static int getOffset(TcpStream stream, TcpSegment segment) {
+    return (int) (getDataSequenceNumber(segment) - stream.nextSequenceNumber);
+  }
+
+  private void appendInOrder(TcpStream stream, TcpSegment segment) {
+    int offset = getOffset(stream, segment);
+    if (offset + segment.getPayloadLength() <= 0) {
+      // retransmission of already received data
+      return;
+    }
+    ByteBuffer payload = segment.getPayload();
+    payload.position(payload.position() - offset);
+    stream.nextSequenceNumber = (getDataSequenceNumber(segment) + segment.getPayloadLength())
+        & SEQUENCE_NUMBER_MASK;
+    append(stream, segment, payload);
+  }
+
+  private void appendOutOfOrder(TcpStream stream) {
+    boolean appended = true;
+    while (appended) {
+      appended = false;
+      Iterator<TcpSegment> it = stream.outOfOrderSegments.iterator();
+      while (it.hasNext()) {
+        TcpSegment segment = it.next();
+        if (getOffset(stream, segment) <= 0) {
+          it.remove();
+          appendInOrder(stream, segment);
+          appended = true;
+        }
+      }
+    }
+    if (stream.outOfOrderSegments.isEmpty()) {
+      outOfOrderStreams.remove(stream);
+    }
+  }
+
+  private void append(TcpStream stream, TcpSegment segment, ByteBuffer payload) {
+    if (stream != messageStream) {
+      if (!skippingGaps) {
+        skipGaps(stream);
+      }
+      endMessage();
+      messageStream = stream;
+      messageStartNanos = segment.getTimestampNanos();
+    }
+    messageParts.add(Packet.wrap(payload));
+    lastDataNanos = segment.getTimestampNanos();
+  }
+
+  /*
+   * Appends pending out of order data of streams other than the given one, since data missing
+   * in them is not expected to arrive anymore.
+   */
+  private void skipGaps(TcpStream excludedStream) {
+    skippingGaps = true;
+    try {
+      while (outOfOrderStreams.stream().anyMatch(s -> s != excludedStream)) {
+        TcpStream stream = outOfOrderStreams.stream()
+            .filter(s -> s != excludedStream)
+            .findFirst()
+            .get();
+        stream.nextSequenceNumber = getDataSequenceNumber(stream.outOfOrderSegments.get(0));
+        appendOutOfOrder(stream);
+      }
+    } finally {
+      skippingGaps = false;
+    }
+  }
+
+  private void endMessage() {
+    if (messageParts.isEmpty()) {
+      return;
+    }
+    Packet packet = messageParts.size() == 1 ? messageParts.get(0)
+        : Packet.concat(messageParts);
+    messageParts.clear();
+    if (messageStream.fromServer) {
+      long delayMicros = steps.isEmpty() ? 0 : TimeUnit.NANOSECONDS.toMicros(messageStartNanos)
+          - TimeUnit.NANOSECONDS.toMicros(lastMessageEndNanos);
+      steps.add(new SendPacketStep(packet, delayMicros, messageStream.sourcePort));
+    } else {
+      steps.add(new ReceivePacketStep(packet, messageStream.destinationPort));
+    }
+    lastMessageEndNanos = lastDataNanos;
+  }
+
+  /**
+   * Gets the steps built from all added segments, skipping any missing data.
+   */
+  List<PacketStep> finish() {
+    skipGaps(null);
+    endMessage();
+    messageStream = null;
+    return steps;
+  }
+
+  private static final class TcpStream {
+
+    private final boolean fromServer;
+    private final int sourcePort;
+    private final int destinationPort;
+    private final List<TcpSegment> outOfOrderSegments = new ArrayList<>();
+    private long nextSequenceNumber = TcpSegment.UNKNOWN_SEQUENCE_NUMBER;
+
+    private TcpStream(boolean fromServer, TcpSegment segment) {
+      this.fromServer = fromServer;
+      this.sourcePort = segment.getSourcePort();
+      this.destinationPort = segment.getDestinationPort();
+    }
+
+    /*
+     * Keeps out of order segments sorted by sequence number, so when gaps are skipped data is
+     * appended in proper order.
+     */
+    private void addOutOfOrder(TcpSegment segment) {
+      int index = 0;
+      while (index < outOfOrderSegments.size() && (int) (getDataSequenceNumber(segment)
+          - getDataSequenceNumber(outOfOrderSegments.get(index))) > 0) {
+        index++;
+      }
+      outOfOrderSegments.add(index, segment);
+    }
+
+  }
+
+}
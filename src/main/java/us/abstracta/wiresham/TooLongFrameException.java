@@ -0,0 +1,16 @@
+package us.abstracta.wiresham;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when a received frame is longer than the maximum allowed by its
+ * {@link FrameDecoder}, usually due to malformed or malicious data.
+ */
+public class TooLongFrameException extends IOException {
+
+  public TooLongFrameException(long frameLength, int maxFrameLength) {
+    super("Received frame of " + frameLength + " bytes, which exceeds maximum frame length of "
+        + maxFrameLength + " bytes");
+  }
+
+}
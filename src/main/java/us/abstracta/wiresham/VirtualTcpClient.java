@@ -1,13 +1,18 @@
 package us.abstracta.wiresham;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import javax.net.ssl.SSLContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,24 +22,50 @@ import org.slf4j.LoggerFactory;
  * <p>
  * This is useful for testing servers that require very specific client interaction and when is not
  * easy to get access to such clients (for re generating the traffic).
+ * <p>
+ * Besides replaying the flow once (with {@link #run()}), the client can replay it many times
+ * concurrently to generate load on a server (with {@link #runLoad()}), or replay conversations
+ * captured from many clients recreating their original connections arrival pattern (with
+ * {@link #runConversations()}).
  */
 public class VirtualTcpClient {
 
   private static final Logger LOG = LoggerFactory.getLogger(VirtualTcpClient.class);
-  private static final int DEFAULT_READ_BUFFER_SIZE = 2048;
 
   private Flow flow;
+  private List<Conversation> conversations;
   private String host;
   private int port;
-  private int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+  private int readBufferSize = VirtualTcpService.DEFAULT_READ_BUFFER_SIZE;
   private ExecutorService executorService;
   private ConnectionFlowDriver connection;
   private SSLContext sslContext;
+  private boolean virtualThreads;
+  private int concurrency = 1;
+  private long rampUpMillis;
+  private double flowsPerSecond;
+  private long durationMillis;
+  private FrameDecoder frameDecoder;
+  private boolean absoluteSchedule;
+  private double timeScale = 1;
+  private final Map<Integer, Double> portsTimeScales = new HashMap<>();
+  private long minDelayMillis;
+  private long maxDelayMillis;
 
   public void setFlow(Flow flow) {
     this.flow = flow;
   }
 
+  /**
+   * Sets the conversations to replay with {@link #runConversations()}, which should be the
+   * reversed version (from client point of view) of captured conversations.
+   *
+   * @see Conversation#reversed()
+   */
+  public void setConversations(List<Conversation> conversations) {
+    this.conversations = conversations;
+  }
+
   public void setServerAddress(String serverAddress) {
     int portSeparatorPos = serverAddress.lastIndexOf(":");
     this.host = serverAddress.substring(0, portSeparatorPos);
@@ -49,6 +80,106 @@ public class VirtualTcpClient {
     this.readBufferSize = readBufferSize;
   }
 
+  /**
+   * Specifies if the flow should be run in a virtual thread, when supported by the JVM (JDK 21+).
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  /**
+   * Sets the number of flows to replay concurrently when generating load.
+   */
+  public void setConcurrency(int concurrency) {
+    this.concurrency = concurrency;
+  }
+
+  /**
+   * Sets the time to wait for all concurrent flows to start when generating load. Concurrent
+   * flows start evenly distributed in this period.
+   */
+  public void setRampUpMillis(long rampUpMillis) {
+    this.rampUpMillis = rampUpMillis;
+  }
+
+  /**
+   * Limits the number of flows started per second when generating load. Zero (the default) means
+   * no limit.
+   * <p>
+   * With a limit, each concurrent flow is replayed on a fixed schedule of flowsPerSecond /
+   * concurrency flows per second, and flow latencies are measured from the instant each flow was
+   * scheduled to start. So, flows delayed by a slow server are reported with the time they
+   * waited to start (avoiding coordinated omission).
+   */
+  public void setFlowsPerSecond(double flowsPerSecond) {
+    this.flowsPerSecond = flowsPerSecond;
+  }
+
+  /**
+   * Sets the time while each concurrent flow is replayed again when generating load. When zero
+   * (the default), each concurrent flow is replayed only once.
+   */
+  public void setDurationMillis(long durationMillis) {
+    this.durationMillis = durationMillis;
+  }
+
+  /**
+   * Sets the decoder used to split data received from the server in frames, so each expected
+   * server packet is compared with a whole frame instead of scanning received bytes.
+   *
+   * @see VirtualTcpService#setFrameDecoder(FrameDecoder)
+   */
+  public void setFrameDecoder(FrameDecoder frameDecoder) {
+    this.frameDecoder = frameDecoder;
+  }
+
+  /**
+   * Specifies if packets should be sent on an absolute schedule, which keeps replays from
+   * drifting from the captured timeline.
+   *
+   * @see VirtualTcpService#setAbsoluteSchedule(boolean)
+   */
+  public void setAbsoluteSchedule(boolean absoluteSchedule) {
+    this.absoluteSchedule = absoluteSchedule;
+  }
+
+  /**
+   * Sets the factor applied to delays of packets sent to the server.
+   *
+   * @see VirtualTcpService#setTimeScale(double)
+   */
+  public void setTimeScale(double timeScale) {
+    this.timeScale = DelayScaling.validateTimeScale(timeScale);
+  }
+
+  /**
+   * Same as {@link #setTimeScale(double)} but only for packets sent on the given port.
+   */
+  public void setTimeScale(int port, double timeScale) {
+    portsTimeScales.put(port, DelayScaling.validateTimeScale(timeScale));
+  }
+
+  /**
+   * Sets the minimum delay of packets sent to the server, applied after scaling delays.
+   */
+  public void setMinDelayMillis(long minDelayMillis) {
+    this.minDelayMillis = minDelayMillis;
+  }
+
+  /**
+   * Sets the maximum delay of packets sent to the server, applied after scaling delays.
+   *
+   * @param maxDelayMillis the maximum delay. Zero (the default) means no maximum.
+   */
+  public void setMaxDelayMillis(long maxDelayMillis) {
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  private CompiledFlow compile(Flow flow) {
+    return CompiledFlow.compile(flow, port, false,
+        new DelayScaling(timeScale, portsTimeScales, minDelayMillis, maxDelayMillis), null);
+  }
+
   private Socket buildSocket(int port)
       throws IOException {
     if (sslContext != null) {
@@ -59,11 +190,135 @@ public class VirtualTcpClient {
   }
 
   public void run() {
-    executorService = Executors.newSingleThreadExecutor();
-    connection = new ConnectionFlowDriver(buildFlowConnectionProvider(), flow, port);
+    executorService = virtualThreads
+        ? VirtualThreads.newExecutor("client-", Executors::newSingleThreadExecutor)
+        : Executors.newSingleThreadExecutor();
+    connection = new ConnectionFlowDriver(buildFlowConnectionProvider(), compile(flow));
+    connection.setAbsoluteSchedule(absoluteSchedule);
     executorService.submit(connection);
   }
 
+  /**
+   * Replays the flow with configured concurrency, ramp-up, rate and duration, waiting for all
+   * replays to end.
+   *
+   * @return the results of the replays.
+   */
+  public LoadReport runLoad() throws InterruptedException {
+    CompiledFlow compiledFlow = compile(flow);
+    LoadReport report = new LoadReport(compiledFlow);
+    long intervalNanos = flowsPerSecond > 0
+        ? (long) (TimeUnit.SECONDS.toNanos(1) / flowsPerSecond) : 0;
+    Supplier<ExecutorService> platformExecutor = () -> Executors.newFixedThreadPool(concurrency);
+    ExecutorService loadExecutorService = virtualThreads
+        ? VirtualThreads.newExecutor("load-client-", platformExecutor) : platformExecutor.get();
+    long startNanos = System.nanoTime();
+    long endNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+    for (int i = 0; i < concurrency; i++) {
+      // with a rate, flows start evenly distributed in each interval of concurrent flows
+      long firstStartNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(
+          rampUpMillis * i / concurrency) + intervalNanos * i;
+      loadExecutorService.submit(() -> replayUntil(endNanos, firstStartNanos,
+          intervalNanos * concurrency, compiledFlow, report));
+    }
+    loadExecutorService.shutdown();
+    try {
+      while (!loadExecutorService.awaitTermination(1, TimeUnit.SECONDS)) {
+        LOG.debug("{} flows completed so far", report.getCompletedFlows());
+      }
+    } catch (InterruptedException e) {
+      loadExecutorService.shutdownNow();
+      throw e;
+    }
+    report.setElapsedNanos(System.nanoTime() - startNanos);
+    return report;
+  }
+
+  /**
+   * Replays each conversation in its own connection, starting it at its captured start offset
+   * regardless of other conversations progress (an open model), and waits for all of them to
+   * end.
+   * <p>
+   * This recreates the original connections arrival pattern and concurrency of the capture.
+   *
+   * @return the results of the replays. Since each conversation has its own steps, only flows
+   * latencies are reported.
+   */
+  public LoadReport runConversations() throws InterruptedException {
+    LoadReport report = new LoadReport();
+    ScheduledExecutorService arrivalScheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("Conversation-Scheduler-%d").build());
+    ExecutorService conversationsExecutorService = virtualThreads
+        ? VirtualThreads.newExecutor("conversation-client-", Executors::newCachedThreadPool)
+        : Executors.newCachedThreadPool();
+    CountDownLatch pendingConversations = new CountDownLatch(conversations.size());
+    long startNanos = System.nanoTime();
+    long firstStartOffsetMillis = conversations.stream()
+        .mapToLong(Conversation::getStartOffsetMillis)
+        .min()
+        .orElse(0);
+    for (Conversation conversation : conversations) {
+      CompiledFlow compiledFlow = compile(conversation.getFlow());
+      long startDelayMillis = conversation.getStartOffsetMillis() - firstStartOffsetMillis;
+      long scheduledStartNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(startDelayMillis);
+      arrivalScheduler.schedule(() -> conversationsExecutorService.execute(() -> {
+        try {
+          replay(compiledFlow, report, scheduledStartNanos);
+        } finally {
+          pendingConversations.countDown();
+        }
+      }), startDelayMillis, TimeUnit.MILLISECONDS);
+    }
+    try {
+      while (!pendingConversations.await(1, TimeUnit.SECONDS)) {
+        LOG.debug("{} conversations completed so far", report.getCompletedFlows());
+      }
+    } finally {
+      arrivalScheduler.shutdownNow();
+      conversationsExecutorService.shutdownNow();
+    }
+    report.setElapsedNanos(System.nanoTime() - startNanos);
+    return report;
+  }
+
+  /*
+   * The flow latency is measured from the scheduled start, so any delay in starting the flow is
+   * included in it.
+   */
+  private void replay(CompiledFlow compiledFlow, LoadReport report, long scheduledStartNanos) {
+    ConnectionFlowDriver driver = new ConnectionFlowDriver(buildFlowConnectionProvider(),
+        compiledFlow);
+    driver.setStepListener(report::recordStep);
+    driver.setAbsoluteSchedule(absoluteSchedule);
+    driver.run();
+    report.recordFlow(driver.isCompleted(), System.nanoTime() - scheduledStartNanos);
+  }
+
+  private void replayUntil(long endNanos, long firstStartNanos, long intervalNanos,
+      CompiledFlow compiledFlow, LoadReport report) {
+    try {
+      long nextStartNanos = firstStartNanos;
+      boolean replay = true;
+      while (replay) {
+        sleepUntil(nextStartNanos);
+        // without a rate, each flow is scheduled to start as soon as the previous one ends
+        long scheduledStartNanos = intervalNanos > 0 ? nextStartNanos : System.nanoTime();
+        replay(compiledFlow, report, scheduledStartNanos);
+        nextStartNanos = scheduledStartNanos + intervalNanos;
+        replay = System.nanoTime() < endNanos && !Thread.currentThread().isInterrupted();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void sleepUntil(long nanos) throws InterruptedException {
+    long delayNanos = nanos - System.nanoTime();
+    if (delayNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(delayNanos);
+    }
+  }
+
   private FlowConnectionProvider buildFlowConnectionProvider() {
     return new FlowConnectionProvider() {
 
@@ -72,7 +327,9 @@ public class VirtualTcpClient {
       @Override
       public FlowConnection get(int port) throws IOException {
         if (map.get(port) == null) {
-          map.put(port, new FlowConnection(buildSocket(port), readBufferSize));
+          FlowConnection connection = new FlowConnection(buildSocket(port), readBufferSize);
+          connection.setFrameDecoder(frameDecoder);
+          map.put(port, connection);
         }
         return map.get(port);
       }
@@ -1,12 +1,15 @@
 package us.abstracta.wiresham;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
@@ -14,8 +17,15 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.net.ssl.SSLContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,40 +38,120 @@ import org.slf4j.LoggerFactory;
  */
 public class VirtualTcpService {
 
-  public static final int DEFAULT_READ_BUFFER_SIZE = 2048;
+  public static final int DEFAULT_READ_BUFFER_SIZE = 65536;
   public static final int DEFAULT_MAX_CONNECTION_COUNT = 1;
+  public static final int DEFAULT_EVENT_LOOP_COUNT = 0;
+  public static final int DEFAULT_LISTEN_BACKLOG = 0;
+  public static final int DEFAULT_ACCEPTOR_COUNT = 1;
   public static final int DYNAMIC_PORT = 0;
   public static final int CLOSE_SOCKETS_TIMEOUT_MILLIS = 10000;
+  public static final String METRICS_NAME_PREFIX =
+      "us.abstracta.wiresham:type=VirtualTcpService,port=";
 
   private static final Logger LOG = LoggerFactory.getLogger(VirtualTcpService.class);
+  private static final AtomicInteger METRICS_INSTANCE_IDS = new AtomicInteger();
 
   private int portArgument = DYNAMIC_PORT;
-  private Flow flow;
+  private volatile Flow flow;
+  private volatile List<Conversation> conversations;
+  private volatile ServiceFlows serviceFlows;
   private boolean sslEnabled;
   private SSLContext sslContext;
   private int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
   private int maxConnections = DEFAULT_MAX_CONNECTION_COUNT;
+  private int eventLoopCount = DEFAULT_EVENT_LOOP_COUNT;
+  private boolean virtualThreads;
+  private boolean coalesceServerPackets;
+  private boolean stateless;
+  private FrameDecoder frameDecoder;
+  private ConnectionCorrelation connectionCorrelation = ConnectionCorrelation.CLIENT_ADDRESS_OR_ANY;
+  private PendingConnections<FlowConnection> pendingConnections;
+  private long receiveTimeoutMillis;
+  private long flowTimeoutMillis;
+  private ConnectionReaper reaper;
+  private OverloadPolicy overloadPolicy = OverloadPolicy.QUEUE;
+  private int maxQueuedConnections = Integer.MAX_VALUE;
+  private long queueTimeoutMillis;
+  private int listenBacklog = DEFAULT_LISTEN_BACKLOG;
+  private int acceptorCount = DEFAULT_ACCEPTOR_COUNT;
+  private boolean absoluteSchedule;
+  private double timeScale = 1;
+  private final Map<Integer, Double> portsTimeScales = new ConcurrentHashMap<>();
+  private long minDelayMillis;
+  private long maxDelayMillis;
+  private AdmissionControl admissionControl;
+  private final Map<Integer, FrameDecoder> portsFrameDecoders = new ConcurrentHashMap<>();
   private boolean stopped = false;
   private final Set<ConnectionFlowDriver> connectionDrivers = new HashSet<>();
+  private final Set<StatelessConnectionDriver> statelessDrivers = new HashSet<>();
+  private final List<ServerSocket> serverSockets = new ArrayList<>();
   private ExecutorService clientExecutorService;
   private ExecutorService portExecutorService;
+  private ScheduledExecutorService delayScheduler;
+  private NioVirtualTcpServer nioServer;
+  private ServiceMetrics metrics = new ServiceMetrics();
+  private ObjectName metricsName;
 
   public void setPortArgument(int portArgument) {
     this.portArgument = portArgument;
   }
 
+  /**
+   * Sets the flow to replay.
+   * <p>
+   * This method can be invoked while the service is running (as done by {@link ReloadService}),
+   * in which case new connections replay the new flow and existing ones keep replaying the
+   * previous one. The flow is compiled (reusing unchanged steps of the previous one) before
+   * publishing it, so connections never see a partially updated flow, and if compilation fails
+   * the previous flow is kept.
+   */
   public void setFlow(Flow flow) {
-    this.flow = flow;
-    Optional<PacketStep> bigPacketStep = flow.getSteps().stream()
-        .filter(s -> s instanceof ReceivePacketStep && s.data.getBytes().length > readBufferSize)
-        .findAny();
-    if (bigPacketStep.isPresent()) {
-      throw new IllegalArgumentException(String.format(
-          "Read buffer size of %d bytes is not enough for receiving expected packet from client "
-              + "with %s", readBufferSize, bigPacketStep.get().data));
+    ServiceFlows compiled = ServiceFlows.of(flow, portArgument, coalesceServerPackets,
+        buildDelayScaling(), serviceFlows);
+    synchronized (this) {
+      this.flow = flow;
+      this.conversations = null;
+      this.serviceFlows = compiled;
     }
   }
 
+  /**
+   * Sets conversations to be replayed instead of a single flow, as the ones loaded with
+   * {@link Flow#conversationsFromPcap(java.io.File, String, String)}.
+   * <p>
+   * Each new connection replays the next conversation (in round robin) starting on the port of
+   * the connection, so simultaneous clients are attended concurrently, each one with its own
+   * conversation. Concurrent connections are still limited by max connections (unless virtual
+   * threads or event loops are used).
+   *
+   * @param conversations conversations to replay. At least one is required.
+   * @throws IllegalArgumentException if no conversation is provided.
+   */
+  public void setConversations(List<Conversation> conversations) {
+    if (conversations.isEmpty()) {
+      throw new IllegalArgumentException("At least one conversation is required");
+    }
+    ServiceFlows compiled = ServiceFlows.ofConversations(conversations, portArgument,
+        coalesceServerPackets, buildDelayScaling());
+    synchronized (this) {
+      this.conversations = conversations;
+      this.flow = null;
+      this.serviceFlows = compiled;
+    }
+  }
+
+  private synchronized ServiceFlows compileFlows() {
+    return conversations != null
+        ? ServiceFlows.ofConversations(conversations, portArgument, coalesceServerPackets,
+        buildDelayScaling())
+        : ServiceFlows.of(flow, portArgument, coalesceServerPackets, buildDelayScaling(),
+            serviceFlows);
+  }
+
+  private DelayScaling buildDelayScaling() {
+    return new DelayScaling(timeScale, portsTimeScales, minDelayMillis, maxDelayMillis);
+  }
+
   /**
    * @deprecated use {@link #setSslContext(SSLContext)} instead, potentially using {@link
    * SSLContext#getDefault} as parameter.
@@ -75,6 +165,12 @@ public class VirtualTcpService {
     this.sslContext = sslContext;
   }
 
+  /**
+   * Sets the maximum size of the buffer used to receive data from each client connection.
+   * <p>
+   * Buffers start with a small size and grow up to this size while clients send big amounts of
+   * data. Client packets bigger than this size are still received, just in several reads.
+   */
   public void setReadBufferSize(int readBufferSize) {
     this.readBufferSize = readBufferSize;
   }
@@ -83,57 +179,417 @@ public class VirtualTcpService {
     this.maxConnections = maxConnections;
   }
 
+  /**
+   * Sets the number of threads used to attend connections with non-blocking I/O.
+   * <p>
+   * When set to a value greater than zero, instead of using a thread per connection (limited by
+   * max connections), all connections are attended by the given number of event loop threads,
+   * which allows attending many concurrent connections with a few threads. SSL is not supported
+   * in this mode.
+   */
+  public void setEventLoopCount(int eventLoopCount) {
+    this.eventLoopCount = eventLoopCount;
+  }
+
+  /**
+   * Specifies if each connection (and port listener) should be attended by a virtual thread.
+   * <p>
+   * When enabled, and the JVM supports virtual threads (JDK 21+), concurrent connections are not
+   * limited by max connections. When the JVM does not support them, platform thread pools are
+   * used as usual.
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  /**
+   * Specifies if consecutive server packets without delay should be sent with a single write.
+   * <p>
+   * This reduces the number of writes and TCP segments used to send bulk responses, at the cost of
+   * not reproducing original packets boundaries, which is usually irrelevant for TCP clients.
+   */
+  public void setCoalesceServerPackets(boolean coalesceServerPackets) {
+    this.coalesceServerPackets = coalesceServerPackets;
+  }
+
+  /**
+   * Specifies if client requests should be answered regardless of their order in the flow.
+   * <p>
+   * When enabled, each client packet received on any connection is answered with the server
+   * packets which followed it in the flow (or in any of the conversations), looking it up in a
+   * hash index instead of waiting for the next client packet of the flow. This is useful when
+   * responses only depend on requests and clients send requests in varying order. Server packets
+   * before the first client packet are sent when a connection is established, and ports
+   * specified by steps are only used to listen for connections. Not supported with event loops.
+   */
+  public void setStateless(boolean stateless) {
+    this.stateless = stateless;
+  }
+
+  /**
+   * Sets the decoder used to split data received on any port in frames.
+   * <p>
+   * When set, each expected client packet is compared with a whole received frame (by length and
+   * content) instead of scanning received bytes looking for it, and frames which are not the
+   * expected packet are discarded. In stateless mode, requests are looked up by frame. This
+   * requires client packets in the flow to match the protocol framing (for example, by
+   * importing them with such framing).
+   *
+   * @param frameDecoder the decoder, or null to consume received data as a plain byte stream
+   * (the default).
+   * @see FrameDecoder#parse(String)
+   */
+  public void setFrameDecoder(FrameDecoder frameDecoder) {
+    this.frameDecoder = frameDecoder;
+  }
+
+  /**
+   * Same as {@link #setFrameDecoder(FrameDecoder)} but only for data received on the given port,
+   * which takes precedence over the decoder for any port.
+   */
+  public void setFrameDecoder(int port, FrameDecoder frameDecoder) {
+    if (frameDecoder == null) {
+      portsFrameDecoders.remove(port);
+    } else {
+      portsFrameDecoders.put(port, frameDecoder);
+    }
+  }
+
+  private FrameDecoder getFrameDecoder(int port) {
+    return portsFrameDecoders.getOrDefault(port, frameDecoder);
+  }
+
+  /**
+   * Sets how connections received on secondary ports of flows (ports other than the one where
+   * flows start) are assigned to flows waiting for them.
+   * <p>
+   * By default, connections are assigned to flows started from the same client host when
+   * possible, and to the flow waiting the longest for a connection on the port otherwise.
+   */
+  public void setConnectionCorrelation(ConnectionCorrelation connectionCorrelation) {
+    this.connectionCorrelation = connectionCorrelation;
+  }
+
+  /**
+   * Specifies if server packets should be sent on an absolute schedule.
+   * <p>
+   * By default, the delay of each server packet is counted from the moment the previous step
+   * ends, so time spent writing packets and waking up after delays piles up, and long replays
+   * drift from the captured timeline. When enabled, each delay is counted from the instant the
+   * previous server packet was scheduled to be sent (or the last client packet was received), on
+   * a timeline anchored at the flow start, and waits end spinning to send packets with
+   * microseconds precision. Event loops keep milliseconds precision. Not used in stateless mode.
+   */
+  public void setAbsoluteSchedule(boolean absoluteSchedule) {
+    this.absoluteSchedule = absoluteSchedule;
+  }
+
+  /**
+   * Sets the factor applied to delays of server packets.
+   * <p>
+   * The factor is applied when the flow is compiled (without modifying the flow), so the same
+   * flow can be replayed with captured timing (1, the default), slower (for example 10), faster
+   * (for example 0.1) or with no delays at all (0), as in throughput tests where captured think
+   * times would limit throughput.
+   *
+   * @throws IllegalArgumentException if the time scale is negative.
+   * @see #setMinDelayMillis(long)
+   * @see #setMaxDelayMillis(long)
+   */
+  public void setTimeScale(double timeScale) {
+    this.timeScale = DelayScaling.validateTimeScale(timeScale);
+  }
+
+  /**
+   * Same as {@link #setTimeScale(double)} but only for server packets sent on the given port,
+   * which takes precedence over the time scale for any port.
+   */
+  public void setTimeScale(int port, double timeScale) {
+    portsTimeScales.put(port, DelayScaling.validateTimeScale(timeScale));
+  }
+
+  /**
+   * Sets the minimum delay of server packets, applied after scaling delays.
+   */
+  public void setMinDelayMillis(long minDelayMillis) {
+    this.minDelayMillis = minDelayMillis;
+  }
+
+  /**
+   * Sets the maximum delay of server packets, applied after scaling delays.
+   *
+   * @param maxDelayMillis the maximum delay. Zero (the default) means no maximum.
+   */
+  public void setMaxDelayMillis(long maxDelayMillis) {
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  /**
+   * Sets the maximum time to wait for each client packet, or for a connection on a secondary
+   * port of a flow.
+   * <p>
+   * When exceeded, connections of the flow are closed and the flow is recorded as timed out in
+   * metrics, so misbehaving clients don't keep connections and threads forever. Client steps may
+   * override this timeout with their own {@link ReceivePacketStep#setTimeoutMillis(long)}. In
+   * stateless mode, this is the maximum time to wait for each request. Timeouts are checked
+   * periodically by a single thread, so they are enforced with a precision of
+   * {@value ConnectionReaper#DEFAULT_PERIOD_MILLIS} milliseconds.
+   *
+   * @param receiveTimeoutMillis the timeout. Zero (the default) means no timeout.
+   */
+  public void setReceiveTimeoutMillis(long receiveTimeoutMillis) {
+    this.receiveTimeoutMillis = receiveTimeoutMillis;
+  }
+
+  /**
+   * Sets the maximum time a connection may take to complete its flow (or stay open in stateless
+   * mode), counted from the connection start.
+   * <p>
+   * When exceeded, connections of the flow are closed and the flow is recorded as timed out in
+   * metrics.
+   *
+   * @param flowTimeoutMillis the timeout. Zero (the default) means no timeout.
+   * @see #setReceiveTimeoutMillis(long)
+   */
+  public void setFlowTimeoutMillis(long flowTimeoutMillis) {
+    this.flowTimeoutMillis = flowTimeoutMillis;
+  }
+
+  /**
+   * Sets what to do with new connections when max connections are already attended.
+   * Connections waiting for server packets delays release their thread but still count as
+   * attended, so their flows always find a thread when resumed.
+   * <p>
+   * By default, connections wait in a queue with no limit. Queued and rejected connections are
+   * recorded in metrics. This has no effect when using virtual threads or event loops, since
+   * connections are always attended in such cases.
+   *
+   * @see #setMaxQueuedConnections(int)
+   * @see #setQueueTimeoutMillis(long)
+   */
+  public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+    this.overloadPolicy = overloadPolicy;
+  }
+
+  /**
+   * Sets the maximum number of connections which may wait for a thread when using
+   * {@link OverloadPolicy#QUEUE} or {@link OverloadPolicy#REJECT_AFTER_TIMEOUT}. Further
+   * connections are closed.
+   */
+  public void setMaxQueuedConnections(int maxQueuedConnections) {
+    this.maxQueuedConnections = maxQueuedConnections;
+  }
+
+  /**
+   * Sets the maximum time a connection may wait for a thread when using
+   * {@link OverloadPolicy#REJECT_AFTER_TIMEOUT}, after which it is closed.
+   */
+  public void setQueueTimeoutMillis(long queueTimeoutMillis) {
+    this.queueTimeoutMillis = queueTimeoutMillis;
+  }
+
+  /**
+   * Sets the maximum number of connections pending to be accepted by each port, which the
+   * operating system keeps while the service accepts previous ones.
+   *
+   * @param listenBacklog the backlog. Zero (the default) uses the JVM default (50).
+   */
+  public void setListenBacklog(int listenBacklog) {
+    this.listenBacklog = listenBacklog;
+  }
+
+  /**
+   * Sets the number of sockets (each one with its own thread, or event loop when using event
+   * loops) accepting connections on each port.
+   * <p>
+   * Using several acceptors per port increases the rate at which new connections can be
+   * accepted, which is useful for connection storms. It requires the SO_REUSEPORT socket option,
+   * which is only used on Linux and JDK 9+, and a single acceptor per port is used otherwise.
+   */
+  public void setAcceptorCount(int acceptorCount) {
+    this.acceptorCount = acceptorCount;
+  }
+
+  /**
+   * Gets the metrics of the service since it was last started.
+   * <p>
+   * While the service is running, metrics are also exposed as a JMX MBean named
+   * {@value #METRICS_NAME_PREFIX}&lt;port&gt;, where port is the first port the service is bound
+   * to (the actual port when using a dynamic port). If such name is already registered, an
+   * additional instance key with a unique id is added to the name.
+   */
+  public ServiceMetrics getMetrics() {
+    return metrics;
+  }
+
   public void start() throws IOException {
+    if (eventLoopCount > 0 && sslContext != null) {
+      throw new IllegalStateException("SSL is not supported when using event loops");
+    }
+    if (eventLoopCount > 0 && stateless) {
+      throw new IllegalStateException("Stateless mode is not supported when using event loops");
+    }
     stopped = false;
-    int portCount = flow.getPortCount();
-    portExecutorService = Executors.newFixedThreadPool(portCount == 0 ? 1 : portCount);
-    clientExecutorService = Executors.newFixedThreadPool(maxConnections);
+    serviceFlows = compileFlows();
+    pendingConnections = new PendingConnections<>(connectionCorrelation);
+    metrics = new ServiceMetrics();
+    reaper = new ConnectionReaper(ConnectionReaper.DEFAULT_PERIOD_MILLIS);
+    try {
+      if (eventLoopCount > 0) {
+        startNioServer();
+      } else {
+        startBlockingServer();
+      }
+    } catch (IOException | RuntimeException e) {
+      abortStart();
+      throw e;
+    }
+    // metrics are registered once ports are bound, to get actual dynamic ports
+    registerMetrics(nioServer != null ? nioServer.getLocalPort()
+        : serverSockets.get(0).getLocalPort());
+  }
+
+  private void startNioServer() throws IOException {
+    NioVirtualTcpServer server = new NioVirtualTcpServer(port -> serviceFlows.next(port),
+        this::getFrameDecoder, readBufferSize, metrics, reaper,
+        () -> new FlowDeadlines(receiveTimeoutMillis, flowTimeoutMillis), connectionCorrelation,
+        eventLoopCount);
+    server.setAbsoluteSchedule(absoluteSchedule);
+    // assigned before starting it so it is stopped if it fails to start
+    nioServer = server;
+    server.start(getPorts(), listenBacklog, getAcceptorCount());
+  }
+
+  private void startBlockingServer() throws IOException {
+    int portCount = serviceFlows.getPorts().size();
+    int listenerCount = (portCount == 0 ? 1 : portCount) * getAcceptorCount();
+    if (virtualThreads) {
+      portExecutorService = VirtualThreads.newExecutor("port-listener-",
+          () -> Executors.newFixedThreadPool(listenerCount));
+      clientExecutorService = VirtualThreads.newExecutor("connection-",
+          () -> Executors.newFixedThreadPool(maxConnections));
+    } else {
+      portExecutorService = Executors.newFixedThreadPool(listenerCount);
+      clientExecutorService = Executors.newFixedThreadPool(maxConnections);
+    }
+    // virtual threads executors are not thread pools and have no limit of threads
+    admissionControl = new AdmissionControl(clientExecutorService,
+        clientExecutorService instanceof ThreadPoolExecutor ? maxConnections : 0, overloadPolicy,
+        maxQueuedConnections, queueTimeoutMillis, reaper, metrics);
+    delayScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("Delay-Scheduler-%d").build());
     startServerPorts();
   }
 
+  private void abortStart() {
+    try {
+      stop(0);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void registerMetrics(int port) {
+    try {
+      metricsName = new ObjectName(METRICS_NAME_PREFIX + port);
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+      } catch (InstanceAlreadyExistsException e) {
+        // as when several services share a port with SO_REUSEPORT
+        metricsName = new ObjectName(METRICS_NAME_PREFIX + port + ",instance="
+            + METRICS_INSTANCE_IDS.incrementAndGet());
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+      }
+    } catch (JMException e) {
+      LOG.warn("Could not register service metrics in JMX", e);
+      metricsName = null;
+    }
+  }
+
+  private int getAcceptorCount() {
+    if (acceptorCount > 1 && !ReusePort.isSupported()) {
+      LOG.warn("SO_REUSEPORT is not supported by current platform, using a single acceptor per "
+          + "port.");
+      return 1;
+    }
+    return Math.max(acceptorCount, 1);
+  }
+
   public void startServerPorts() throws IOException {
+    int acceptors = getAcceptorCount();
     for (Integer port : getPorts()) {
-      ServerSocket serverSocket = buildSocket(port);
+      int boundPort = port;
+      for (int i = 0; i < acceptors; i++) {
+        ServerSocket serverSocket = buildSocket(boundPort, acceptors > 1);
+        serverSockets.add(serverSocket);
+        // dynamic ports are resolved by the first acceptor and shared by the rest
+        boundPort = serverSocket.getLocalPort();
+        startAcceptor(port, serverSocket);
+      }
       LOG.info("Waiting for connections on {}", port);
-      portExecutorService.execute(() -> {
-        while (!stopped) {
-          try {
-            assignFlowConnectionToConnectionDriver(port,
-                new FlowConnection(serverSocket.accept(), readBufferSize));
-          } catch (IOException e) {
-            handleSocketIOException(e);
-          }
-        }
-      });
     }
   }
 
+  private void startAcceptor(int port, ServerSocket serverSocket) {
+    portExecutorService.execute(() -> {
+      while (!stopped && !serverSocket.isClosed()) {
+        try {
+          FlowConnection connection = new FlowConnection(serverSocket.accept(), readBufferSize);
+          connection.setMetrics(metrics);
+          connection.setFrameDecoder(getFrameDecoder(port));
+          assignFlowConnectionToConnectionDriver(port, connection);
+        } catch (IOException e) {
+          handleSocketIOException(e);
+        }
+      }
+    });
+  }
+
   private List<Integer> getPorts() {
-    return flow.getPorts().isEmpty()
-        ? Collections.singletonList(portArgument) : flow.getPorts();
+    return serviceFlows.getPorts().isEmpty()
+        ? Collections.singletonList(portArgument) : serviceFlows.getPorts();
   }
 
-  private ServerSocket buildSocket(int port) throws IOException {
-    if (sslContext != null) {
-      return sslContext.getServerSocketFactory().createServerSocket(port);
+  private ServerSocket buildSocket(int port, boolean reusePort) throws IOException {
+    ServerSocket ret = sslContext != null
+        ? sslContext.getServerSocketFactory().createServerSocket() : new ServerSocket();
+    try {
+      if (reusePort) {
+        ReusePort.enable(ret);
+      }
+      ret.bind(new InetSocketAddress(port), listenBacklog);
+      return ret;
+    } catch (IOException e) {
+      ret.close();
+      throw e;
     }
-    return new ServerSocket(port);
   }
 
-  private synchronized void assignFlowConnectionToConnectionDriver(Integer port,
-      FlowConnection flowConnection) {
-    Optional<FlowConnectionProvider> first = connectionDrivers.stream()
-        .map(ConnectionFlowDriver::getConnectionProvider)
-        .filter(f -> f.requiresFlowConnection(port))
-        .findFirst();
-
-    if (first.isPresent()) {
-      first.get().assignFlowConnection(port, flowConnection);
+  private void assignFlowConnectionToConnectionDriver(int port, FlowConnection flowConnection) {
+    if (stateless) {
+      addStatelessClient(flowConnection);
       return;
     }
     FlowConnectionProvider connectionProvider = buildFlowConnectionProvider();
-    connectionProvider.init(flow.getPorts(), flowConnection);
-    addClient(new ConnectionFlowDriver(connectionProvider, flow, portArgument));
+    Supplier<CompiledFlow> flowStarter = () -> {
+      CompiledFlow ret = serviceFlows.next(port);
+      connectionProvider.init(ret.getPorts(), flowConnection);
+      return ret;
+    };
+    // single port services have no flows waiting for connections
+    CompiledFlow currentFlow = serviceFlows.getPorts().size() > 1
+        ? pendingConnections.assignOrStart(port, flowConnection.getRemoteAddress(),
+        flowConnection, flowStarter)
+        : flowStarter.get();
+    if (currentFlow == null) {
+      return;
+    }
+    ConnectionFlowDriver driver = new ConnectionFlowDriver(connectionProvider, currentFlow,
+        delayScheduler, admissionControl.getExecutor(), this::endClient);
+    driver.setMetrics(metrics);
+    driver.setDeadlines(new FlowDeadlines(receiveTimeoutMillis, flowTimeoutMillis));
+    driver.setAbsoluteSchedule(absoluteSchedule);
+    addClient(driver);
   }
 
   private synchronized void addClient(ConnectionFlowDriver connectionDriver) {
@@ -146,14 +602,54 @@ public class VirtualTcpService {
       return;
     }
     connectionDrivers.add(connectionDriver);
-    clientExecutorService.submit(() -> {
-      connectionDriver.run();
-      removeClient(connectionDriver);
-    });
+    reaper.register(connectionDriver);
+    admissionControl.admit(connectionDriver, () -> rejectClient(connectionDriver));
+  }
+
+  private void rejectClient(ConnectionFlowDriver connectionDriver) {
+    removeClient(connectionDriver);
+    try {
+      connectionDriver.closeFlowConnections();
+    } catch (IOException e) {
+      LOG.error("Problem closing rejected connection", e);
+    }
+  }
+
+  private void endClient(ConnectionFlowDriver connectionDriver) {
+    removeClient(connectionDriver);
+    admissionControl.release();
   }
 
   private synchronized void removeClient(ConnectionFlowDriver connectionDriver) {
     connectionDrivers.remove(connectionDriver);
+    reaper.unregister(connectionDriver);
+  }
+
+  private synchronized void addStatelessClient(FlowConnection flowConnection) {
+    StatelessConnectionDriver driver = new StatelessConnectionDriver(flowConnection,
+        serviceFlows.getResponseIndex(), this::endStatelessClient);
+    if (stopped) {
+      driver.close();
+      return;
+    }
+    driver.setMetrics(metrics);
+    driver.setDeadlines(new FlowDeadlines(receiveTimeoutMillis, flowTimeoutMillis));
+    statelessDrivers.add(driver);
+    reaper.register(driver);
+    admissionControl.admit(driver, () -> {
+      removeStatelessClient(driver);
+      driver.close();
+    });
+  }
+
+  private void endStatelessClient(StatelessConnectionDriver driver) {
+    removeStatelessClient(driver);
+    admissionControl.release();
+  }
+
+  private synchronized void removeStatelessClient(StatelessConnectionDriver driver) {
+    statelessDrivers.remove(driver);
+    reaper.unregister(driver);
   }
 
   private void handleSocketIOException(IOException e) {
@@ -165,8 +661,23 @@ public class VirtualTcpService {
   }
 
   public void stop(long timeoutMillis) throws InterruptedException {
+    unregisterMetrics();
+    reaper.stop();
+    if (nioServer != null) {
+      nioServer.stop(timeoutMillis);
+      nioServer = null;
+      return;
+    }
     synchronized (this) {
       stopped = true;
+      for (ServerSocket serverSocket : serverSockets) {
+        try {
+          serverSocket.close();
+        } catch (IOException e) {
+          LOG.error("Problem closing server socket ", e);
+        }
+      }
+      serverSockets.clear();
       connectionDrivers.forEach(c -> {
         try {
           c.closeFlowConnections();
@@ -174,13 +685,34 @@ public class VirtualTcpService {
           LOG.error("Problem closing connection ", e);
         }
       });
+      connectionDrivers.clear();
+      statelessDrivers.forEach(StatelessConnectionDriver::close);
+      statelessDrivers.clear();
+    }
+    // executors may be missing when stopping a service which failed to start
+    if (portExecutorService == null) {
+      return;
     }
+    portExecutorService.shutdown();
+    delayScheduler.shutdownNow();
     clientExecutorService.shutdown();
     if (!clientExecutorService.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
       clientExecutorService.shutdownNow();
     }
   }
 
+  private void unregisterMetrics() {
+    if (metricsName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+    } catch (JMException e) {
+      LOG.warn("Could not unregister service metrics from JMX", e);
+    }
+    metricsName = null;
+  }
+
   private FlowConnectionProvider buildFlowConnectionProvider() {
     return new FlowConnectionProvider() {
       public final Map<Integer, CompletableFuture<FlowConnection>> map = new ConcurrentHashMap<>();
@@ -193,29 +725,26 @@ public class VirtualTcpService {
       @Override
       public void init(List<Integer> ports, FlowConnection flowConnection) {
         map.clear();
-        for (Integer port : ports) {
-          map.put(port, new CompletableFuture<>());
-        }
         CompletableFuture<FlowConnection> completedFuture = new CompletableFuture<>();
         completedFuture.complete(flowConnection);
         map.put(flowConnection.getPort(), completedFuture);
-      }
-
-      @Override
-      public void assignFlowConnection(int port, FlowConnection flowConnection) {
-        map.get(port).complete(flowConnection);
-      }
-
-      @Override
-      public boolean requiresFlowConnection(int port) {
-        return !map.get(port).isDone();
+        for (Integer port : ports) {
+          if (port != flowConnection.getPort()) {
+            CompletableFuture<FlowConnection> pending = new CompletableFuture<>();
+            map.put(port, pending);
+            pendingConnections.add(port, flowConnection.getRemoteAddress(), pending);
+          }
+        }
       }
 
       @Override
       public void closeConnections() throws IOException {
         for (CompletableFuture<FlowConnection> value : map.values()) {
           try {
-            value.cancel(false);
+            if (value.cancel(false)) {
+              // no connection was received for the port
+              continue;
+            }
             value.get(CLOSE_SOCKETS_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).close();
           } catch (InterruptedException | ExecutionException | TimeoutException e) {
             // Exceptions are not expected to be thrown since we are canceling all futures before
@@ -6,8 +6,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import javax.net.ssl.SSLContext;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
@@ -33,8 +38,28 @@ public class VirtualTcpServiceMain {
       usage = "Address where to send packets when acting as virtual client")
   private String targetAddress;
 
+  @Option(name = "-n", aliases = "--concurrent-flows", metaVar = "flow count",
+      usage = "When acting as virtual client, number of flows to replay concurrently to generate "
+          + "load on the target server. A report with latencies and throughput is printed when "
+          + "all flows end.")
+  private int concurrentFlows = 1;
+
+  @Option(name = "-ru", aliases = "--ramp-up-seconds", metaVar = "seconds",
+      usage = "When generating load, time to start all concurrent flows.")
+  private long rampUpSeconds;
+
+  @Option(name = "-rate", aliases = "--flows-per-second", metaVar = "flow count",
+      usage = "When generating load, maximum number of flows to start per second.")
+  private double flowsPerSecond;
+
+  @Option(name = "-l", aliases = "--load-duration-seconds", metaVar = "seconds",
+      usage = "When generating load, time while each concurrent flow is replayed again. When "
+          + "not specified each concurrent flow is replayed once.")
+  private long loadDurationSeconds;
+
   @Option(name = "-b", aliases = "--read-buffer-size-bytes", metaVar = "bytes count", usage =
-      "Size (in bytes) of buffer used to receive packets from client. Default value: "
+      "Maximum size (in bytes) of buffer used to receive packets from client. Buffers start "
+          + "small and grow up to this size when receiving big amounts of data. Default value: "
           + VirtualTcpService.DEFAULT_READ_BUFFER_SIZE)
   private int readBufferSize = VirtualTcpService.DEFAULT_READ_BUFFER_SIZE;
 
@@ -43,6 +68,111 @@ public class VirtualTcpServiceMain {
           + VirtualTcpService.DEFAULT_MAX_CONNECTION_COUNT)
   private int maxConnectionCount = VirtualTcpService.DEFAULT_MAX_CONNECTION_COUNT;
 
+  @Option(name = "-op", aliases = "--overload-policy", metaVar = "policy",
+      usage = "Specifies what to do with new connections when max concurrent connections are "
+          + "being attended: QUEUE (the default, waits for a thread), REJECT (closes the "
+          + "connection), or REJECT_AFTER_TIMEOUT (closes it if it waits longer than the queue "
+          + "timeout).")
+  private OverloadPolicy overloadPolicy = OverloadPolicy.QUEUE;
+
+  @Option(name = "-q", aliases = "--max-queued-connections", metaVar = "connection count",
+      usage = "Maximum number of connections waiting for a thread. Further connections are "
+          + "closed. Default: no limit")
+  private int maxQueuedConnections = Integer.MAX_VALUE;
+
+  @Option(name = "-qt", aliases = "--queue-timeout-millis", metaVar = "millis",
+      usage = "Maximum time a connection may wait for a thread when using REJECT_AFTER_TIMEOUT "
+          + "overload policy. Default: 0")
+  private long queueTimeoutMillis;
+
+  @Option(name = "-bl", aliases = "--listen-backlog", metaVar = "connection count",
+      usage = "Maximum number of connections pending to be accepted by each port. 0 uses the JVM "
+          + "default (50). Default: 0")
+  private int listenBacklog = VirtualTcpService.DEFAULT_LISTEN_BACKLOG;
+
+  @Option(name = "-ac", aliases = "--acceptors", metaVar = "acceptor count",
+      usage = "Number of sockets (each one with its own thread or event loop) accepting "
+          + "connections on each port, which increases the rate at which connections are "
+          + "accepted. Requires SO_REUSEPORT support (Linux and JDK 9+), otherwise a single "
+          + "acceptor is used. Default value: " + VirtualTcpService.DEFAULT_ACCEPTOR_COUNT)
+  private int acceptorCount = VirtualTcpService.DEFAULT_ACCEPTOR_COUNT;
+
+  @Option(name = "-e", aliases = "--event-loops", metaVar = "thread count",
+      usage = "Number of threads used to attend all client connections with non-blocking I/O. "
+          + "When specified, max concurrent connections is ignored and connections are only "
+          + "limited by available sockets. Not supported with SSL.")
+  private int eventLoopCount = VirtualTcpService.DEFAULT_EVENT_LOOP_COUNT;
+
+  @Option(name = "-vt", aliases = "--virtual-threads",
+      usage = "Attend each connection with a virtual thread when running on JDK 21+. When "
+          + "enabled, max concurrent connections is ignored. On previous JDK versions, this "
+          + "option is ignored.")
+  private boolean virtualThreads;
+
+  @Option(name = "-m", aliases = "--merge-server-packets",
+      usage = "Sends consecutive server packets without delay in a single write, reducing the "
+          + "number of writes and TCP segments used by bulk responses.")
+  private boolean coalesceServerPackets;
+
+  @Option(name = "-as", aliases = "--absolute-schedule",
+      usage = "Sends packets on an absolute schedule anchored at the flow start, so time spent "
+          + "writing packets and waking up after delays does not pile up and long replays "
+          + "reproduce the captured timing with microseconds precision.")
+  private boolean absoluteSchedule;
+
+  @Option(name = "-ts", aliases = "--time-scale", metaVar = "[port=]scale",
+      usage = "Factor applied to delays of sent packets, e.g. 0.1 to replay 10 times faster, 10 "
+          + "to replay 10 times slower or 0 to send packets with no delays. Prefix with port= to "
+          + "only apply it to packets sent on a port. Can be specified several times. Default: 1")
+  private List<String> timeScales = new ArrayList<>();
+
+  @Option(name = "-mnd", aliases = "--min-delay-millis", metaVar = "millis",
+      usage = "Minimum delay of sent packets, applied after time scale. Default: 0")
+  private long minDelayMillis;
+
+  @Option(name = "-mxd", aliases = "--max-delay-millis", metaVar = "millis",
+      usage = "Maximum delay of sent packets, applied after time scale. 0 means no maximum. "
+          + "Default: 0")
+  private long maxDelayMillis;
+
+  @Option(name = "-sl", aliases = "--stateless",
+      usage = "Answers each client packet with the server packets that followed it in the flow, "
+          + "regardless of the order in which clients send them. Useful when responses only "
+          + "depend on requests. Not supported with event loops. Without framing (-fr), "
+          + "unknown requests which look like the beginning of known ones delay the answers "
+          + "until as many bytes as the longest known request are received, so use -fr when "
+          + "clients may send such requests.")
+  private boolean stateless;
+
+  @Option(name = "-rt", aliases = "--receive-timeout-millis", metaVar = "millis",
+      usage = "Maximum time to wait for each client packet (or connection on a secondary port) "
+          + "before closing the flow connections. Client steps may override it with "
+          + "timeoutMillis. 0 means no timeout. Default: 0")
+  private long receiveTimeoutMillis;
+
+  @Option(name = "-ft", aliases = "--flow-timeout-millis", metaVar = "millis",
+      usage = "Maximum time a flow may take since its connection is accepted before closing its "
+          + "connections. 0 means no timeout. Default: 0")
+  private long flowTimeoutMillis;
+
+  @Option(name = "-cc", aliases = "--connection-correlation", metaVar = "policy",
+      usage = "Specifies how connections on secondary ports of multi port flows are assigned to "
+          + "flows waiting for them: CLIENT_ADDRESS (only to flows started by the same client "
+          + "host), ANY (to the flow waiting the longest), or CLIENT_ADDRESS_OR_ANY (the "
+          + "default, prefers flows of the same client host).")
+  private ConnectionCorrelation connectionCorrelation = ConnectionCorrelation.CLIENT_ADDRESS_OR_ANY;
+
+  @Option(name = "-fr", aliases = "--framing", metaVar = "[port=]framing",
+      usage = "Splits received data in messages with the given framing, so each expected packet "
+          + "is compared with a whole message instead of scanning received bytes. Supported "
+          + "framings are length:<size>[:<offset>[:<adjustment>[:<maxLength>]]] (big endian "
+          + "length field, counting bytes after it plus adjustment, closing connections which "
+          + "exceed maxLength, 16MB by default), delimiter:<hex>[:<maxLength>] (messages ended "
+          + "by given bytes, with same maxLength as length framing) and fixed:<length>. Prefix "
+          + "with port= to only apply it to a port. Can be specified several times. Eg: -fr "
+          + "length:2 -fr 23=delimiter:FFEF")
+  private List<String> framings = new ArrayList<>();
+
   @Option(name = "-s", aliases = "--ssl-enabled",
       usage = "Specifies if the server should start with SSL protocol support. When this "
           + "option is specified. Use standard JSSE properties like javax.net.ssl.keyStore and "
@@ -50,19 +180,34 @@ public class VirtualTcpServiceMain {
   private boolean sslEnabled;
 
   @Option(name = "-a", aliases = "--server-address", metaVar = "ip:port",
-      usage = "When using a Wireshark generated JSON dump or PCAP file, this parameter specifies "
-          + "the IP address (and optionally the port, when server and port are in same ip) which "
-          + "identifies the service to be virtualized")
+      usage = "When using a Wireshark generated JSON dump or PCAP/PCAPNG file, this parameter "
+          + "specifies the IP address (and optionally the port, when server and port are in same "
+          + "ip) which identifies the service to be virtualized. Use [ip]:port form for IPv6 "
+          + "addresses with port")
   private String serverAddress;
 
   @Option(name = "-f", aliases = "--pcap-filter-expression", metaVar = "expression",
-      usage = "Expression used to filter packets from a PCAP file. Eg: 'port 23'")
+      usage = "Expression used to filter packets from a PCAP or PCAPNG file. Supports a subset "
+          + "of pcap filters syntax: tcp, ip, ip6, [src|dst] host <ip> and [src|dst] port <port> "
+          + "combined with and, or, not and parentheses. Eg: 'port 23'")
   private String pcapFilter;
 
-  @Option(name = "-d", aliases = "--dump-file", metaVar = ".yml file",
+  @Option(name = "-sc", aliases = "--split-conversations",
+      usage = "When using a Wireshark generated JSON dump or PCAP/PCAPNG file, loads one flow "
+          + "per TCP connection instead of a single flow with all connections packets. The "
+          + "virtual service replays each conversation on a new connection, in round robin, "
+          + "attending simultaneous clients concurrently (check -c option). The virtual client "
+          + "replays all conversations, each on its own connection, starting them at their "
+          + "captured times. Auto reload and dump of flows are not supported in this mode.")
+  private boolean splitConversations;
+
+  @Option(name = "-d", aliases = "--dump-file", metaVar = ".yml or " + Flow.BINARY_FILE_EXTENSION
+      + " file",
       usage = "File path to dump loaded flow config. The virtual service will not be started when "
           + "this option is specified. This option makes sense when a Wireshark JSON file is used "
-          + "for config to dump a simplified and smaller file and then manually tune it if needed")
+          + "for config to dump a simplified and smaller file and then manually tune it if needed. "
+          + "When the file has " + Flow.BINARY_FILE_EXTENSION + " extension, the flow is dumped "
+          + "in a binary format which is not editable but loads much faster for big flows.")
   private File dumpFile;
 
   @Option(name = "-v", aliases = "--verbose", usage = "Logs debug messages")
@@ -78,13 +223,19 @@ public class VirtualTcpServiceMain {
       "When enabled, will listen for changes in dump file, when the file has changes all new "
           + "connections from now on, will use the new version of the dump. "
           + "Established connections will persist using previous dump and won't suffer any "
-          + "interruption. Default: enabled")
+          + "interruption. If the modified dump can't be loaded, previous one is kept. "
+          + "Default: enabled")
   private boolean autoReload;
 
   @Argument(metaVar = "config file", required = true,
       usage = "Configuration file from where to read packets information")
   private File configFile;
 
+  private FrameDecoder frameDecoder;
+  private final Map<Integer, FrameDecoder> portsFrameDecoders = new HashMap<>();
+  private double timeScale = 1;
+  private final Map<Integer, Double> portsTimeScales = new HashMap<>();
+
   private final Supplier<Flow> loadFlowProvider = () -> {
     try {
       if (serverAddress != null) {
@@ -93,6 +244,8 @@ public class VirtualTcpServiceMain {
         } else {
           return Flow.fromPcap(configFile, serverAddress, pcapFilter);
         }
+      } else if (isBinaryFlowFile(configFile)) {
+        return Flow.fromBinary(configFile);
       } else {
         return Flow.fromYml(configFile);
       }
@@ -102,6 +255,18 @@ public class VirtualTcpServiceMain {
     }
   };
 
+  private List<Conversation> loadConversations() throws IOException {
+    if (configFile.getName().toLowerCase().endsWith(".json")) {
+      return Flow.conversationsFromWiresharkJsonDump(configFile, serverAddress);
+    } else {
+      return Flow.conversationsFromPcap(configFile, serverAddress, pcapFilter);
+    }
+  }
+
+  private static boolean isBinaryFlowFile(File file) {
+    return file.getName().toLowerCase().endsWith(Flow.BINARY_FILE_EXTENSION);
+  }
+
   public static void main(String[] args) throws IOException, InterruptedException {
     VirtualTcpServiceMain main = new VirtualTcpServiceMain();
     CmdLineParser parser = new CmdLineParser(main);
@@ -133,15 +298,33 @@ public class VirtualTcpServiceMain {
         + command + " -p 2324 -a 0.0.0.0 login-invalid-creds.pcap\n"
         + command + " -p 2324 -a 0.0.0.0 -f \"port 23\" login-invalid-creds.pcap\n"
         + command + " -d login-invalid-creds.yml -a 0.0.0.0 login-invalid-creds-wireshark.json\n"
-        + command + " -t 127.0.0.1:2324 login-invalid-creds.yml");
+        + command + " -d login-invalid-creds.wsf -a 0.0.0.0 login-invalid-creds.pcap\n"
+        + command + " -t 127.0.0.1:2324 login-invalid-creds.yml\n"
+        + command + " -t 127.0.0.1:2324 -n 50 -ru 10 -l 60 login-invalid-creds.yml\n"
+        + command + " -p 2324 -c 50 -sc -a 0.0.0.0 many-clients.pcap");
   }
 
   private void run() throws IOException, InterruptedException {
     Logger root = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
     root.setLevel(superVerbose ? Level.TRACE : verbose ? Level.DEBUG : Level.INFO);
+    try {
+      parseFramings();
+      parseTimeScales();
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      return;
+    }
+    if (splitConversations) {
+      runConversations();
+      return;
+    }
     Flow flow = loadFlowProvider.get();
     if (dumpFile != null) {
-      flow.saveYml(dumpFile);
+      if (isBinaryFlowFile(dumpFile)) {
+        flow.saveBinary(dumpFile);
+      } else {
+        flow.saveYml(dumpFile);
+      }
     } else {
       if (targetAddress != null) {
         runVirtualClient(flow.reversed());
@@ -151,10 +334,81 @@ public class VirtualTcpServiceMain {
     }
   }
 
-  private void runVirtualClient(Flow flow) {
+  private void parseFramings() {
+    for (String framing : framings) {
+      int portSeparatorPos = framing.indexOf('=');
+      if (portSeparatorPos < 0) {
+        frameDecoder = FrameDecoder.parse(framing);
+      } else {
+        portsFrameDecoders.put(Integer.parseInt(framing.substring(0, portSeparatorPos)),
+            FrameDecoder.parse(framing.substring(portSeparatorPos + 1)));
+      }
+    }
+  }
+
+  private void parseTimeScales() {
+    for (String scale : timeScales) {
+      int portSeparatorPos = scale.indexOf('=');
+      if (portSeparatorPos < 0) {
+        timeScale = DelayScaling.validateTimeScale(Double.parseDouble(scale));
+      } else {
+        portsTimeScales.put(Integer.parseInt(scale.substring(0, portSeparatorPos)),
+            DelayScaling.validateTimeScale(Double.parseDouble(
+                scale.substring(portSeparatorPos + 1))));
+      }
+    }
+  }
+
+  private void runConversations() throws IOException, InterruptedException {
+    if (serverAddress == null || dumpFile != null) {
+      System.err.println("Splitting conversations requires a Wireshark JSON dump or PCAP/PCAPNG "
+          + "file with server address, and does not support dumping flows.");
+      return;
+    }
+    List<Conversation> conversations = loadConversations();
+    if (conversations.isEmpty()) {
+      System.err.println("No TCP conversation with data found in " + configFile);
+      return;
+    }
+    if (targetAddress != null) {
+      VirtualTcpClient client = buildVirtualClient();
+      client.setConversations(conversations.stream()
+          .map(Conversation::reversed)
+          .collect(Collectors.toList()));
+      client.runConversations().print(System.out);
+    } else {
+      VirtualTcpService service = buildVirtualService();
+      service.setConversations(conversations);
+      runVirtualService(service, null);
+    }
+  }
+
+  private void runVirtualClient(Flow flow) throws InterruptedException {
+    VirtualTcpClient client = buildVirtualClient();
+    client.setFlow(flow);
+    if (concurrentFlows > 1 || loadDurationSeconds > 0) {
+      client.setConcurrency(concurrentFlows);
+      client.setRampUpMillis(TimeUnit.SECONDS.toMillis(rampUpSeconds));
+      client.setFlowsPerSecond(flowsPerSecond);
+      client.setDurationMillis(TimeUnit.SECONDS.toMillis(loadDurationSeconds));
+      client.runLoad().print(System.out);
+    } else {
+      client.run();
+    }
+  }
+
+  private VirtualTcpClient buildVirtualClient() {
     VirtualTcpClient client = new VirtualTcpClient();
     client.setServerAddress(targetAddress);
     client.setReadBufferSize(readBufferSize);
+    client.setVirtualThreads(virtualThreads);
+    client.setAbsoluteSchedule(absoluteSchedule);
+    client.setTimeScale(timeScale);
+    portsTimeScales.forEach(client::setTimeScale);
+    client.setMinDelayMillis(minDelayMillis);
+    client.setMaxDelayMillis(maxDelayMillis);
+    int targetPort = Integer.parseInt(targetAddress.substring(targetAddress.lastIndexOf(':') + 1));
+    client.setFrameDecoder(portsFrameDecoders.getOrDefault(targetPort, frameDecoder));
     if (sslEnabled) {
       try {
         client.setSslContext(SSLContext.getDefault());
@@ -162,11 +416,10 @@ public class VirtualTcpServiceMain {
         throw new RuntimeException(e);
       }
     }
-    client.setFlow(flow);
-    client.run();
+    return client;
   }
 
-  private void runVirtualService(Flow flow) throws IOException, InterruptedException {
+  private VirtualTcpService buildVirtualService() {
     VirtualTcpService service = new VirtualTcpService();
     service.setPortArgument(port);
     if (sslEnabled) {
@@ -178,10 +431,41 @@ public class VirtualTcpServiceMain {
     }
     service.setReadBufferSize(readBufferSize);
     service.setMaxConnections(maxConnectionCount);
+    service.setOverloadPolicy(overloadPolicy);
+    service.setMaxQueuedConnections(maxQueuedConnections);
+    service.setQueueTimeoutMillis(queueTimeoutMillis);
+    service.setListenBacklog(listenBacklog);
+    service.setAcceptorCount(acceptorCount);
+    service.setEventLoopCount(eventLoopCount);
+    service.setVirtualThreads(virtualThreads);
+    service.setCoalesceServerPackets(coalesceServerPackets);
+    service.setAbsoluteSchedule(absoluteSchedule);
+    service.setTimeScale(timeScale);
+    portsTimeScales.forEach(service::setTimeScale);
+    service.setMinDelayMillis(minDelayMillis);
+    service.setMaxDelayMillis(maxDelayMillis);
+    service.setStateless(stateless);
+    service.setConnectionCorrelation(connectionCorrelation);
+    service.setReceiveTimeoutMillis(receiveTimeoutMillis);
+    service.setFlowTimeoutMillis(flowTimeoutMillis);
+    service.setFrameDecoder(frameDecoder);
+    portsFrameDecoders.forEach(service::setFrameDecoder);
+    return service;
+  }
+
+  private void runVirtualService(Flow flow) throws IOException, InterruptedException {
+    VirtualTcpService service = buildVirtualService();
     service.setFlow(flow);
     ReloadService reloadService = null;
     if (!autoReload) {
       reloadService = new ReloadService(service, configFile, loadFlowProvider);
+    }
+    runVirtualService(service, reloadService);
+  }
+
+  private void runVirtualService(VirtualTcpService service, ReloadService reloadService)
+      throws IOException, InterruptedException {
+    if (reloadService != null) {
       reloadService.start();
     }
     service.start();
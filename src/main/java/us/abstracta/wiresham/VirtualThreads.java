@@ -0,0 +1,61 @@
+package us.abstracta.wiresham;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds executors which run each task in a new virtual thread, when running on a JVM which
+ * supports them (JDK 21+).
+ * <p>
+ * Virtual threads API is accessed through reflection to keep the library compatible with JDK 8.
+ */
+final class VirtualThreads {
+
+  private static final Logger LOG = LoggerFactory.getLogger(VirtualThreads.class);
+  private static final boolean SUPPORTED = buildThreadFactory("probe") != null;
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Builds an executor which runs each task in a new virtual thread, or uses the given fallback
+   * executor when virtual threads are not supported by the running JVM.
+   *
+   * @param namePrefix prefix used to name created virtual threads.
+   * @param fallback provides the executor to use when virtual threads are not supported.
+   * @return the executor to run tasks with.
+   */
+  static ExecutorService newExecutor(String namePrefix, Supplier<ExecutorService> fallback) {
+    ThreadFactory threadFactory = SUPPORTED ? buildThreadFactory(namePrefix) : null;
+    if (threadFactory == null) {
+      LOG.warn("Virtual threads are not supported by running JVM, using platform threads.");
+      return fallback.get();
+    }
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+          .invoke(null, threadFactory);
+    } catch (ReflectiveOperationException e) {
+      LOG.warn("Could not create virtual threads executor, using platform threads.", e);
+      return fallback.get();
+    }
+  }
+
+  private static ThreadFactory buildThreadFactory(String namePrefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, namePrefix, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // virtual threads are not available (JDK < 21 or preview features not enabled)
+      return null;
+    }
+  }
+
+}
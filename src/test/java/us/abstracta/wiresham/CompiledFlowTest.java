@@ -0,0 +1,123 @@
+package us.abstracta.wiresham;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+
+public class CompiledFlowTest {
+
+  private static final int PORT_ARGUMENT = 23;
+  private static final String DATA = "FFFF";
+
+  @Test
+  public void shouldResolveStepsPortsWhenCompile() {
+    CompiledFlow flow = CompiledFlow.compile(new Flow(Arrays.asList(
+        new SendPacketStep(DATA, 0),
+        new ReceivePacketStep(DATA),
+        new SendPacketStep(DATA, 0, 2324),
+        new ReceivePacketStep(DATA),
+        new SendPacketStep(DATA, 0, 2325),
+        new ReceivePacketStep(DATA, 2324))), PORT_ARGUMENT);
+    assertThat(new int[]{flow.getStepPort(0), flow.getStepPort(1), flow.getStepPort(2),
+        flow.getStepPort(3), flow.getStepPort(4), flow.getStepPort(5)})
+        .containsExactly(PORT_ARGUMENT, PORT_ARGUMENT, 2324, 2324, 2325, 2324);
+  }
+
+  @Test
+  public void shouldGetServerPortsInOrderWhenCompile() {
+    CompiledFlow flow = CompiledFlow.compile(new Flow(Arrays.asList(
+        new SendPacketStep(DATA, 0, 2325),
+        new ReceivePacketStep(DATA, 2326),
+        new SendPacketStep(DATA, 0, 2324),
+        new SendPacketStep(DATA, 0, 2325))), PORT_ARGUMENT);
+    assertThat(flow.getPorts()).containsExactly(2325, 2324);
+  }
+
+  @Test
+  public void shouldStartOnPortArgumentWhenCompileEmptyFlow() {
+    CompiledFlow flow = CompiledFlow.compile(new Flow(Arrays.asList()), PORT_ARGUMENT);
+    assertThat(flow.getFirstPort()).isEqualTo(PORT_ARGUMENT);
+  }
+
+  @Test
+  public void shouldMergeConsecutiveSendStepsWithoutDelayWhenCompileWithCoalescing() {
+    CompiledFlow flow = CompiledFlow.compile(new Flow(Arrays.asList(
+        new ReceivePacketStep("00"),
+        new SendPacketStep("01", 5),
+        new SendPacketStep("02", 0),
+        new SendPacketStep("03", 0),
+        new ReceivePacketStep("04"))), PORT_ARGUMENT, true);
+    assertThat(getSteps(flow)).containsExactly(
+        new ReceivePacketStep("00"),
+        new SendPacketStep("010203", 5),
+        new ReceivePacketStep("04"));
+  }
+
+  private static PacketStep[] getSteps(CompiledFlow flow) {
+    PacketStep[] steps = new PacketStep[flow.size()];
+    for (int i = 0; i < steps.length; i++) {
+      steps[i] = flow.getStep(i);
+    }
+    return steps;
+  }
+
+  @Test
+  public void shouldNotMergeSendStepsWithDelayOrOnOtherPortWhenCompileWithCoalescing() {
+    CompiledFlow flow = CompiledFlow.compile(new Flow(Arrays.asList(
+        new SendPacketStep("01", 0),
+        new SendPacketStep("02", 5),
+        new SendPacketStep("03", 0, 2324),
+        new SendPacketStep("04", 0))), PORT_ARGUMENT, true);
+    assertThat(getSteps(flow)).containsExactly(
+        new SendPacketStep("01", 0),
+        new SendPacketStep("02", 5),
+        new SendPacketStep("0304", 0, 2324));
+  }
+
+  @Test
+  public void shouldScaleAndClampDelaysWhenCompileWithDelayScaling() {
+    CompiledFlow flow = CompiledFlow.compile(new Flow(Arrays.asList(
+        new SendPacketStep("01", 100),
+        new SendPacketStep("02", 5),
+        new SendPacketStep("03", 100, 2324),
+        new SendPacketStep("04", 10000, PORT_ARGUMENT))), PORT_ARGUMENT, false,
+        new DelayScaling(0.1, Collections.singletonMap(2324, 0.0), 1, 500), null);
+    assertThat(getSteps(flow)).containsExactly(
+        new SendPacketStep("01", 10),
+        new SendPacketStep("02", 1),
+        new SendPacketStep("03", 1, 2324),
+        new SendPacketStep("04", 500, PORT_ARGUMENT));
+  }
+
+  @Test
+  public void shouldMergeSendStepsWithDelayScaledToZeroWhenCompileWithCoalescing() {
+    CompiledFlow flow = CompiledFlow.compile(new Flow(Arrays.asList(
+        new SendPacketStep("01", 100),
+        new SendPacketStep("02", 5))), PORT_ARGUMENT, true,
+        new DelayScaling(0, Collections.emptyMap(), 0, 0), null);
+    assertThat(getSteps(flow)).containsExactly(new SendPacketStep("0102", 0));
+  }
+
+  @Test
+  public void shouldKeepSendStepsWhenCompileWithoutCoalescing() {
+    CompiledFlow flow = CompiledFlow.compile(new Flow(Arrays.asList(
+        new SendPacketStep("01", 0),
+        new SendPacketStep("02", 0))), PORT_ARGUMENT);
+    assertThat(flow.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldReuseUnchangedStepsWhenCompileWithPreviousFlow() {
+    CompiledFlow previous = CompiledFlow.compile(new Flow(Arrays.asList(
+        new SendPacketStep("01", 0),
+        new ReceivePacketStep("02"))), PORT_ARGUMENT);
+    CompiledFlow flow = CompiledFlow.compile(new Flow(Arrays.asList(
+        new SendPacketStep("01", 0),
+        new ReceivePacketStep("03"))), PORT_ARGUMENT, false, previous);
+    assertThat(flow.getStep(0)).isSameAs(previous.getStep(0));
+    assertThat(flow.getStep(1)).isNotSameAs(previous.getStep(1));
+  }
+
+}
@@ -0,0 +1,49 @@
+package us.abstracta.wiresham;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+public class DirectBufferPoolTest {
+
+  private static final int BUFFER_SIZE = 512;
+
+  @Test
+  public void shouldReuseReleasedBufferWhenLeaseSameCapacity() {
+    DirectBufferPool pool = new DirectBufferPool(BUFFER_SIZE);
+    ByteBuffer buffer = pool.lease(BUFFER_SIZE);
+    pool.release(buffer);
+    assertThat(pool.lease(BUFFER_SIZE)).isSameAs(buffer);
+  }
+
+  @Test
+  public void shouldLeaseClearedDirectBufferWhenReused() {
+    DirectBufferPool pool = new DirectBufferPool(BUFFER_SIZE);
+    ByteBuffer buffer = pool.lease(BUFFER_SIZE);
+    buffer.put((byte) 1).flip();
+    pool.release(buffer);
+    ByteBuffer leased = pool.lease(BUFFER_SIZE);
+    assertThat(leased.isDirect() && leased.position() == 0
+        && leased.limit() == BUFFER_SIZE).isTrue();
+  }
+
+  @Test
+  public void shouldNotReuseBufferWhenLeaseOtherCapacity() {
+    DirectBufferPool pool = new DirectBufferPool(BUFFER_SIZE * 2);
+    ByteBuffer buffer = pool.lease(BUFFER_SIZE);
+    pool.release(buffer);
+    assertThat(pool.lease(BUFFER_SIZE * 2)).isNotSameAs(buffer);
+  }
+
+  @Test
+  public void shouldDiscardReleasedBufferWhenPoolIsFull() {
+    DirectBufferPool pool = new DirectBufferPool(BUFFER_SIZE);
+    ByteBuffer first = pool.lease(BUFFER_SIZE);
+    ByteBuffer second = pool.lease(BUFFER_SIZE);
+    pool.release(first);
+    pool.release(second);
+    assertThat(pool.getPooledBytes()).isEqualTo(BUFFER_SIZE);
+  }
+
+}
@@ -0,0 +1,65 @@
+package us.abstracta.wiresham;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+public class FlowConnectionTest {
+
+  private static final int MAX_READ_BUFFER_SIZE = FlowConnection.INITIAL_READ_BUFFER_SIZE * 4;
+
+  @Test
+  public void shouldReadWithInitialBufferSizeWhenFirstRead() throws Exception {
+    FlowConnection connection = buildConnection(new byte[MAX_READ_BUFFER_SIZE * 2]);
+    assertThat(consumeRead(connection)).isEqualTo(FlowConnection.INITIAL_READ_BUFFER_SIZE);
+  }
+
+  private FlowConnection buildConnection(byte[] received) throws IOException {
+    Socket socket = mock(Socket.class);
+    when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(received));
+    return new FlowConnection(socket, MAX_READ_BUFFER_SIZE);
+  }
+
+  private int consumeRead(FlowConnection connection) throws IOException {
+    ByteBuffer buffer = connection.read();
+    int count = buffer.remaining();
+    buffer.position(buffer.limit());
+    return count;
+  }
+
+  @Test
+  public void shouldGrowReadBufferUpToMaxSizeWhenReadsFillIt() throws Exception {
+    FlowConnection connection = buildConnection(new byte[MAX_READ_BUFFER_SIZE * 4]);
+    for (int i = 0; i < 3; i++) {
+      consumeRead(connection);
+    }
+    assertThat(consumeRead(connection)).isEqualTo(MAX_READ_BUFFER_SIZE);
+  }
+
+  @Test
+  public void shouldReadAllDataWhenBiggerThanMaxReadBufferSize() throws Exception {
+    int size = MAX_READ_BUFFER_SIZE * 10 + 1;
+    FlowConnection connection = buildConnection(new byte[size]);
+    int total = 0;
+    while (total < size) {
+      total += consumeRead(connection);
+    }
+    assertThat(total).isEqualTo(size);
+  }
+
+  @Test
+  public void shouldReadWholeFrameWhenFrameIsSplitAmongReads() throws Exception {
+    int frameSize = FlowConnection.INITIAL_READ_BUFFER_SIZE + 1;
+    FlowConnection connection = buildConnection(new byte[frameSize * 2]);
+    connection.setFrameDecoder(new FixedLengthFrameDecoder(frameSize));
+    connection.readFrame();
+    assertThat(connection.readFrame().remaining()).isEqualTo(frameSize);
+  }
+
+}
@@ -1,13 +1,25 @@
 package us.abstracta.wiresham;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class FlowTest {
 
+  private static SendPacketStep buildServerStep(String hexDump, long delayMicros, int port) {
+    SendPacketStep ret = new SendPacketStep(hexDump, 0, port);
+    ret.setDelayMicros(delayMicros);
+    return ret;
+  }
+
   @Test
   public void shouldGetServerAndClientStepsWhenLoadWiresharkWithSameServerAndClientIp()
       throws IOException {
@@ -15,8 +27,98 @@ public class FlowTest {
         "127.0.0.1:3469");
     assertEquals(flow.getSteps(), Arrays.asList(
         new ReceivePacketStep("43485F4643457C31307C0D0A"),
-        new SendPacketStep("5245535F4643457C547C332E302E3135352E313731FF", 0)
+        buildServerStep("5245535F4643457C547C332E302E3135352E313731FF", 25173, 3469)
+    ));
+  }
+
+  @Test
+  public void shouldGetServerAndClientStepsWhenLoadPcapWithSameServerAndClientIp()
+      throws IOException {
+    Flow flow = Flow.fromPcap(TestResource.getResourceFile("/serverOnLocalPort.pcap"),
+        "127.0.0.1:3469", null);
+    assertEquals(flow.getSteps(), Arrays.asList(
+        new ReceivePacketStep("43485F4643457C31307C0D0A"),
+        buildServerStep("5245535F4643457C547C332E302E3135352E313731FF", 25173, 3469)
+    ));
+  }
+
+  @Test
+  public void shouldGetServerAndClientStepsWhenLoadIpV6Pcapng() throws IOException {
+    Flow flow = Flow.fromPcap(TestResource.getResourceFile("/serverOnLocalPortIpv6.pcapng"),
+        "[::1]:3469", null);
+    assertEquals(flow.getSteps(), Arrays.asList(
+        new ReceivePacketStep("43485F4643457C31307C0D0A"),
+        buildServerStep("5245535F4643457C547C332E302E3135352E313731FF", 25173, 3469)
     ));
   }
 
+  @Test
+  public void shouldGetConversationWithClientAddressWhenLoadPcapConversations()
+      throws IOException {
+    List<Conversation> conversations = Flow.conversationsFromPcap(
+        TestResource.getResourceFile("/serverOnLocalPort.pcap"), "127.0.0.1:3469", null);
+    assertEquals(conversations, Collections.singletonList(new Conversation(
+        new Flow(Arrays.asList(
+            new ReceivePacketStep("43485F4643457C31307C0D0A", 3469),
+            buildServerStep("5245535F4643457C547C332E302E3135352E313731FF", 25173, 3469))),
+        0, "127.0.0.1:55616")));
+  }
+
+  @Test
+  public void shouldGetOnlyFilteredStepsWhenLoadPcapWithFilter() throws IOException {
+    Flow flow = Flow.fromPcap(TestResource.getResourceFile("/serverOnLocalPort.pcap"),
+        "127.0.0.1:3469", "tcp and (src port 3469 or src host 10.0.0.1)");
+    assertEquals(flow.getSteps(), Collections.singletonList(
+        new SendPacketStep("5245535F4643457C547C332E302E3135352E313731FF", 0, 3469)));
+  }
+
+  @Test
+  public void shouldThrowIOExceptionWhenLoadPcapWithUnsupportedFilter() {
+    assertThrows(IOException.class, () -> Flow.fromPcap(
+        TestResource.getResourceFile("/serverOnLocalPort.pcap"), "127.0.0.1:3469",
+        "tcp[tcpflags] & tcp-syn != 0"));
+  }
+
+  @Test
+  public void shouldGetSameFlowWhenSaveAndLoadBinary(@TempDir File tempDir) throws IOException {
+    Flow flow = new Flow(Arrays.asList(
+        new SendPacketStep("48656C6C6F", 50, 2324),
+        new ReceivePacketStep("48656C6C6F2C2049276D204A6F686E", 2325),
+        new ReceivePacketStep(""),
+        new SendPacketStep("427965", 0)));
+    File file = new File(tempDir, "flow" + Flow.BINARY_FILE_EXTENSION);
+    flow.saveBinary(file);
+    assertEquals(flow, Flow.fromBinary(file));
+  }
+
+  @Test
+  public void shouldKeepMicrosecondsDelaysWhenSaveAndLoadYml(@TempDir File tempDir)
+      throws IOException {
+    Flow flow = new Flow(Arrays.asList(
+        buildServerStep("48656C6C6F", 1500, 2324),
+        new SendPacketStep("427965", 20)));
+    File file = new File(tempDir, "flow.yml");
+    flow.saveYml(file);
+    assertEquals(flow, Flow.fromYml(file));
+  }
+
+  @Test
+  public void shouldKeepClientStepTimeoutWhenSaveAndLoadBinary(@TempDir File tempDir)
+      throws IOException {
+    ReceivePacketStep step = new ReceivePacketStep("01", 2324);
+    step.setTimeoutMillis(500);
+    Flow flow = new Flow(Collections.singletonList(step));
+    File file = new File(tempDir, "flow" + Flow.BINARY_FILE_EXTENSION);
+    flow.saveBinary(file);
+    assertEquals(flow, Flow.fromBinary(file));
+  }
+
+  @Test
+  public void shouldThrowIOExceptionWhenLoadBinaryFromOtherFormat(@TempDir File tempDir)
+      throws IOException {
+    File file = new File(tempDir, "flow" + Flow.BINARY_FILE_EXTENSION);
+    Files.write(file.toPath(), "- !server {data: 48656C6C6F}".getBytes());
+    assertThrows(IOException.class, () -> Flow.fromBinary(file));
+  }
+
 }
@@ -0,0 +1,95 @@
+package us.abstracta.wiresham;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.google.common.io.BaseEncoding;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+public class FrameDecoderTest {
+
+  private static ByteBuffer decode(String hexDump) {
+    return ByteBuffer.wrap(BaseEncoding.base16().decode(hexDump));
+  }
+
+  private static String encode(ByteBuffer frame) {
+    byte[] bytes = new byte[frame.remaining()];
+    frame.duplicate().get(bytes);
+    return BaseEncoding.base16().encode(bytes);
+  }
+
+  @Test
+  public void shouldGetFramesWithLengthPrefixWhenDecodeLengthPrefixedFrames() throws Exception {
+    ByteBuffer data = decode("000201020001");
+    FrameDecoder decoder = new LengthPrefixedFrameDecoder(2, 0, 0);
+    assertThat(encode(decoder.decode(data))).isEqualTo("00020102");
+    assertThat(decoder.decode(data)).isNull();
+    assertThat(data.position()).isEqualTo(4);
+  }
+
+  @Test
+  public void shouldGetFrameWithHeaderWhenDecodeLengthPrefixedFrameWithOffsetAndAdjustment()
+      throws Exception {
+    assertThat(encode(new LengthPrefixedFrameDecoder(2, 1, -3).decode(decode("0700050102FF"))))
+        .isEqualTo("0700050102");
+  }
+
+  @Test
+  public void shouldThrowTooLongFrameExceptionWhenDecodeLengthPrefixedFrameLongerThanMax() {
+    assertThatThrownBy(() -> new LengthPrefixedFrameDecoder(4, 0, 0, 1024)
+        .decode(decode("FFFFFFFF01")))
+        .isInstanceOf(TooLongFrameException.class);
+  }
+
+  @Test
+  public void shouldGetFramesWithDelimiterWhenDecodeDelimitedFrames() throws Exception {
+    ByteBuffer data = decode("01FF02FFEF03");
+    FrameDecoder decoder = new DelimiterFrameDecoder(new byte[]{(byte) 0xFF, (byte) 0xEF});
+    assertThat(encode(decoder.decode(data))).isEqualTo("01FF02FFEF");
+    assertThat(decoder.decode(data)).isNull();
+  }
+
+  @Test
+  public void shouldGetFrameWhenDecodeDelimitedFrameSplitInDelimiterAfterScanningFirstPart()
+      throws Exception {
+    FrameDecoder decoder = new DelimiterFrameDecoder(new byte[]{(byte) 0xFF, (byte) 0xEF});
+    ByteBuffer data = decode("0102FF");
+    assertThat(decoder.decode(data)).isNull();
+    data = decode("0102FFEF03");
+    assertThat(encode(decoder.decode(data, 3))).isEqualTo("0102FFEF");
+  }
+
+  @Test
+  public void shouldThrowTooLongFrameExceptionWhenDecodeDelimitedFrameLongerThanMax()
+      throws Exception {
+    FrameDecoder decoder = new DelimiterFrameDecoder(new byte[]{(byte) 0xFF, (byte) 0xEF}, 4);
+    ByteBuffer data = decode("01020304");
+    assertThat(decoder.decode(data)).isNull();
+    ByteBuffer longerData = decode("0102030405FFEF");
+    assertThatThrownBy(() -> decoder.decode(longerData, data.remaining()))
+        .isInstanceOf(TooLongFrameException.class);
+  }
+
+  @Test
+  public void shouldGetFramesWithFixedLengthWhenDecodeFixedLengthFrames() throws Exception {
+    ByteBuffer data = decode("0102030405");
+    FrameDecoder decoder = new FixedLengthFrameDecoder(2);
+    assertThat(encode(decoder.decode(data))).isEqualTo("0102");
+    assertThat(encode(decoder.decode(data))).isEqualTo("0304");
+    assertThat(decoder.decode(data)).isNull();
+  }
+
+  @Test
+  public void shouldGetDecoderWithSpecifiedFramingWhenParse() throws Exception {
+    assertThat(encode(FrameDecoder.parse("delimiter:ffef").decode(decode("01FFEF02"))))
+        .isEqualTo("01FFEF");
+  }
+
+  @Test
+  public void shouldThrowIllegalArgumentExceptionWhenParseUnknownFraming() {
+    assertThatThrownBy(() -> FrameDecoder.parse("line"))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+}
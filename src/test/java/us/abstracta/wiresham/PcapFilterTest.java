@@ -0,0 +1,67 @@
+package us.abstracta.wiresham;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+public class PcapFilterTest {
+
+  private static final String CLIENT_IP = "10.0.0.1";
+  private static final String SERVER_IP = "10.0.0.2";
+  private static final int SERVER_PORT = 80;
+
+  private static TcpSegment buildSegment(String sourceIp, int sourcePort, String destinationIp,
+      int destinationPort) {
+    return new TcpSegment(0, sourceIp, sourcePort, destinationIp, destinationPort, 0,
+        TcpSegment.ACK_FLAG, ByteBuffer.allocate(0));
+  }
+
+  private static TcpSegment buildClientSegment() {
+    return buildSegment(CLIENT_IP, 5000, SERVER_IP, SERVER_PORT);
+  }
+
+  @Test
+  public void shouldMatchSegmentWhenProtocolIsFollowedByMatchingPrimitive() {
+    assertThat(PcapFilter.parse("tcp port 80").test(buildClientSegment())).isTrue();
+  }
+
+  @Test
+  public void shouldNotMatchSegmentWhenProtocolIsFollowedByNotMatchingPrimitive() {
+    assertThat(PcapFilter.parse("tcp port 8080").test(buildClientSegment())).isFalse();
+  }
+
+  @Test
+  public void shouldNotMatchSegmentWhenIpProtocolIsFollowedByHostAndSegmentIsIpV6() {
+    assertThat(PcapFilter.parse("ip6 host 10.0.0.1").test(buildClientSegment())).isFalse();
+  }
+
+  @Test
+  public void shouldMatchSegmentWhenIpProtocolIsFollowedByMatchingHost() {
+    assertThat(PcapFilter.parse("ip host 10.0.0.1 and tcp dst port 80")
+        .test(buildClientSegment())).isTrue();
+  }
+
+  @Test
+  public void shouldMatchSegmentWhenDirectionIsFollowedByMatchingIp() {
+    assertThat(PcapFilter.parse("src 10.0.0.1").test(buildClientSegment())).isTrue();
+  }
+
+  @Test
+  public void shouldNotMatchSegmentWhenDirectionIsFollowedByIpOfOtherDirection() {
+    assertThat(PcapFilter.parse("dst 10.0.0.1").test(buildClientSegment())).isFalse();
+  }
+
+  @Test
+  public void shouldMatchSegmentWhenValueReusesQualifiersOfPreviousPrimitive() {
+    assertThat(PcapFilter.parse("tcp port 8080 or 80").test(buildClientSegment())).isTrue();
+  }
+
+  @Test
+  public void shouldThrowIllegalArgumentExceptionWhenParseUnsupportedPrimitive() {
+    assertThatThrownBy(() -> PcapFilter.parse("udp port 53"))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+}
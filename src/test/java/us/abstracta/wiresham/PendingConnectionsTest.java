@@ -0,0 +1,112 @@
+package us.abstracta.wiresham;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+public class PendingConnectionsTest {
+
+  private static final int PORT = 2324;
+  private static final InetAddress FIRST_CLIENT = InetAddress.getLoopbackAddress();
+  private static final InetAddress SECOND_CLIENT = buildAddress(10, 0, 0, 2);
+
+  private static InetAddress buildAddress(int... bytes) {
+    byte[] address = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      address[i] = (byte) bytes[i];
+    }
+    try {
+      return InetAddress.getByAddress(address);
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static FlowConnection buildConnection() {
+    return mock(FlowConnection.class);
+  }
+
+  @Test
+  public void shouldAssignConnectionToFlowOfSameClientWhenCorrelatingByClientAddress() {
+    PendingConnections<FlowConnection> pending = new PendingConnections<>(
+        ConnectionCorrelation.CLIENT_ADDRESS_OR_ANY);
+    CompletableFuture<FlowConnection> firstClientPending = new CompletableFuture<>();
+    CompletableFuture<FlowConnection> secondClientPending = new CompletableFuture<>();
+    pending.add(PORT, FIRST_CLIENT, firstClientPending);
+    pending.add(PORT, SECOND_CLIENT, secondClientPending);
+    FlowConnection connection = buildConnection();
+    pending.assign(PORT, SECOND_CLIENT, connection);
+    assertThat(secondClientPending.getNow(null)).isSameAs(connection);
+    assertThat(firstClientPending.isDone()).isFalse();
+  }
+
+  @Test
+  public void shouldAssignConnectionToOldestFlowWhenNoFlowOfSameClientAndCorrelatingByAny() {
+    PendingConnections<FlowConnection> pending = new PendingConnections<>(
+        ConnectionCorrelation.CLIENT_ADDRESS_OR_ANY);
+    CompletableFuture<FlowConnection> firstClientPending = new CompletableFuture<>();
+    pending.add(PORT, FIRST_CLIENT, firstClientPending);
+    FlowConnection connection = buildConnection();
+    assertThat(pending.assign(PORT, SECOND_CLIENT, connection)).isTrue();
+    assertThat(firstClientPending.getNow(null)).isSameAs(connection);
+  }
+
+  @Test
+  public void shouldNotAssignConnectionWhenNoFlowOfSameClientAndCorrelatingByClientAddress() {
+    PendingConnections<FlowConnection> pending = new PendingConnections<>(
+        ConnectionCorrelation.CLIENT_ADDRESS);
+    pending.add(PORT, FIRST_CLIENT, new CompletableFuture<>());
+    assertThat(pending.assign(PORT, SECOND_CLIENT, buildConnection())).isFalse();
+  }
+
+  @Test
+  public void shouldSkipCancelledPendingConnectionWhenAssign() {
+    PendingConnections<FlowConnection> pending = new PendingConnections<>(
+        ConnectionCorrelation.ANY);
+    CompletableFuture<FlowConnection> cancelled = new CompletableFuture<>();
+    CompletableFuture<FlowConnection> waiting = new CompletableFuture<>();
+    pending.add(PORT, FIRST_CLIENT, cancelled);
+    pending.add(PORT, FIRST_CLIENT, waiting);
+    cancelled.cancel(false);
+    FlowConnection connection = buildConnection();
+    pending.assign(PORT, FIRST_CLIENT, connection);
+    assertThat(waiting.getNow(null)).isSameAs(connection);
+  }
+
+  @Test
+  public void shouldNotStartFlowWhenAssignOrStartAndFlowWaitsForConnection() {
+    PendingConnections<FlowConnection> pending = new PendingConnections<>(
+        ConnectionCorrelation.CLIENT_ADDRESS);
+    CompletableFuture<FlowConnection> waiting = new CompletableFuture<>();
+    pending.add(PORT, FIRST_CLIENT, waiting);
+    FlowConnection connection = buildConnection();
+    assertThat(pending.assignOrStart(PORT, FIRST_CLIENT, connection, () -> "flow")).isNull();
+    assertThat(waiting.getNow(null)).isSameAs(connection);
+  }
+
+  @Test
+  public void shouldStartFlowWhenAssignOrStartAndNoFlowWaitsForConnection() {
+    PendingConnections<FlowConnection> pending = new PendingConnections<>(
+        ConnectionCorrelation.CLIENT_ADDRESS);
+    pending.add(PORT, SECOND_CLIENT, new CompletableFuture<>());
+    assertThat(pending.assignOrStart(PORT, FIRST_CLIENT, buildConnection(), () -> "flow"))
+        .isEqualTo("flow");
+  }
+
+  @Test
+  public void shouldForgetPendingConnectionsWhenAssignedOrCancelled() {
+    PendingConnections<FlowConnection> pending = new PendingConnections<>(
+        ConnectionCorrelation.CLIENT_ADDRESS_OR_ANY);
+    CompletableFuture<FlowConnection> cancelled = new CompletableFuture<>();
+    pending.add(PORT, FIRST_CLIENT, cancelled);
+    pending.add(PORT, SECOND_CLIENT, new CompletableFuture<>());
+    cancelled.cancel(false);
+    pending.assign(PORT, SECOND_CLIENT, buildConnection());
+    assertThat(pending.isEmpty()).isTrue();
+  }
+
+}
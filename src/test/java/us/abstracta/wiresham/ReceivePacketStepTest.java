@@ -0,0 +1,73 @@
+package us.abstracta.wiresham;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import org.junit.jupiter.api.Test;
+
+public class ReceivePacketStepTest {
+
+  private static final int READ_BUFFER_SIZE = 4;
+
+  @Test
+  public void shouldReceiveExpectedPacketWhenBiggerThanReadBuffer() throws Exception {
+    FlowConnection connection = buildConnection(SimpleFlow.UNEXPECTED_MESSAGE
+        + SimpleFlow.CLIENT_REQUEST, 3);
+    buildStep(SimpleFlow.CLIENT_REQUEST).process(connection);
+  }
+
+  private FlowConnection buildConnection(String received, int maxReadSize) throws IOException {
+    Socket socket = mock(Socket.class);
+    when(socket.getInputStream()).thenReturn(new ChunkedInputStream(
+        received.getBytes(Charsets.UTF_8), maxReadSize));
+    return new FlowConnection(socket, READ_BUFFER_SIZE);
+  }
+
+  private static class ChunkedInputStream extends ByteArrayInputStream {
+
+    private final int maxReadSize;
+
+    private ChunkedInputStream(byte[] data, int maxReadSize) {
+      super(data);
+      this.maxReadSize = maxReadSize;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+      return super.read(b, off, Math.min(len, maxReadSize));
+    }
+
+  }
+
+  private ReceivePacketStep buildStep(String expected) {
+    return new ReceivePacketStep(
+        BaseEncoding.base16().encode(expected.getBytes(Charsets.UTF_8)));
+  }
+
+  @Test
+  public void shouldReceiveExpectedPacketWhenPrecededByPartialMatch() throws Exception {
+    FlowConnection connection = buildConnection("AABAAABAAAAB", 2);
+    buildStep("AAAAB").process(connection);
+  }
+
+  @Test
+  public void shouldKeepDataReceivedAfterExpectedPacketForNextStep() throws Exception {
+    FlowConnection connection = buildConnection(SimpleFlow.CLIENT_REQUEST + "Bye", 16);
+    buildStep(SimpleFlow.CLIENT_REQUEST).process(connection);
+    buildStep("Bye").process(connection);
+  }
+
+  @Test
+  public void shouldThrowConnectionClosedWhenExpectedPacketNotReceived() throws Exception {
+    FlowConnection connection = buildConnection(SimpleFlow.UNEXPECTED_MESSAGE, 16);
+    assertThrows(ConnectionClosedException.class,
+        () -> buildStep(SimpleFlow.CLIENT_REQUEST).process(connection));
+  }
+
+}
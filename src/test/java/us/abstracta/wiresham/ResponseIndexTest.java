@@ -0,0 +1,79 @@
+package us.abstracta.wiresham;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.base.Charsets;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import us.abstracta.wiresham.SimpleFlow.FlowBuilder;
+
+public class ResponseIndexTest {
+
+  private static final String SHORT_REQUEST = "GET";
+  private static final String LONG_REQUEST = "GET /";
+  private static final String OTHER_REQUEST = "PUT";
+
+  private static ResponseIndex buildIndex() {
+    Flow flow = new FlowBuilder()
+        .withClientPacket(SHORT_REQUEST)
+        .withServerPacket("short")
+        .withClientPacket(LONG_REQUEST)
+        .withServerPacket("long")
+        .withClientPacket(OTHER_REQUEST)
+        .withServerPacket("other")
+        .build();
+    return ResponseIndex.build(Collections.singletonList(CompiledFlow.compile(flow, 0)));
+  }
+
+  private static ByteBuffer buildData(String text) {
+    return ByteBuffer.wrap(text.getBytes(Charsets.UTF_8));
+  }
+
+  @Test
+  public void shouldFindLongestRequestWhenSeveralRequestsMatchBeginningOfData() {
+    ResponseIndex.Request request = buildIndex().newScanner().find(buildData("GET /index"));
+    assertThat(request.length()).isEqualTo(LONG_REQUEST.length());
+  }
+
+  @Test
+  public void shouldFindNoRequestWhenDataDoesNotStartWithKnownRequest() {
+    assertThat(buildIndex().newScanner().find(buildData("POST /"))).isNull();
+  }
+
+  @Test
+  public void shouldFindRequestAfterSkippedBytesWhenSkipUnknownData() {
+    ResponseIndex.Scanner scanner = buildIndex().newScanner();
+    ByteBuffer data = buildData("xxPUT");
+    assertThat(scanner.find(data)).isNull();
+    scanner.skip(data);
+    assertThat(scanner.find(data)).isNull();
+    scanner.skip(data);
+    assertThat(scanner.find(data).length()).isEqualTo(OTHER_REQUEST.length());
+  }
+
+  @Test
+  public void shouldGetPossibleRequestStartWhenDataIsBeginningOfLongerRequest() {
+    ResponseIndex.Scanner scanner = buildIndex().newScanner();
+    ByteBuffer data = buildData("GE");
+    assertThat(scanner.find(data)).isNull();
+    assertThat(scanner.isPossibleRequestStart(data)).isTrue();
+  }
+
+  @Test
+  public void shouldGetNoPossibleRequestStartWhenDataIsNotBeginningOfAnyRequest() {
+    ResponseIndex.Scanner scanner = buildIndex().newScanner();
+    ByteBuffer data = buildData("PO");
+    assertThat(scanner.find(data)).isNull();
+    assertThat(scanner.isPossibleRequestStart(data)).isFalse();
+  }
+
+  @Test
+  public void shouldFindRequestAfterConsumedOneWhenDataHasConsecutiveRequests() {
+    ResponseIndex.Scanner scanner = buildIndex().newScanner();
+    ByteBuffer data = buildData("PUTGET /");
+    scanner.consume(data, scanner.find(data));
+    assertThat(scanner.find(data).length()).isEqualTo(LONG_REQUEST.length());
+  }
+
+}
@@ -35,6 +35,11 @@ public abstract class SimpleFlow {
       return this;
     }
 
+    public FlowBuilder withDelayedServerPacket(String data, long delayMillis) {
+      steps.add(new SendPacketStep(encodeTextToHex(data), delayMillis));
+      return this;
+    }
+
     public FlowBuilder withClientPacket(String data) {
       steps.add(new ReceivePacketStep(encodeTextToHex(data)));
       return this;
@@ -43,7 +48,7 @@ public abstract class SimpleFlow {
     private String encodeTextToHex(String text) {
       byte[] bytes = text.getBytes(Charsets.UTF_8);
       return IntStream.range(0, bytes.length)
-          .mapToObj(i -> Integer.toHexString(bytes[i]))
+          .mapToObj(i -> String.format("%02x", bytes[i]))
           .collect(Collectors.joining());
     }
 
@@ -0,0 +1,68 @@
+package us.abstracta.wiresham;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.io.BaseEncoding;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class TcpConversationSplitterTest {
+
+  private static final String CLIENT_IP = "10.0.0.2";
+  private static final String SERVER_IP = "10.0.0.1";
+  private static final int SERVER_PORT = 23;
+
+  private final TcpConversationSplitter splitter = new TcpConversationSplitter(
+      s -> SERVER_IP.equals(s.getSourceIp()));
+
+  private static TcpSegment clientSegment(long timeMillis, int clientPort, long sequenceNumber,
+      int flags, String hexDump) {
+    return new TcpSegment(TimeUnit.MILLISECONDS.toNanos(timeMillis), CLIENT_IP, clientPort,
+        SERVER_IP, SERVER_PORT, sequenceNumber, flags, decode(hexDump));
+  }
+
+  private static ByteBuffer decode(String hexDump) {
+    return ByteBuffer.wrap(BaseEncoding.base16().decode(hexDump));
+  }
+
+  private static TcpSegment serverSegment(long timeMillis, int clientPort, long sequenceNumber,
+      int flags, String hexDump) {
+    return new TcpSegment(TimeUnit.MILLISECONDS.toNanos(timeMillis), SERVER_IP, SERVER_PORT,
+        CLIENT_IP, clientPort, sequenceNumber, flags, decode(hexDump));
+  }
+
+  @Test
+  public void shouldGetOneConversationPerConnectionWhenConnectionsInterleave() {
+    splitter.accept(clientSegment(0, 50000, 100, TcpSegment.SYN_FLAG, ""));
+    splitter.accept(clientSegment(2, 50000, 101, 0, "01"));
+    splitter.accept(clientSegment(5, 50001, 200, TcpSegment.SYN_FLAG, ""));
+    splitter.accept(clientSegment(6, 50001, 201, 0, "02"));
+    splitter.accept(serverSegment(7, 50000, 300, 0, "03"));
+    splitter.accept(serverSegment(9, 50001, 400, 0, "04"));
+    assertThat(splitter.finish()).containsExactly(
+        new Conversation(new Flow(Arrays.asList(
+            new ReceivePacketStep("01", SERVER_PORT),
+            new SendPacketStep("03", 5, SERVER_PORT))), 0, CLIENT_IP + ":50000"),
+        new Conversation(new Flow(Arrays.asList(
+            new ReceivePacketStep("02", SERVER_PORT),
+            new SendPacketStep("04", 3, SERVER_PORT))), 5, CLIENT_IP + ":50001"));
+  }
+
+  @Test
+  public void shouldGetNewConversationWhenClientReusesAddressOfPreviousConnection() {
+    splitter.accept(clientSegment(0, 50000, 100, TcpSegment.SYN_FLAG, ""));
+    splitter.accept(clientSegment(1, 50000, 100, TcpSegment.SYN_FLAG, ""));
+    splitter.accept(clientSegment(2, 50000, 101, 0, "01"));
+    splitter.accept(clientSegment(20, 50000, 5000, TcpSegment.SYN_FLAG, ""));
+    splitter.accept(clientSegment(21, 50000, 5001, 0, "02"));
+    assertThat(splitter.finish()).containsExactly(
+        new Conversation(new Flow(Collections.singletonList(
+            new ReceivePacketStep("01", SERVER_PORT))), 0, CLIENT_IP + ":50000"),
+        new Conversation(new Flow(Collections.singletonList(
+            new ReceivePacketStep("02", SERVER_PORT))), 20, CLIENT_IP + ":50000"));
+  }
+
+}
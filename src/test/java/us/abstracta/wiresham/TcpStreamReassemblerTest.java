@@ -0,0 +1,96 @@
+package us.abstracta.wiresham;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.io.BaseEncoding;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TcpStreamReassemblerTest {
+
+  private static final String CLIENT_IP = "10.0.0.2";
+  private static final int CLIENT_PORT = 50000;
+  private static final String SERVER_IP = "10.0.0.1";
+  private static final int SERVER_PORT = 23;
+  private static final long CLIENT_ISN = 1000;
+  private static final long SERVER_ISN = 0xfffffff0L;
+
+  private TcpStreamReassembler reassembler;
+
+  @BeforeEach
+  public void setup() {
+    reassembler = new TcpStreamReassembler(s -> SERVER_IP.equals(s.getSourceIp()));
+    reassembler.add(clientSegment(0, CLIENT_ISN, TcpSegment.SYN_FLAG, ""));
+    reassembler.add(serverSegment(0, SERVER_ISN, TcpSegment.SYN_FLAG, ""));
+  }
+
+  private static TcpSegment clientSegment(long timeMillis, long sequenceNumber, int flags,
+      String hexDump) {
+    return new TcpSegment(TimeUnit.MILLISECONDS.toNanos(timeMillis), CLIENT_IP, CLIENT_PORT,
+        SERVER_IP, SERVER_PORT, sequenceNumber, flags, decode(hexDump));
+  }
+
+  private static ByteBuffer decode(String hexDump) {
+    return ByteBuffer.wrap(BaseEncoding.base16().decode(hexDump));
+  }
+
+  private static TcpSegment serverSegment(long timeMillis, long sequenceNumber, int flags,
+      String hexDump) {
+    return new TcpSegment(TimeUnit.MILLISECONDS.toNanos(timeMillis), SERVER_IP, SERVER_PORT,
+        CLIENT_IP, CLIENT_PORT, sequenceNumber, flags, decode(hexDump));
+  }
+
+  @Test
+  public void shouldMergeContiguousSegmentsWhenSentBySameSide() {
+    reassembler.add(clientSegment(1, CLIENT_ISN + 1, 0, "0102"));
+    reassembler.add(clientSegment(2, CLIENT_ISN + 3, 0, "03"));
+    reassembler.add(serverSegment(10, SERVER_ISN + 1, 0, "04"));
+    reassembler.add(serverSegment(12, SERVER_ISN + 2, 0, "0506"));
+    reassembler.add(clientSegment(20, CLIENT_ISN + 4, 0, "07"));
+    assertThat(reassembler.finish()).containsExactly(
+        new ReceivePacketStep("010203", SERVER_PORT),
+        new SendPacketStep("040506", 8, SERVER_PORT),
+        new ReceivePacketStep("07", SERVER_PORT));
+  }
+
+  @Test
+  public void shouldIgnoreRetransmittedDataWhenAlreadyReceived() {
+    reassembler.add(clientSegment(1, CLIENT_ISN + 1, 0, "0102"));
+    reassembler.add(serverSegment(2, SERVER_ISN + 1, 0, "03"));
+    reassembler.add(clientSegment(3, CLIENT_ISN + 1, 0, "0102"));
+    reassembler.add(clientSegment(4, CLIENT_ISN + 2, 0, "0204"));
+    assertThat(reassembler.finish()).containsExactly(
+        new ReceivePacketStep("0102", SERVER_PORT),
+        new SendPacketStep("03", 1, SERVER_PORT),
+        new ReceivePacketStep("04", SERVER_PORT));
+  }
+
+  @Test
+  public void shouldReorderSegmentsWhenReceivedOutOfOrder() {
+    reassembler.add(clientSegment(1, CLIENT_ISN + 3, 0, "03"));
+    reassembler.add(clientSegment(2, CLIENT_ISN + 1, 0, "0102"));
+    assertThat(reassembler.finish()).containsExactly(
+        new ReceivePacketStep("010203", SERVER_PORT));
+  }
+
+  @Test
+  public void shouldMergeSegmentsWhenSequenceNumberWrapsAround() {
+    reassembler.add(serverSegment(1, SERVER_ISN + 1, 0, "0102030405060708090A0B0C0D0E"));
+    reassembler.add(serverSegment(2, 0xfffffffFL, 0, "0F10"));
+    reassembler.add(serverSegment(3, 1, 0, "11"));
+    assertThat(reassembler.finish()).containsExactly(
+        new SendPacketStep("0102030405060708090A0B0C0D0E0F1011", 0, SERVER_PORT));
+  }
+
+  @Test
+  public void shouldSkipMissingDataWhenOtherSideSendsData() {
+    reassembler.add(clientSegment(1, CLIENT_ISN + 3, 0, "03"));
+    reassembler.add(serverSegment(2, SERVER_ISN + 1, 0, "04"));
+    assertThat(reassembler.finish()).containsExactly(
+        new ReceivePacketStep("03", SERVER_PORT),
+        new SendPacketStep("04", 1, SERVER_PORT));
+  }
+
+}
@@ -1,5 +1,6 @@
 package us.abstracta.wiresham;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.IOException;
@@ -7,6 +8,7 @@ import java.net.ServerSocket;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import javax.net.ssl.SSLContext;
 import org.junit.jupiter.api.AfterAll;
@@ -15,6 +17,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import us.abstracta.wiresham.SimpleFlow.FlowBuilder;
 
 public class VirtualTcpClientTest {
 
@@ -82,4 +85,57 @@ public class VirtualTcpClientTest {
     socket.awaitReceive(SimpleFlow.CLIENT_REQUEST);
   }
 
+  @Test
+  public void shouldReplayAllConcurrentFlowsWhenRunLoad() throws Exception {
+    VirtualTcpService service = new VirtualTcpService();
+    service.setFlow(SimpleFlow.getFlow());
+    service.setEventLoopCount(1);
+    int port = serverSocket.getLocalPort();
+    serverSocket.close();
+    service.setPortArgument(port);
+    service.start();
+    try {
+      VirtualTcpClient loadClient = new VirtualTcpClient();
+      loadClient.setFlow(SimpleFlow.getFlow().reversed());
+      loadClient.setServerAddress("localhost:" + port);
+      loadClient.setConcurrency(5);
+      loadClient.setFlowsPerSecond(100);
+      LoadReport report = loadClient.runLoad();
+      assertThat(new long[]{report.getCompletedFlows(), report.getFailedFlows(),
+          report.getFlowLatencies().getTotalCount()}).containsExactly(5, 0, 5);
+    } finally {
+      service.stop(TIMEOUT_MILLIS);
+    }
+  }
+
+  @Test
+  public void shouldIncludeDelayedStartInFlowLatencyWhenRunLoadWithRateAndSlowServer()
+      throws Exception {
+    long responseDelayMillis = 100;
+    Flow flow = new FlowBuilder()
+        .withServerPacket(SimpleFlow.SERVER_WELCOME_MESSAGE)
+        .withClientPacket(SimpleFlow.CLIENT_REQUEST)
+        .withDelayedServerPacket(SimpleFlow.SERVER_RESPONSE, responseDelayMillis)
+        .build();
+    VirtualTcpService service = new VirtualTcpService();
+    service.setFlow(flow);
+    int port = serverSocket.getLocalPort();
+    serverSocket.close();
+    service.setPortArgument(port);
+    service.start();
+    try {
+      VirtualTcpClient loadClient = new VirtualTcpClient();
+      loadClient.setFlow(flow.reversed());
+      loadClient.setServerAddress("localhost:" + port);
+      loadClient.setFlowsPerSecond(100);
+      loadClient.setDurationMillis(responseDelayMillis * 3 / 2);
+      LoadReport report = loadClient.runLoad();
+      // second flow was scheduled 10 millis after the first one, but started when it ended
+      assertThat(report.getFlowLatencies().getMaxValue())
+          .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toMicros(responseDelayMillis * 3 / 2));
+    } finally {
+      service.stop(TIMEOUT_MILLIS);
+    }
+  }
+
 }
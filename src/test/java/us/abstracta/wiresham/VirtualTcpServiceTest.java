@@ -1,11 +1,20 @@
 package us.abstracta.wiresham;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import javax.management.ObjectName;
 import javax.net.ssl.SSLContext;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -19,14 +28,15 @@ public class VirtualTcpServiceTest {
   private final VirtualTcpService service = new VirtualTcpService();
   private PlainTextSocket mainClientSocket;
   private PlainTextSocket subordinateClientSocket;
+  private int servicePort;
 
   @BeforeEach
   public void setUp() throws Exception {
     service.setFlow(SimpleFlow.getFlow());
-    int availablePort = getAvailablePort();
-    service.setPortArgument(availablePort);
+    servicePort = getAvailablePort();
+    service.setPortArgument(servicePort);
     service.start();
-    mainClientSocket = new PlainTextSocket(new Socket("localhost", availablePort), TIMEOUT_MILLIS);
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", servicePort), TIMEOUT_MILLIS);
   }
 
   public int getAvailablePort() throws IOException {
@@ -132,5 +142,407 @@ public class VirtualTcpServiceTest {
         () -> subordinateClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE));
   }
 
+  @Test
+  public void shouldReplayEachConversationOnNewConnectionWhenConversationsSet()
+      throws Exception {
+    mainClientSocket.close();
+    service.stop(TIMEOUT_MILLIS);
+    service.setMaxConnections(2);
+    service.setConversations(Arrays.asList(
+        new Conversation(new FlowBuilder()
+            .withServerPacket(SimpleFlow.SERVER_WELCOME_MESSAGE)
+            .withClientPacket(SimpleFlow.CLIENT_REQUEST)
+            .withServerPacket(SimpleFlow.SERVER_RESPONSE)
+            .build(), 0, "127.0.0.1:50000"),
+        new Conversation(new FlowBuilder()
+            .withServerPacket(SimpleFlow.SERVER_RESPONSE)
+            .build(), 10, "127.0.0.1:50001")));
+    service.start();
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", servicePort), TIMEOUT_MILLIS);
+    subordinateClientSocket = new PlainTextSocket(new Socket("localhost", servicePort),
+        TIMEOUT_MILLIS);
+    try {
+      mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+      subordinateClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+      mainClientSocket.send(SimpleFlow.CLIENT_REQUEST);
+      mainClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+    } finally {
+      subordinateClientSocket.close();
+    }
+  }
+
+  @Test
+  public void shouldGetResponsesOfRequestsWhenSendRequestsInDifferentOrderInStatelessMode()
+      throws Exception {
+    mainClientSocket.close();
+    service.stop(TIMEOUT_MILLIS);
+    service.setFlow(new FlowBuilder()
+        .withServerPacket(SimpleFlow.SERVER_WELCOME_MESSAGE)
+        .withClientPacket(SimpleFlow.CLIENT_REQUEST)
+        .withServerPacket(SimpleFlow.SERVER_RESPONSE)
+        .withClientPacket(SimpleFlow.UNEXPECTED_MESSAGE)
+        .withServerPacket(SimpleFlow.SERVER_WELCOME_MESSAGE)
+        .build());
+    service.setStateless(true);
+    service.start();
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", servicePort), TIMEOUT_MILLIS);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    mainClientSocket.send(SimpleFlow.UNEXPECTED_MESSAGE);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    mainClientSocket.send(SimpleFlow.CLIENT_REQUEST);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+    mainClientSocket.send(SimpleFlow.CLIENT_REQUEST);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+  }
+
+  @Test
+  public void shouldGetResponseWhenSendExpectedRequestAfterUnexpectedOneInStatelessMode()
+      throws Exception {
+    mainClientSocket.close();
+    service.stop(TIMEOUT_MILLIS);
+    service.setFlow(new FlowBuilder()
+        .withClientPacket(SimpleFlow.CLIENT_REQUEST)
+        .withServerPacket(SimpleFlow.SERVER_RESPONSE)
+        .withClientPacket(Strings.repeat("x", 1000))
+        .withServerPacket(SimpleFlow.SERVER_WELCOME_MESSAGE)
+        .build());
+    service.setStateless(true);
+    service.start();
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", servicePort), TIMEOUT_MILLIS);
+    mainClientSocket.send(SimpleFlow.UNEXPECTED_MESSAGE);
+    mainClientSocket.send(SimpleFlow.CLIENT_REQUEST);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+  }
+
+  @Test
+  public void shouldGetResponseAndDiscardUnexpectedFramesWhenSendExpectedFrameWithFraming()
+      throws Exception {
+    mainClientSocket.close();
+    service.stop(TIMEOUT_MILLIS);
+    service.setFlow(new FlowBuilder()
+        .withClientPacket(SimpleFlow.CLIENT_REQUEST + "\n")
+        .withServerPacket(SimpleFlow.SERVER_RESPONSE)
+        .build());
+    service.setFrameDecoder(new DelimiterFrameDecoder("\n".getBytes(Charsets.UTF_8)));
+    service.start();
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", servicePort), TIMEOUT_MILLIS);
+    String unexpectedFrame = SimpleFlow.UNEXPECTED_MESSAGE + SimpleFlow.CLIENT_REQUEST + "\n";
+    mainClientSocket.send(unexpectedFrame);
+    mainClientSocket.send(SimpleFlow.CLIENT_REQUEST + "\n");
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+    assertThat(service.getMetrics().getDiscardedBytes()).isEqualTo(unexpectedFrame.length());
+  }
+
+  @Test
+  public void shouldGetExpectedResponseWhenSendExpectedInputUsingEventLoops() throws Exception {
+    int availablePort = restartWithEventLoops(SimpleFlow.getFlow());
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", availablePort),
+        TIMEOUT_MILLIS);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    mainClientSocket.send(SimpleFlow.UNEXPECTED_MESSAGE);
+    mainClientSocket.send(SimpleFlow.CLIENT_REQUEST);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+  }
+
+  private int restartWithEventLoops(Flow flow) throws Exception {
+    mainClientSocket.close();
+    service.stop(TIMEOUT_MILLIS);
+    service.setFlow(flow);
+    service.setEventLoopCount(2);
+    int availablePort = getAvailablePort();
+    service.setPortArgument(availablePort);
+    service.start();
+    return availablePort;
+  }
+
+  @Test
+  public void shouldAttendOtherClientOfSameEventLoopWhenFrameDecoderFails() throws Exception {
+    int availablePort = restartWithEventLoops(SimpleFlow.getFlow());
+    service.stop(TIMEOUT_MILLIS);
+    service.setEventLoopCount(1);
+    byte unsupportedFrameStart = SimpleFlow.UNEXPECTED_MESSAGE.getBytes(Charsets.UTF_8)[0];
+    service.setFrameDecoder(data -> {
+      if (!data.hasRemaining()) {
+        return null;
+      }
+      if (data.get(data.position()) == unsupportedFrameStart) {
+        throw new IllegalStateException("Unsupported frame");
+      }
+      return FrameDecoder.nextFrame(data, data.remaining());
+    });
+    service.start();
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", availablePort),
+        TIMEOUT_MILLIS);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    mainClientSocket.send(SimpleFlow.UNEXPECTED_MESSAGE);
+    awaitCondition(() -> service.getMetrics().getAbortedFlows() == 1);
+    try (PlainTextSocket otherClientSocket = new PlainTextSocket(
+        new Socket("localhost", availablePort), TIMEOUT_MILLIS)) {
+      otherClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+      otherClientSocket.send(SimpleFlow.CLIENT_REQUEST);
+      otherClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+    }
+  }
+
+  @Test
+  public void shouldGetExpectedResponsesWhenManyConcurrentClientsUsingEventLoops()
+      throws Exception {
+    int availablePort = restartWithEventLoops(SimpleFlow.getFlow());
+    List<PlainTextSocket> clients = new ArrayList<>();
+    try {
+      for (int i = 0; i < 50; i++) {
+        clients.add(new PlainTextSocket(new Socket("localhost", availablePort), TIMEOUT_MILLIS));
+      }
+      for (PlainTextSocket client : clients) {
+        client.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+        client.send(SimpleFlow.CLIENT_REQUEST);
+      }
+      for (PlainTextSocket client : clients) {
+        client.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+      }
+    } finally {
+      for (PlainTextSocket client : clients) {
+        client.close();
+      }
+    }
+  }
+
+  @Test
+  public void shouldGetExpectedResponseWhenValidInputsInMultiplePortUsingEventLoops()
+      throws Exception {
+    int firstAvailablePort = getAvailablePort();
+    int secondAvailablePort = getAvailablePort();
+    Flow flow = new FlowBuilder()
+        .withServerPacket(SimpleFlow.SERVER_WELCOME_MESSAGE, firstAvailablePort)
+        .withClientPacket(SimpleFlow.CLIENT_REQUEST)
+        .withServerPacket(SimpleFlow.SERVER_RESPONSE)
+        .withServerPacket(SimpleFlow.SERVER_WELCOME_MESSAGE, secondAvailablePort)
+        .withClientPacket(SimpleFlow.CLIENT_REQUEST)
+        .build();
+    restartWithEventLoops(flow);
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", firstAvailablePort),
+        TIMEOUT_MILLIS);
+    subordinateClientSocket = new PlainTextSocket(new Socket("localhost", secondAvailablePort),
+        TIMEOUT_MILLIS);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    mainClientSocket.send(SimpleFlow.CLIENT_REQUEST);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+    subordinateClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+  }
+
+  @Test
+  public void shouldGetExpectedResponseWhenSendExpectedInputUsingVirtualThreads()
+      throws Exception {
+    mainClientSocket.close();
+    service.stop(TIMEOUT_MILLIS);
+    service.setVirtualThreads(true);
+    int availablePort = getAvailablePort();
+    service.setPortArgument(availablePort);
+    service.start();
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", availablePort),
+        TIMEOUT_MILLIS);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    mainClientSocket.send(SimpleFlow.CLIENT_REQUEST);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+  }
+
+  @Test
+  public void shouldAttendOtherClientWhenFlowWaitingServerPacketDelay() throws Exception {
+    long delayMillis = 3000;
+    mainClientSocket.close();
+    service.stop(TIMEOUT_MILLIS);
+    service.setFlow(new FlowBuilder()
+        .withServerPacket(SimpleFlow.SERVER_WELCOME_MESSAGE)
+        .withClientPacket(SimpleFlow.CLIENT_REQUEST)
+        .withDelayedServerPacket(SimpleFlow.SERVER_RESPONSE, delayMillis)
+        .build());
+    int availablePort = getAvailablePort();
+    service.setPortArgument(availablePort);
+    // flows waiting for delays count as attended connections
+    service.setMaxConnections(2);
+    service.start();
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", availablePort),
+        TIMEOUT_MILLIS);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    mainClientSocket.send(SimpleFlow.CLIENT_REQUEST);
+    try (PlainTextSocket otherClientSocket = new PlainTextSocket(
+        new Socket("localhost", availablePort), delayMillis / 2)) {
+      otherClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    }
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+  }
+
+  @Test
+  public void shouldGetDelayedResponseWhenOtherClientWaitsForMaxConnections() throws Exception {
+    mainClientSocket.close();
+    service.stop(TIMEOUT_MILLIS);
+    service.setFlow(new FlowBuilder()
+        .withServerPacket(SimpleFlow.SERVER_WELCOME_MESSAGE)
+        .withClientPacket(SimpleFlow.CLIENT_REQUEST)
+        .withDelayedServerPacket(SimpleFlow.SERVER_RESPONSE, 500)
+        .build());
+    service.setMaxConnections(1);
+    service.start();
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", servicePort), TIMEOUT_MILLIS);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    mainClientSocket.send(SimpleFlow.CLIENT_REQUEST);
+    try (PlainTextSocket otherClientSocket = new PlainTextSocket(
+        new Socket("localhost", servicePort), TIMEOUT_MILLIS)) {
+      mainClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+      otherClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    }
+  }
+
+  @Test
+  public void shouldQueueClientsOverMaxConnectionsWhenAttendedFlowsWaitForDelays()
+      throws Exception {
+    mainClientSocket.close();
+    service.stop(TIMEOUT_MILLIS);
+    service.setFlow(new FlowBuilder()
+        .withServerPacket(SimpleFlow.SERVER_WELCOME_MESSAGE)
+        .withClientPacket(SimpleFlow.CLIENT_REQUEST)
+        .withDelayedServerPacket(SimpleFlow.SERVER_RESPONSE, 1000)
+        .build());
+    int maxConnections = 2;
+    service.setMaxConnections(maxConnections);
+    service.start();
+    List<PlainTextSocket> delayedClients = new ArrayList<>();
+    List<PlainTextSocket> queuedClients = new ArrayList<>();
+    try {
+      for (int i = 0; i < maxConnections; i++) {
+        PlainTextSocket client = new PlainTextSocket(new Socket("localhost", servicePort),
+            TIMEOUT_MILLIS);
+        delayedClients.add(client);
+        client.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+        client.send(SimpleFlow.CLIENT_REQUEST);
+      }
+      for (int i = 0; i < maxConnections; i++) {
+        queuedClients.add(new PlainTextSocket(new Socket("localhost", servicePort),
+            TIMEOUT_MILLIS));
+      }
+      awaitCondition(() -> service.getMetrics().getQueuedConnections() == maxConnections);
+      // threads released by delayed flows are not used to attend queued clients
+      Thread.sleep(200);
+      assertThat(service.getMetrics().getQueuedConnections()).isEqualTo(maxConnections);
+      for (PlainTextSocket client : delayedClients) {
+        client.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+      }
+      for (PlainTextSocket client : queuedClients) {
+        client.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+      }
+    } finally {
+      for (PlainTextSocket client : delayedClients) {
+        client.close();
+      }
+      for (PlainTextSocket client : queuedClients) {
+        client.close();
+      }
+    }
+  }
+
+  @Test
+  public void shouldExposeDiscardedBytesInJmxWhenSendUnexpectedInput() throws Exception {
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    mainClientSocket.send(SimpleFlow.UNEXPECTED_MESSAGE);
+    mainClientSocket.send(SimpleFlow.CLIENT_REQUEST);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+    assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(
+        new ObjectName(VirtualTcpService.METRICS_NAME_PREFIX + servicePort),
+        "DiscardedBytes")).isEqualTo((long) SimpleFlow.UNEXPECTED_MESSAGE.length());
+  }
+
+  @Test
+  public void shouldNotExposeMetricsInJmxWhenStartFailsOnBusyPort() throws Exception {
+    try (ServerSocket busySocket = new ServerSocket(0)) {
+      VirtualTcpService otherService = new VirtualTcpService();
+      otherService.setFlow(SimpleFlow.getFlow());
+      otherService.setPortArgument(busySocket.getLocalPort());
+      assertThrows(IOException.class, otherService::start);
+      assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(
+          VirtualTcpService.METRICS_NAME_PREFIX + busySocket.getLocalPort()))).isFalse();
+    }
+  }
+
+  @Test
+  public void shouldCountCompletedFlowWhenFlowEndsUsingEventLoops() throws Exception {
+    int availablePort = restartWithEventLoops(new FlowBuilder()
+        .withServerPacket(SimpleFlow.SERVER_WELCOME_MESSAGE)
+        .withClientPacket(SimpleFlow.CLIENT_REQUEST)
+        .withServerPacket(SimpleFlow.SERVER_RESPONSE)
+        .build());
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", availablePort),
+        TIMEOUT_MILLIS);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    mainClientSocket.send(SimpleFlow.CLIENT_REQUEST);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_RESPONSE);
+    ServiceMetrics metrics = service.getMetrics();
+    awaitCondition(() -> metrics.getCompletedFlows() == 1);
+    assertThat(new long[]{metrics.getReceivedPackets(),
+        metrics.getTotalConnections().get(availablePort),
+        metrics.getActiveConnections().get(availablePort)})
+        .containsExactly(1, 1, 0);
+  }
+
+  private void awaitCondition(BooleanSupplier condition) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new TimeoutException();
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void shouldCountClientClosedFlowWhenClientClosesConnection() throws Exception {
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    mainClientSocket.close();
+    awaitCondition(() -> service.getMetrics().getClientClosedFlows() == 1);
+  }
+
+  @Test
+  public void shouldCountTimedOutFlowWhenClientDoesNotSendExpectedPacketInTime()
+      throws Exception {
+    mainClientSocket.close();
+    service.stop(TIMEOUT_MILLIS);
+    service.setReceiveTimeoutMillis(100);
+    service.start();
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", servicePort), TIMEOUT_MILLIS);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    awaitCondition(() -> service.getMetrics().getTimedOutFlows() == 1);
+    assertThat(service.getMetrics().getActiveConnections().get(servicePort)).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldCloseConnectionWhenConnectWhileMaxConnectionsAreBusyWithRejectPolicy()
+      throws Exception {
+    mainClientSocket.close();
+    service.stop(TIMEOUT_MILLIS);
+    service.setOverloadPolicy(OverloadPolicy.REJECT);
+    service.start();
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", servicePort), TIMEOUT_MILLIS);
+    mainClientSocket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+    try (Socket rejectedSocket = new Socket("localhost", servicePort)) {
+      rejectedSocket.setSoTimeout((int) TIMEOUT_MILLIS);
+      assertThat(rejectedSocket.getInputStream().read()).isEqualTo(-1);
+    }
+    assertThat(service.getMetrics().getRejectedConnections()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldGetExpectedResponsesWhenConnectSeveralTimesWithSeveralAcceptors()
+      throws Exception {
+    mainClientSocket.close();
+    service.stop(TIMEOUT_MILLIS);
+    service.setAcceptorCount(2);
+    service.start();
+    for (int i = 0; i < 3; i++) {
+      try (PlainTextSocket socket = new PlainTextSocket(new Socket("localhost", servicePort),
+          TIMEOUT_MILLIS)) {
+        socket.awaitReceive(SimpleFlow.SERVER_WELCOME_MESSAGE);
+      }
+    }
+    mainClientSocket = new PlainTextSocket(new Socket("localhost", servicePort), TIMEOUT_MILLIS);
+  }
 
 }